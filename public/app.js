@@ -33,15 +33,129 @@ function findBlockByPosition(blocks, x, y) {
     }
     return null;
 }
+function loadLinkStatuses($http, scope, profilePath) {
+    // Statuses of checked links, by URL: broken ones are flagged in link blocks
+    scope.linkStatus = {};
+    $http.get(profilePath + '/links').success(function(statuses) {
+        scope.linkStatus = statuses;
+    });
+}
 function saveProfile($http, scope) {
+    return queueWrite(scope, function() {
+        return $http.post(profilePath(scope), scope.page);
+    });
+}
+function patchProfile($http, scope, ops) {
+    return queueWrite(scope, function() {
+        // Operations address blocks by index: the server refuses them if the profile changed since our version
+        return $http.patch(profilePath(scope), ops, { headers: { 'If-Match': scope.stamp + '-' + scope.version } });
+    });
+}
+function queueWrite(scope, send) {
+    // One write at a time, in order, so that each one applies to the version the previous one made
     var deferred = Q.defer();
-    $http.post('/api/user/' + scope.refUser + '/profile/' + scope.profile, scope.page).success(function() {
-        deferred.resolve(true);
-    }).error(function(err) {
+    scope.pendingWrites = (scope.pendingWrites || 0) + 1;
+    scope.writeQueue = scope.writeQueue || [];
+    scope.writeQueue.push({ send: send, deferred: deferred });
+    if (scope.writeQueue.length === 1) {
+        sendNextWrite(scope);
+    }
+    return deferred.promise;
+}
+function sendNextWrite(scope) {
+    var write = scope.writeQueue[0];
+    write.send().success(function(data, status, headers) {
+        scope.writeQueue.shift();
+        writeDone(scope, headers);
+        write.deferred.resolve(true);
+        if (scope.writeQueue.length > 0) {
+            sendNextWrite(scope);
+        }
+    }).error(function(err, status) {
+        // After a failed write, the queued ones were made against a page the server doesn't have
+        var dropped = scope.writeQueue;
+        scope.writeQueue = [];
+        scope.pendingWrites -= dropped.length - 1;
+        writeDone(scope);
         scope.page.message = 'Error: ' + err;
-        deferred.reject(scope.page.message);
+        dropped.forEach(function(write) {
+            write.deferred.reject(scope.page.message);
+        });
+        if (status === 412 && scope.onRemoteChange) {
+            // Changed elsewhere meanwhile: our changes are lost, start again from the current profile
+            scope.onRemoteChange();
+        }
     });
-    return deferred.promise;
+}
+function writeDone(scope, headers) {
+    scope.pendingWrites--;
+    if (headers) {
+        noteVersion(scope, headers);
+    }
+    checkRemoteVersion(scope);
+}
+function noteVersion(scope, headers) {
+    // Version of the profile we have, so that our own changes aren't taken for remote ones. Versions restart when
+    // the server does: they only compare under the same boot stamp.
+    var header = (headers('X-Profile-Version') || '').split('-');
+    if (header.length !== 2) {
+        return;
+    }
+    var version = parseInt(header[1], 10);
+    if (header[0] !== scope.stamp || version > (scope.version || 0)) {
+        scope.stamp = header[0];
+        scope.version = version;
+    }
+}
+function watchProfile(scope, profilePath, onRemoteChange) {
+    // The server pushes the profile's version as it changes; reconnections are handled by the browser
+    if (!window.EventSource) {
+        return;
+    }
+    var source = new EventSource(profilePath + '/events');
+    scope.onRemoteChange = onRemoteChange;
+    source.onmessage = function(event) {
+        var data = JSON.parse(event.data);
+        scope.remoteStamp = data.stamp;
+        scope.remoteVersion = data.version;
+        checkRemoteVersion(scope);
+    };
+    scope.$on('$destroy', function() {
+        source.close();
+    });
+}
+function checkRemoteVersion(scope) {
+    // Our own writes in flight would look like remote changes until they're answered
+    // A new stamp means the server restarted: whatever the versions, the profile may have changed meanwhile
+    if (!scope.pendingWrites && scope.onRemoteChange && scope.remoteStamp !== undefined
+            && (scope.remoteStamp !== scope.stamp || scope.remoteVersion > (scope.version || 0))) {
+        scope.stamp = scope.remoteStamp;
+        scope.version = scope.remoteVersion;
+        scope.onRemoteChange();
+    }
+}
+function toLinkJson(link) {
+    return { title: link.title, url: link.url, description: link.description };
+}
+function toBlockJson(block) {
+    return {
+        type: block.type,
+        posx: block.posx,
+        posy: block.posy,
+        title: block.title,
+        description: block.description,
+        links: (block.links || []).map(toLinkJson)
+    };
+}
+function findLinkPosition(blocks, link) {
+    for (var i = 0; i < blocks.length; i++) {
+        var links = blocks[i].links || [];
+        var j = links.indexOf(link);
+        if (j >= 0) {
+            return { block: i, index: j };
+        }
+    }
+    return null;
 }
 function fillPageStyle(blocks, minPos, animateAll) {
     computePositions(blocks);
@@ -8,7 +8,8 @@ angular.module('homeblocks.editview', ['ngRoute'])
     }])
     .controller("editViewCtrl", ['$scope', '$http', '$routeParams', '$rootScope', '$location', '$document', function ($scope, $http, $routeParams, $rootScope, $location, $document) {
         $rootScope.title = "homeblocks";
-        $http.get('/api/user/' + $routeParams.user + "/profile/" + $routeParams.profile).success(function(ctx) {
+        $http.get('/api/user/' + $routeParams.user + "/profile/" + $routeParams.profile).success(function(ctx, status, headers) {
+            noteVersion($scope, headers);
             $rootScope.title = ctx.title;
             $scope.refUser = ctx.refUser;
             $scope.profile = ctx.profile;
@@ -20,6 +21,17 @@ angular.module('homeblocks.editview', ['ngRoute'])
             }
             fillPageStyle($scope.page.blocks, $scope.minPos);
             initEditListeners($scope, $location, $http, $document);
+            loadLinkStatuses($http, $scope, '/api/user/' + $routeParams.user + "/profile/" + $routeParams.profile);
+            watchProfile($scope, profilePath($scope), function() {
+                // Changed in another window: editing on would overwrite it
+                $http.get(profilePath($scope)).success(function(ctx, status, headers) {
+                    noteVersion($scope, headers);
+                    $scope.page = ctx.page;
+                    $scope.page.message = "This profile was changed elsewhere, and reloaded";
+                    fillPageStyle($scope.page.blocks, $scope.minPos, true);
+                    loadLinkStatuses($http, $scope, profilePath($scope));
+                });
+            });
         }).error(function (data) {
             console.log('Error: ' + data);
         });
@@ -42,7 +54,12 @@ function initEditListeners($scope, $location, $http, $document) {
     };
     $scope.onSaveItem = function(item) {
         item.editing = false;
-        saveProfile($http, $scope);
+        var pos = findLinkPosition($scope.page.blocks, item);
+        if (pos != null) {
+            patchProfile($http, $scope, [{ op: "setLink", block: pos.block, index: pos.index, link: toLinkJson(item) }]);
+        } else {
+            saveProfile($http, $scope);
+        }
     };
     $scope.onCreateLink = function(block) {
         var link = {
@@ -52,7 +69,7 @@ function initEditListeners($scope, $location, $http, $document) {
             editing: true
         };
         block.links.push(link);
-        saveProfile($http, $scope);
+        patchProfile($http, $scope, [{ op: "addLink", block: $scope.page.blocks.indexOf(block), link: toLinkJson(link) }]);
     };
     $scope.onCreateListItem = function(block) {
         var item = {
@@ -63,18 +80,28 @@ function initEditListeners($scope, $location, $http, $document) {
         saveProfile($http, $scope);
     };
     $scope.onDeleteItem = function(list, index) {
+        var pos = findLinkPosition($scope.page.blocks, list[index]);
         list.splice(index, 1);
-        saveProfile($http, $scope);
+        if (pos != null) {
+            patchProfile($http, $scope, [{ op: "removeLink", block: pos.block, index: pos.index }]);
+        } else {
+            saveProfile($http, $scope);
+        }
     };
     $scope.onItemUp = function(list, index) {
+        var pos = findLinkPosition($scope.page.blocks, list[index]);
         var tmp = list[index - 1];
         list[index - 1] = list[index];
         list[index] = tmp;
-        saveProfile($http, $scope);
+        if (pos != null) {
+            patchProfile($http, $scope, [{ op: "moveLink", block: pos.block, index: pos.index, to: pos.index - 1 }]);
+        } else {
+            saveProfile($http, $scope);
+        }
     };
     $scope.onSaveBlock = function(block) {
         block.editTitle = false;
-        saveProfile($http, $scope);
+        patchProfile($http, $scope, [{ op: "setField", block: $scope.page.blocks.indexOf(block), field: "title", value: block.title }]);
     };
     $scope.onCreateBlock = function(x, y, type) {
         var block = createEmptyBlock(x, y, type);
@@ -82,7 +109,7 @@ function initEditListeners($scope, $location, $http, $document) {
             block.animate = true;
             $scope.page.blocks.push(block);
             fillPageStyle($scope.page.blocks, $scope.minPos);
-            saveProfile($http, $scope);
+            patchProfile($http, $scope, [{ op: "addBlock", block: toBlockJson(block) }]);
         }
     };
     $scope.onSwapBlocks = function(b1, b2x, b2y) {
@@ -94,7 +121,36 @@ function initEditListeners($scope, $location, $http, $document) {
         b1.animate = true;
         b2.animate = true;
         fillPageStyle($scope.page.blocks, $scope.minPos);
-        saveProfile($http, $scope);
+        patchProfile($http, $scope, [
+            { op: "moveBlock", block: $scope.page.blocks.indexOf(b1), posx: b1.posx, posy: b1.posy },
+            { op: "moveBlock", block: $scope.page.blocks.indexOf(b2), posx: b2.posx, posy: b2.posy }
+        ]);
+    };
+    $scope.toggleHistory = function() {
+        if ($scope.history) {
+            $scope.history = null;
+            return;
+        }
+        $http.get(profilePath($scope) + '/history').success(function(ctx) {
+            $scope.history = ctx.revisions;
+        }).error(function(err) {
+            $scope.page.message = 'Error: ' + err;
+        });
+    };
+    $scope.revert = function(rev) {
+        if (confirm("Restore the profile as it was at this revision?")) {
+            $scope.pendingWrites = ($scope.pendingWrites || 0) + 1;
+            $http.post(profilePath($scope) + '/history/' + rev.rev + '/revert').success(function(ctx, status, headers) {
+                writeDone($scope, headers);
+                $scope.page = ctx.page;
+                $scope.history = null;
+                fillPageStyle($scope.page.blocks, $scope.minPos, true);
+                loadLinkStatuses($http, $scope, profilePath($scope));
+            }).error(function(err) {
+                writeDone($scope);
+                $scope.page.message = 'Error: ' + err;
+            });
+        }
     };
     $scope.onDeleteBlock = function(block) {
         if (confirm("Delete this block?")) {
@@ -102,11 +158,14 @@ function initEditListeners($scope, $location, $http, $document) {
             if (index >= 0) {
                 $scope.page.blocks.splice(index, 1);
                 fillPageStyle($scope.page.blocks, $scope.minPos);
-                saveProfile($http, $scope);
+                patchProfile($http, $scope, [{ op: "removeBlock", block: index }]);
             }
         }
     };
 }
+function profilePath(scope) {
+    return '/api/user/' + scope.refUser + '/profile/' + scope.profile;
+}
 function createEmptyBlock(x, y, type) {
     var block = new FrontBlock();
     block.posx = x;
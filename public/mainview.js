@@ -39,7 +39,8 @@ angular.module('homeblocks.mainview', ['ngRoute'])
             });
             return;
         }
-        $http.get(apiPath).success(function(ctx) {
+        $http.get(apiPath).success(function(ctx, status, headers) {
+            noteVersion($scope, headers);
             $rootScope.title = ctx.title;
             $scope.refUser = ctx.refUser;
             $scope.profile = ctx.profile;
@@ -58,6 +59,21 @@ angular.module('homeblocks.mainview', ['ngRoute'])
             fillPageStyle($scope.page.blocks, $scope.minPos, true);
             initMainListeners($scope, $location, $http);
             $scope.page.blocks.forEach(function(b) { enterBlock($scope, b); });
+            if ($scope.isOnProfile) {
+                loadLinkStatuses($http, $scope, apiPath);
+                watchProfile($scope, apiPath, function() {
+                    $http.get(apiPath).success(function(ctx, status, headers) {
+                        noteVersion($scope, headers);
+                        $scope.strJson = JSON.stringify(ctx.page);
+                        $scope.page = ctx.page;
+                        $scope.page.message = "";
+                        $scope.minPos = { x: 0, y: 0 };
+                        fillPageStyle($scope.page.blocks, $scope.minPos, true);
+                        $scope.page.blocks.forEach(function(b) { enterBlock($scope, b); });
+                        loadLinkStatuses($http, $scope, apiPath);
+                    });
+                });
+            }
         }).error(function(data) {
             console.log('Error: ' + data);
         });
@@ -72,7 +88,16 @@ angular.module('homeblocks.mainview', ['ngRoute'])
                 }
             });
         };
-    }).directive('trustedUrl', function ($sce) {
+    }).filter('media', function () {
+        // Media from other sites go through our proxy, so that visitors' browsers don't call them
+        return function (url) {
+            return /^https?:\/\//i.test(url || '') ? '/api/media?url=' + encodeURIComponent(url) : url;
+        };
+    }).filter('favicon', function () {
+        return function (url) {
+            return /^https?:\/\//i.test(url || '') ? '/api/media/favicon?url=' + encodeURIComponent(url) : '';
+        };
+    }).directive('trustedUrl', function ($sce, $filter) {
         return {
             restrict: 'A',
             scope: {
@@ -85,7 +110,7 @@ angular.module('homeblocks.mainview', ['ngRoute'])
             link: function (scope) {
                 scope.$watch('src', function (newVal, oldVal) {
                     if (newVal !== undefined) {
-                        scope.url = $sce.trustAsResourceUrl(newVal);
+                        scope.url = $sce.trustAsResourceUrl($filter('media')(newVal));
                     }
                 });
             }
@@ -0,0 +1,77 @@
+package net.homeblocks.bench;
+
+import io.vertx.core.json.JsonArray;
+import net.homeblocks.model.Block;
+import net.homeblocks.model.Link;
+import net.homeblocks.model.Page;
+import net.homeblocks.model.UserInfo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Deterministic data sets shared by benchmarks.
+ */
+public class BenchData {
+    private BenchData() {
+    }
+
+    /**
+     * A page laid out on a grid, with realistic titles, descriptions and URLs.
+     */
+    public static Page page(int blocks, int linksPerBlock) {
+        var list = new ArrayList<Block>(blocks);
+        list.add(Block.emptyMain());
+        for (var b = 1; b < blocks; b++) {
+            var links = new ArrayList<Link>(linksPerBlock);
+            for (var l = 0; l < linksPerBlock; l++) {
+                links.add(new Link("Link " + b + "-" + l, "https://www.example" + (l % 17) + ".com/some/path/" + b + "/" + l,
+                        l % 3 == 0 ? "Description of link " + l + ", with \"quotes\" and unicode: é" : ""));
+            }
+            list.add(new Block("links", b % 10, b / 10, "Block " + b, "Some block", links));
+        }
+        return new Page(list);
+    }
+
+    public static UserInfo user(int idx) {
+        return new UserInfo("github", "gh" + idx, idx, "user" + idx);
+    }
+
+    /**
+     * Writes a users index snapshot holding the given number of users, under {@code root/users}.
+     */
+    public static void writeUsers(Path root, int count) throws IOException {
+        var dir = root.resolve("users");
+        Files.createDirectories(dir);
+        var arr = new JsonArray();
+        for (var i = 1; i <= count; i++) {
+            arr.add(user(i).toJson());
+        }
+        Files.write(dir.resolve("_index.json"), arr.toBuffer().getBytes());
+    }
+
+    public static Path tempDir() throws IOException {
+        return Files.createTempDirectory("homeblocks-bench");
+    }
+
+    public static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    public static List<String> profileNames(int count) {
+        var names = new ArrayList<String>(count);
+        for (var i = 0; i < count; i++) {
+            names.add("profile" + i);
+        }
+        return names;
+    }
+}
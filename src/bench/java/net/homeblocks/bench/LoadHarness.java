@@ -0,0 +1,361 @@
+package net.homeblocks.bench;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.ThreadingModel;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.ext.web.client.WebClientSession;
+import net.homeblocks.model.Page;
+import net.homeblocks.oauth.Provider;
+import net.homeblocks.server.CookieUserSessions;
+import net.homeblocks.server.LocalUserSessions;
+import net.homeblocks.server.LoginStateStore;
+import net.homeblocks.server.MediaProxy;
+import net.homeblocks.server.Routes;
+import net.homeblocks.server.Server;
+import net.homeblocks.server.StaticAssets;
+import net.homeblocks.server.UserSessions;
+import net.homeblocks.services.DurableWriter;
+import net.homeblocks.services.LinkChecker;
+import net.homeblocks.services.PageFormat;
+import net.homeblocks.services.ProfileService;
+import net.homeblocks.services.ProfileStore;
+import net.homeblocks.services.SearchService;
+import net.homeblocks.services.UserService;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Starts the HTTP routes in-process, on a temporary data directory and with a {@link StubProvider} for logins, then
+ * drives mixed traffic through them and reports throughput and latency percentiles per route.
+ * <p>
+ * Each virtual user logs in, creates a profile, then loops on: reading another user's place and profile; editing
+ * their own profile (full saves or patches); or logging in again from a fresh session. Options, as
+ * {@code --name=value}:
+ * <ul>
+ *     <li>{@code concurrency} (64): number of virtual users, each sending one request at a time</li>
+ *     <li>{@code duration} (30): measurement duration, in seconds</li>
+ *     <li>{@code warmup} (10): warmup duration, in seconds, not reported</li>
+ *     <li>{@code mix} (read=80,edit=15,login=5): weights of each kind of traffic</li>
+ *     <li>{@code blocks} (20): number of blocks of the profiles saved</li>
+ *     <li>{@code instances} (number of cores): number of HTTP verticle instances</li>
+ *     <li>{@code pageFormat} (json): on-disk format of profiles</li>
+ *     <li>{@code store} (files): {@link ProfileStore} kind, {@code files} or {@code mvstore}</li>
+ *     <li>{@code threading} (event_loop): threading model of the HTTP verticles, {@code event_loop} or
+ *     {@code virtual_thread} (JDK 21+)</li>
+ *     <li>{@code cacheSize} (1000): number of pages kept in the page cache</li>
+ *     <li>{@code diskLatencyMs} (0): simulated latency of profile reads, to stand for a slow disk or network
+ *     storage</li>
+ *     <li>{@code diskMissRatio} (0.2): share of profile reads paying {@code diskLatencyMs}, as page cache misses
+ *     would</li>
+ *     <li>{@code sessionMode} (local): {@code local} for server-side sessions, or {@code cookie} for sessions and
+ *     login states in encrypted cookies</li>
+ * </ul>
+ */
+public class LoadHarness {
+    private static final Pattern STATE = Pattern.compile("state=([^&\"]+)");
+
+    private final Map<String, String> options;
+    private final RouteStats stats = new RouteStats();
+    private final Vertx serverVertx = Vertx.vertx();
+    private final Vertx clientVertx = Vertx.vertx();
+    private final List<String> aliases = new ArrayList<>();
+    private final AtomicInteger logins = new AtomicInteger();
+    private final int readWeight;
+    private final int editWeight;
+    private final int loginWeight;
+    private final Page page;
+    private Path root;
+    private DurableWriter writer;
+    private ProfileStore store;
+    private ProfileService profileService;
+    private SearchService searchService;
+    private LoginStateStore loginStates;
+    private WebClient client;
+    private volatile boolean running = true;
+
+    private LoadHarness(Map<String, String> options) {
+        this.options = options;
+        var mix = new HashMap<String, Integer>();
+        for (var weight : option("mix", "read=80,edit=15,login=5").split(",")) {
+            var kv = weight.split("=");
+            mix.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+        }
+        this.readWeight = mix.getOrDefault("read", 0);
+        this.editWeight = mix.getOrDefault("edit", 0);
+        this.loginWeight = mix.getOrDefault("login", 0);
+        this.page = BenchData.page(intOption("blocks", 20), 10);
+    }
+
+    private String option(String name, String def) {
+        return options.getOrDefault(name, def);
+    }
+
+    private int intOption(String name, int def) {
+        return Integer.parseInt(option(name, String.valueOf(def)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        for (var arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+            }
+            var idx = arg.indexOf('=');
+            options.put(arg.substring(2, idx), arg.substring(idx + 1));
+        }
+        var harness = new LoadHarness(options);
+        try {
+            harness.run();
+        } finally {
+            harness.close();
+        }
+    }
+
+    private void run() throws Exception {
+        var port = startServer();
+        client = WebClient.create(clientVertx, new WebClientOptions()
+                .setDefaultHost("localhost")
+                .setDefaultPort(port)
+                .setMaxPoolSize(intOption("concurrency", 64))
+                .setTryUseCompression(true));
+        var concurrency = intOption("concurrency", 64);
+        System.out.println("Setting up " + concurrency + " virtual users on port " + port);
+        List<WebClientSession> sessions = new ArrayList<>();
+        for (var i = 0; i < concurrency; i++) {
+            var session = WebClientSession.create(client);
+            var alias = join(login(session).compose(a -> createProfile(session, a)));
+            sessions.add(session);
+            aliases.add(alias);
+        }
+
+        var warmup = intOption("warmup", 10) * 1000L;
+        var duration = intOption("duration", 30) * 1000L;
+        List<Future<Void>> users = new ArrayList<>();
+        for (var i = 0; i < concurrency; i++) {
+            var session = sessions.get(i);
+            var alias = aliases.get(i);
+            var promise = Promise.<Void>promise();
+            clientVertx.runOnContext(v -> loop(session, alias, promise));
+            users.add(promise.future());
+        }
+        System.out.println("Warming up for " + warmup + " ms");
+        Thread.sleep(warmup);
+        stats.reset();
+        System.out.println("Measuring for " + duration + " ms");
+        var start = System.currentTimeMillis();
+        Thread.sleep(duration);
+        running = false;
+        join(Future.all(users));
+        var elapsed = System.currentTimeMillis() - start;
+        System.out.println();
+        System.out.print(stats.report(elapsed));
+        System.out.println();
+        System.out.println("Profile cache stats: " + profileService.cacheStats());
+    }
+
+    private int startServer() throws IOException {
+        root = BenchData.tempDir();
+        writer = new DurableWriter();
+        store = ProfileStore.open(option("store", "files"), serverVertx, writer, root.toString(),
+                PageFormat.valueOf(option("pageFormat", "json").toUpperCase()), 256);
+        var userService = new UserService(store);
+        profileService = new SlowDiskProfileService(serverVertx, store, intOption("cacheSize", 1000),
+                intOption("diskLatencyMs", 0), Double.parseDouble(option("diskMissRatio", "0.2")));
+        searchService = new SearchService(serverVertx, store, profileService, writer, root.toString(), 60_000);
+        loginStates = new LoginStateStore(serverVertx, 600_000, 100_000);
+        var staticAssets = new StaticAssets(Paths.get("public"), root.resolve("assets-cache"));
+        // Link checks disabled: they would measure the stub links rather than the server
+        var linkChecker = new LinkChecker(serverVertx, store, profileService, writer, root.toString(), 0, 1, 1000,
+                false);
+        var mediaProxy = new MediaProxy(serverVertx, store, profileService, root.resolve("media-cache"),
+                1024L * 1024 * 1024, 50L * 1024 * 1024, false);
+        var providers = List.<Provider>of(new StubProvider());
+        int port;
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        var opts = Server.parseOptions(new JsonObject());
+        var shared = Server.sharedRoutes(serverVertx, opts, userService, profileService, staticAssets, providers);
+        var instances = intOption("instances", Runtime.getRuntime().availableProcessors());
+        join(serverVertx.deployVerticle(() -> new AbstractVerticle() {
+            @Override
+            public void start(Promise<Void> startPromise) {
+                var routes = new Routes(vertx, userService, profileService, searchService, providers,
+                        sessions(vertx), staticAssets, mediaProxy, linkChecker, shared.responses(),
+                        shared.liveUpdates(), shared.profileHtml(), opts);
+                vertx.createHttpServer().requestHandler(routes.getRouter()).listen(port)
+                        .<Void>mapEmpty().onComplete(startPromise);
+            }
+        }, new DeploymentOptions()
+                .setInstances(instances)
+                .setThreadingModel(ThreadingModel.valueOf(option("threading", "event_loop").toUpperCase()))));
+        return port;
+    }
+
+    private UserSessions sessions(Vertx vertx) {
+        var mode = option("sessionMode", "local");
+        return switch (mode) {
+            case "local" -> new LocalUserSessions(vertx, loginStates);
+            case "cookie" -> new CookieUserSessions("load-harness", 30 * 24 * 3600, 600_000, false);
+            default -> throw new IllegalArgumentException("Unknown session mode: " + mode);
+        };
+    }
+
+    /**
+     * Sleeps on a share of profile reads, blocking the calling thread as a slow disk would.
+     */
+    private static class SlowDiskProfileService extends ProfileService {
+        private final long latencyMs;
+        private final double missRatio;
+
+        SlowDiskProfileService(Vertx vertx, ProfileStore store, int cacheSize, long latencyMs, double missRatio) {
+            super(vertx, store, cacheSize, 5000, 60_000, 100);
+            this.latencyMs = latencyMs;
+            this.missRatio = missRatio;
+        }
+
+        private void stall() {
+            if (latencyMs > 0 && ThreadLocalRandom.current().nextDouble() < missRatio) {
+                try {
+                    Thread.sleep(latencyMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public Page load(int userID, String profile) {
+            stall();
+            return super.load(userID, profile);
+        }
+    }
+
+    private void loop(WebClientSession session, String alias, Promise<Void> done) {
+        if (!running) {
+            done.complete();
+            return;
+        }
+        var pick = ThreadLocalRandom.current().nextInt(readWeight + editWeight + loginWeight);
+        Future<?> next;
+        if (pick < readWeight) {
+            next = read();
+        } else if (pick < readWeight + editWeight) {
+            next = edit(session, alias);
+        } else {
+            next = login(WebClientSession.create(client));
+        }
+        // Failures are counted by route; keep going
+        next.onComplete(ar -> loop(session, alias, done));
+    }
+
+    private Future<?> read() {
+        var alias = aliases.get(ThreadLocalRandom.current().nextInt(aliases.size()));
+        return send("GET /api/user/:user", client.get("/api/user/" + alias))
+                .compose(res -> send("GET /api/user/:user/profile/:name",
+                        client.get("/api/user/" + alias + "/profile/home")));
+    }
+
+    private Future<?> edit(WebClientSession session, String alias) {
+        var uri = "/api/user/" + alias + "/profile/home";
+        if (ThreadLocalRandom.current().nextBoolean()) {
+            return send("POST /api/user/:user/profile/:name", session.post(uri), page.toJson().toBuffer());
+        }
+        var ops = new JsonArray()
+                .add(new JsonObject().put("op", "setField").put("block", 1).put("field", "title")
+                        .put("value", "Edited " + System.nanoTime()))
+                .add(new JsonObject().put("op", "moveLink").put("block", 1).put("index", 1).put("to", 0));
+        return send("PATCH /api/user/:user/profile/:name", session.patch(uri), ops.toBuffer());
+    }
+
+    /**
+     * Logs in a new user through the stub provider, and returns their alias.
+     */
+    private Future<String> login(WebClientSession session) {
+        var uid = "vu" + logins.incrementAndGet();
+        return send("GET /api/login", session.get("/api/login"))
+                .compose(res -> {
+                    var matcher = STATE.matcher(res.bodyAsString());
+                    if (!matcher.find()) {
+                        return Future.failedFuture("No login state in: " + res.bodyAsString());
+                    }
+                    return send("GET /oauthclbk-stub",
+                            session.get("/oauthclbk-" + StubProvider.NAME + "?state=" + matcher.group(1) + "&code=" + uid));
+                })
+                .compose(res -> send("GET /api/logged", session.get("/api/logged")))
+                .map(res -> res.bodyAsJsonObject().getString("logged"));
+    }
+
+    private Future<String> createProfile(WebClientSession session, String alias) {
+        var uri = "/api/user/" + alias + "/profile/home";
+        return send("PUT /api/user/:user/profile/:name", session.put(uri))
+                .compose(res -> send("POST /api/user/:user/profile/:name", session.post(uri), page.toJson().toBuffer()))
+                .map(res -> alias);
+    }
+
+    private Future<HttpResponse<Buffer>> send(String route, HttpRequest<Buffer> request) {
+        return send(route, request, null);
+    }
+
+    private Future<HttpResponse<Buffer>> send(String route, HttpRequest<Buffer> request,
+                                             Buffer body) {
+        var start = System.nanoTime();
+        var sent = body == null ? request.send() : request.sendBuffer(body);
+        return sent.transform(ar -> {
+            var success = ar.succeeded() && ar.result().statusCode() < 400;
+            stats.record(route, System.nanoTime() - start, success);
+            if (!success) {
+                var cause = ar.failed() ? ar.cause().getMessage() : ar.result().statusCode() + " " + ar.result().bodyAsString();
+                return Future.failedFuture(route + " failed: " + cause);
+            }
+            return Future.succeededFuture(ar.result());
+        });
+    }
+
+    private static <T> T join(Future<T> future) {
+        return future.toCompletionStage().toCompletableFuture().join();
+    }
+
+    private void close() throws IOException {
+        join(clientVertx.close());
+        if (profileService != null) {
+            profileService.close();
+        }
+        if (searchService != null) {
+            searchService.close();
+        }
+        if (loginStates != null) {
+            loginStates.close();
+        }
+        if (writer != null) {
+            writer.close();
+        }
+        if (store != null) {
+            store.close();
+        }
+        join(serverVertx.close());
+        if (root != null) {
+            BenchData.delete(root);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package net.homeblocks.bench;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import net.homeblocks.model.BinaryPageCodec;
+import net.homeblocks.model.Page;
+import net.homeblocks.model.PageCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Page (de)serialization, with the tree-based JSON model, the streaming JSON codec and the binary codec.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PageBenchmark {
+    @Param({"1", "50", "500"})
+    int blocks;
+
+    @Param({"5", "20"})
+    int linksPerBlock;
+
+    private Page page;
+    private Buffer json;
+    private Buffer binary;
+
+    @Setup
+    public void setup() {
+        page = BenchData.page(blocks, linksPerBlock);
+        json = page.toJson().toBuffer();
+        binary = BinaryPageCodec.encode(page);
+    }
+
+    @Benchmark
+    public Page fromJson() {
+        return Page.fromJson(new JsonObject(json));
+    }
+
+    @Benchmark
+    public Buffer toJson() {
+        return page.toJson().toBuffer();
+    }
+
+    @Benchmark
+    public Page codecDecode() {
+        return PageCodec.decode(json);
+    }
+
+    @Benchmark
+    public Buffer codecEncode() {
+        return PageCodec.encode(page);
+    }
+
+    @Benchmark
+    public Page binaryDecode() {
+        return BinaryPageCodec.decode(binary);
+    }
+
+    @Benchmark
+    public Buffer binaryEncode() {
+        return BinaryPageCodec.encode(page);
+    }
+}
@@ -0,0 +1,97 @@
+package net.homeblocks.bench;
+
+import io.vertx.core.Vertx;
+import net.homeblocks.model.Page;
+import net.homeblocks.services.DurableWriter;
+import net.homeblocks.services.FileProfileStore;
+import net.homeblocks.services.PageFormat;
+import net.homeblocks.services.ProfileService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Profile loads and updates against a temporary directory. With a cache of a single page, almost every load reads
+ * and parses a file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProfileServiceBenchmark {
+    private static final int USER_ID = 1;
+
+    @Param({"1", "1000"})
+    int cacheSize;
+
+    @Param({"JSON", "BINARY"})
+    PageFormat format;
+
+    @Param({"50"})
+    int blocks;
+
+    private Path root;
+    private Vertx vertx;
+    private DurableWriter writer;
+    private ProfileService profileService;
+    private List<String> profiles;
+    private Page page;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        root = BenchData.tempDir();
+        BenchData.writeUsers(root, 1);
+        vertx = Vertx.vertx();
+        writer = new DurableWriter();
+        var store = new FileProfileStore(vertx, writer, root.toString(), format);
+        profileService = new ProfileService(vertx, store, cacheSize, 1000, 60_000, 100);
+        page = BenchData.page(blocks, 10);
+        profiles = BenchData.profileNames(100);
+        for (var profile : profiles) {
+            profileService.createEmpty(USER_ID, profile).toCompletionStage().toCompletableFuture().join();
+            profileService.update(USER_ID, profile, page).toCompletionStage().toCompletableFuture().join();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        profileService.close();
+        writer.close();
+        vertx.close().toCompletionStage().toCompletableFuture().join();
+        BenchData.delete(root);
+    }
+
+    private String randomProfile() {
+        return profiles.get(ThreadLocalRandom.current().nextInt(profiles.size()));
+    }
+
+    @Benchmark
+    public Page load() {
+        return profileService.load(USER_ID, randomProfile());
+    }
+
+    /**
+     * Until durable. With several threads ({@code -t}), concurrent updates share syncs.
+     */
+    @Benchmark
+    public Long update() {
+        return profileService.update(USER_ID, randomProfile(), page).toCompletionStage().toCompletableFuture().join();
+    }
+}
@@ -0,0 +1,125 @@
+package net.homeblocks.bench;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import net.homeblocks.model.Page;
+import net.homeblocks.services.DurableWriter;
+import net.homeblocks.services.PageFormat;
+import net.homeblocks.services.ProfileStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The same workload against each {@link ProfileStore}, without the page cache: reads, listings, and durable writes
+ * from one or several threads (the latter showing how well commits are grouped).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProfileStoreBenchmark {
+    private static final int PROFILES_PER_USER = 10;
+
+    @Param({"files", "mvstore"})
+    String store;
+
+    @Param({"1000"})
+    int users;
+
+    @Param({"20"})
+    int blocks;
+
+    // Smaller than the pages (about 140 MB), to show reads missing the MVStore cache
+    @Param({"64"})
+    int cacheSizeMb;
+
+    private Path root;
+    private Vertx vertx;
+    private DurableWriter writer;
+    private ProfileStore profileStore;
+    private List<String> profiles;
+    private Page page;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        root = BenchData.tempDir();
+        vertx = Vertx.vertx();
+        writer = new DurableWriter();
+        profileStore = ProfileStore.open(store, vertx, writer, root.toString(), PageFormat.BINARY,
+                cacheSizeMb);
+        page = BenchData.page(blocks, 10);
+        profiles = BenchData.profileNames(PROFILES_PER_USER);
+        List<Future<Void>> writes = new ArrayList<>();
+        for (var userID = 1; userID <= users; userID++) {
+            writes.add(profileStore.saveUser(BenchData.user(userID)));
+            for (var profile : profiles) {
+                writes.add(profileStore.write(userID, profile, page));
+            }
+        }
+        join(Future.all(writes));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        writer.close();
+        profileStore.close();
+        join(vertx.close());
+        BenchData.delete(root);
+    }
+
+    private static <T> T join(Future<T> future) {
+        return future.toCompletionStage().toCompletableFuture().join();
+    }
+
+    private int randomUser() {
+        return ThreadLocalRandom.current().nextInt(1, users + 1);
+    }
+
+    private String randomProfile() {
+        return profiles.get(ThreadLocalRandom.current().nextInt(profiles.size()));
+    }
+
+    @Benchmark
+    public Page read() {
+        return profileStore.read(randomUser(), randomProfile());
+    }
+
+    @Benchmark
+    public List<String> list() {
+        return profileStore.list(randomUser());
+    }
+
+    /**
+     * Waits until durable.
+     */
+    @Benchmark
+    public void write() {
+        join(profileStore.write(randomUser(), randomProfile(), page));
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void writeConcurrent() {
+        join(profileStore.write(randomUser(), randomProfile(), page));
+    }
+}
@@ -0,0 +1,57 @@
+package net.homeblocks.bench;
+
+import io.vertx.core.buffer.Buffer;
+import net.homeblocks.model.Page;
+import net.homeblocks.model.Profiles;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of API responses: a profile page, and a user's list of profiles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderingBenchmark {
+    @Param({"1", "50", "500"})
+    int blocks;
+
+    private Page page;
+    private List<String> profiles;
+
+    @Setup
+    public void setup() {
+        page = BenchData.page(blocks, 10);
+        profiles = BenchData.profileNames(blocks);
+    }
+
+    @Benchmark
+    public Buffer page() {
+        return Profiles.page("bob", "home", page, "alice").toBuffer();
+    }
+
+    @Benchmark
+    public Buffer encodedPage() {
+        return Profiles.encodedPage("bob", "home", page, "alice");
+    }
+
+    @Benchmark
+    public Buffer user() {
+        return Profiles.user("bob", profiles, "alice").toBuffer();
+    }
+}
@@ -0,0 +1,51 @@
+package net.homeblocks.bench;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and error counts, per route.
+ */
+public class RouteStats {
+    private static final long MAX_LATENCY_NS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Map<String, Route> routes = new ConcurrentSkipListMap<>();
+
+    private static class Route {
+        private final Histogram latencies = new ConcurrentHistogram(MAX_LATENCY_NS, 3);
+        private final LongAdder errors = new LongAdder();
+    }
+
+    public void record(String route, long latencyNs, boolean success) {
+        var r = routes.computeIfAbsent(route, k -> new Route());
+        r.latencies.recordValue(Math.min(latencyNs, MAX_LATENCY_NS));
+        if (!success) {
+            r.errors.increment();
+        }
+    }
+
+    public void reset() {
+        routes.clear();
+    }
+
+    public String report(long durationMs) {
+        var sb = new StringBuilder(String.format("%-34s %9s %9s %7s %9s %9s %9s %9s%n",
+                "route", "requests", "req/s", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        routes.forEach((name, r) -> {
+            var h = r.latencies;
+            sb.append(String.format("%-34s %9d %9.1f %7d %9.2f %9.2f %9.2f %9.2f%n", name, h.getTotalCount(),
+                    h.getTotalCount() * 1000.0 / durationMs, r.errors.sum(), ms(h.getValueAtPercentile(50)),
+                    ms(h.getValueAtPercentile(99)), ms(h.getValueAtPercentile(99.9)), ms(h.getMaxValue())));
+        });
+        return sb.toString();
+    }
+
+    private static double ms(long ns) {
+        return ns / 1_000_000.0;
+    }
+}
@@ -0,0 +1,111 @@
+package net.homeblocks.bench;
+
+import net.homeblocks.model.Block;
+import net.homeblocks.model.Link;
+import net.homeblocks.model.Page;
+import net.homeblocks.services.ProfileKey;
+import net.homeblocks.services.SearchIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search queries and re-indexing, against an index of profiles whose words follow a skewed distribution: a few
+ * words appear in most blocks, most words in a handful only.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+    private static final int VOCABULARY = 50_000;
+    private static final int BLOCKS = 5;
+    private static final int LINKS_PER_BLOCK = 6;
+
+    @Param({"10000", "100000"})
+    int profiles;
+
+    private SearchIndex index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        index = new SearchIndex();
+        var random = new Random(42);
+        for (var i = 0; i < profiles; i++) {
+            index.put(new ProfileKey(i, "home"), page(random), 0);
+        }
+    }
+
+    private static String word(Random random) {
+        // Cubing skews towards low ranks
+        var r = random.nextDouble();
+        return "w" + (int) (r * r * r * VOCABULARY);
+    }
+
+    private static String words(Random random, int count) {
+        var sb = new StringBuilder();
+        for (var i = 0; i < count; i++) {
+            sb.append(i == 0 ? "" : " ").append(word(random));
+        }
+        return sb.toString();
+    }
+
+    private static Page page(Random random) {
+        var blocks = new ArrayList<Block>(BLOCKS);
+        blocks.add(Block.emptyMain());
+        for (var b = 1; b < BLOCKS; b++) {
+            var links = new ArrayList<Link>(LINKS_PER_BLOCK);
+            for (var l = 0; l < LINKS_PER_BLOCK; l++) {
+                links.add(new Link(words(random, 3), "https://www.example" + (l % 17) + ".com/" + b + "/" + l,
+                        words(random, 6)));
+            }
+            blocks.add(new Block("links", b, 0, words(random, 2), words(random, 8), links));
+        }
+        return new Page(blocks);
+    }
+
+    @Benchmark
+    public SearchIndex.Results commonTerm() {
+        return index.search("w1", null, 0, 20);
+    }
+
+    @Benchmark
+    public SearchIndex.Results rareTerm() {
+        return index.search("w" + (VOCABULARY - 1 - ThreadLocalRandom.current().nextInt(1000)), null, 0, 20);
+    }
+
+    @Benchmark
+    public SearchIndex.Results multiTerm() {
+        return index.search("w3 w120 w2500", null, 0, 20);
+    }
+
+    @Benchmark
+    public SearchIndex.Results userScoped() {
+        return index.search("w1 w10", ThreadLocalRandom.current().nextInt(profiles), 0, 20);
+    }
+
+    /**
+     * Re-indexes a profile with new content: includes the periodic rebuilds of postings.
+     */
+    @Benchmark
+    public void update() {
+        var random = ThreadLocalRandom.current();
+        index.put(new ProfileKey(random.nextInt(profiles), "home"), page(new Random(random.nextLong())), 0);
+    }
+}
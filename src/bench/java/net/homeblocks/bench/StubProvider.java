@@ -0,0 +1,34 @@
+package net.homeblocks.bench;
+
+import io.vertx.core.Future;
+import io.vertx.ext.auth.User;
+import net.homeblocks.oauth.Provider;
+import net.homeblocks.oauth.UserEnriched;
+
+/**
+ * OAuth provider authenticating anyone, without any remote call: the authorization code is used as the user ID.
+ * The authorization URL points straight to the callback.
+ */
+public class StubProvider extends Provider {
+    public static final String NAME = "stub";
+
+    public StubProvider() {
+        super(NAME, "Stub", "/oauthclbk-" + NAME, null);
+    }
+
+    @Override
+    public String authorizeURL(String state) {
+        return redirectURI + "?state=" + state;
+    }
+
+    @Override
+    public Future<String> getUID(User user) {
+        return Future.succeededFuture(user.subject());
+    }
+
+    @Override
+    public Future<UserEnriched> authenticate(String code) {
+        var user = User.fromName(code);
+        return getUID(user).map(id -> new UserEnriched(user, id));
+    }
+}
@@ -0,0 +1,80 @@
+package net.homeblocks.bench;
+
+import io.vertx.core.Vertx;
+import net.homeblocks.model.UserInfo;
+import net.homeblocks.services.DurableWriter;
+import net.homeblocks.services.FileProfileStore;
+import net.homeblocks.services.PageFormat;
+import net.homeblocks.services.UserService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Users index lookups and creations, against a temporary directory pre-filled with users.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class UserServiceBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    int users;
+
+    private Path root;
+    private Vertx vertx;
+    private DurableWriter writer;
+    private UserService userService;
+    private int nextProvUID;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        root = BenchData.tempDir();
+        BenchData.writeUsers(root, users);
+        vertx = Vertx.vertx();
+        writer = new DurableWriter();
+        userService = new UserService(new FileProfileStore(vertx, writer, root.toString(), PageFormat.JSON));
+        nextProvUID = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        writer.close();
+        vertx.close().toCompletionStage().toCompletableFuture().join();
+        BenchData.delete(root);
+    }
+
+    @Benchmark
+    public UserInfo findByAlias() {
+        return userService.findByAlias("user" + ThreadLocalRandom.current().nextInt(1, users + 1));
+    }
+
+    @Benchmark
+    public UserInfo findOrCreateExisting() {
+        return userService.findOrCreate("github", "gh" + ThreadLocalRandom.current().nextInt(1, users + 1));
+    }
+
+    /**
+     * Creates a new user each time: includes queuing the journal record, and the periodic compactions.
+     */
+    @Benchmark
+    public UserInfo findOrCreateNew() {
+        return userService.findOrCreate("bench", String.valueOf(nextProvUID++));
+    }
+}
@@ -0,0 +1,19 @@
+package net.homeblocks;
+
+import io.vertx.core.VertxOptions;
+import net.homeblocks.server.Server;
+
+/**
+ * Vert.x launcher (used by the fat jar), configuring Vert.x from {@code server.json}.
+ */
+public class Launcher extends io.vertx.core.Launcher {
+
+    public static void main(String[] args) {
+        new Launcher().dispatch(args);
+    }
+
+    @Override
+    public void beforeStartingVertx(VertxOptions options) {
+        Server.vertxOptions(options, Server.loadOptions());
+    }
+}
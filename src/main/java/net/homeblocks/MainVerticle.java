@@ -1,21 +1,104 @@
 package net.homeblocks;
 
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.micrometer.backends.BackendRegistries;
+import net.homeblocks.server.HttpVerticle;
+import net.homeblocks.server.LoginStateStore;
+import net.homeblocks.server.MediaProxy;
 import net.homeblocks.server.Server;
+import net.homeblocks.server.StaticAssets;
+import net.homeblocks.oauth.Provider;
+import net.homeblocks.services.DurableWriter;
+import net.homeblocks.services.LinkChecker;
+import net.homeblocks.services.Metrics;
 import net.homeblocks.services.ProfileService;
+import net.homeblocks.services.ProfileStore;
+import net.homeblocks.services.SearchService;
 import net.homeblocks.services.UserService;
 
+import java.nio.file.Paths;
+
 public class MainVerticle extends AbstractVerticle {
+    private DurableWriter writer;
+    private ProfileStore store;
+    private ProfileService profileService;
+    private SearchService searchService;
+    private LinkChecker linkChecker;
+    private LoginStateStore loginStates;
+    private MediaProxy mediaProxy;
+
     @Override
     public void start(Promise<Void> startPromise) {
-        var userService = new UserService(vertx, Server.FS_ROOT);
-        var profileService = new ProfileService(vertx, userService);
-        Server.start(vertx, userService, profileService, startPromise);
+        var opts = Server.loadOptions();
+        Metrics.init(opts.metricsEnabled() ? BackendRegistries.getDefaultNow() : null);
+        writer = new DurableWriter();
+        store = ProfileStore.open(opts.profileStore(), vertx, writer, Server.FS_ROOT, opts.pageFormat(),
+                opts.storeCacheSizeMb());
+        var userService = new UserService(store);
+        profileService = new ProfileService(vertx, store, opts.pageCacheSize(), opts.pageFlushIntervalMs(),
+                opts.profileListReconcileMs(), opts.historyRevisions());
+        searchService = new SearchService(vertx, store, profileService, writer, Server.FS_ROOT,
+                opts.searchSnapshotIntervalMs());
+        linkChecker = new LinkChecker(vertx, store, profileService, writer, Server.FS_ROOT,
+                opts.linkCheckIntervalMs(), opts.linkCheckConcurrency(), opts.linkCheckHostIntervalMs(),
+                opts.allowPrivateHosts());
+        loginStates = new LoginStateStore(vertx, opts.loginStateTtlMs(), opts.loginStateCapacity());
+        mediaProxy = new MediaProxy(vertx, store, profileService, Paths.get(Server.FS_ROOT, "media-cache"),
+                opts.mediaCacheMaxBytes(), opts.mediaMaxSize(), opts.allowPrivateHosts());
+        var oAuthProviders = Provider.loadProviders(Server.FS_ROOT, vertx);
+        vertx.executeBlocking(() -> new StaticAssets(Paths.get("public"), Paths.get(Server.FS_ROOT, "assets-cache")))
+                .flatMap(staticAssets -> {
+                    var shared = Server.sharedRoutes(vertx, opts, userService, profileService, staticAssets,
+                            oAuthProviders);
+                    return vertx.deployVerticle(
+                            () -> new HttpVerticle(opts, userService, profileService, searchService, loginStates,
+                                    staticAssets, mediaProxy, linkChecker, shared),
+                            new DeploymentOptions()
+                                    .setInstances(opts.httpInstances())
+                                    .setThreadingModel(opts.httpThreadingModel()));
+                })
+                .onSuccess(id -> System.out.println("Deployed " + opts.httpInstances() + " HTTP verticle instance(s), on "
+                        + opts.httpThreadingModel().name().toLowerCase()))
+                .<Void>mapEmpty()
+                .onComplete(startPromise);
+    }
+
+    @Override
+    public void stop() {
+        if (loginStates != null) {
+            System.out.println("Login states stats: " + loginStates.stats());
+            loginStates.close();
+        }
+        if (mediaProxy != null) {
+            mediaProxy.close();
+        }
+        if (profileService != null) {
+            // Persist pending page updates
+            profileService.close();
+        }
+        if (searchService != null) {
+            searchService.close();
+        }
+        if (linkChecker != null) {
+            linkChecker.close();
+        }
+        if (writer != null) {
+            // Wait for queued writes to be durable
+            writer.close();
+            System.out.println("Durable writer stats: " + writer.stats());
+        }
+        if (store != null) {
+            store.close();
+        }
     }
 
     public static void main(String[] args) {
-        Vertx.vertx().deployVerticle(new MainVerticle()).onFailure(Throwable::printStackTrace);
+        var vertx = Vertx.vertx(Server.vertxOptions(new VertxOptions(), Server.loadOptions()));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> vertx.close().toCompletionStage().toCompletableFuture().join()));
+        vertx.deployVerticle(new MainVerticle()).onFailure(Throwable::printStackTrace);
     }
 }
@@ -0,0 +1,103 @@
+package net.homeblocks;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import net.homeblocks.server.Server;
+import net.homeblocks.services.DurableWriter;
+import net.homeblocks.services.PageFormat;
+import net.homeblocks.services.ProfileStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Copies users, profiles and their histories from a {@link ProfileStore} to another, empty one. Run it with the server stopped:
+ * <pre>
+ * java -cp homeblocks-fat.jar net.homeblocks.MigrateStore --from=files --to=mvstore
+ * </pre>
+ * Options, as {@code --name=value}: {@code from} and {@code to} (required), {@code root} (data directory, defaults
+ * to the server's) and {@code pageFormat} (json, format of the written profiles). The source is left untouched;
+ * switch {@code profileStore} in {@code server.json} once done.
+ */
+public class MigrateStore {
+    // Writes in flight, to bound the memory held by the writer's queue
+    private static final int BATCH_SIZE = 1000;
+
+    private final List<Future<Void>> pending = new ArrayList<>();
+
+    public static void main(String[] args) {
+        var options = new HashMap<String, String>();
+        for (var arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+            }
+            var idx = arg.indexOf('=');
+            options.put(arg.substring(2, idx), arg.substring(idx + 1));
+        }
+        var from = options.get("from");
+        var to = options.get("to");
+        if (from == null || to == null || from.equals(to)) {
+            throw new IllegalArgumentException("Expected distinct --from and --to stores (files or mvstore)");
+        }
+        var root = options.getOrDefault("root", Server.FS_ROOT);
+        var format = PageFormat.valueOf(options.getOrDefault("pageFormat", "json").toUpperCase());
+        var vertx = Vertx.vertx();
+        var writer = new DurableWriter();
+        ProfileStore source = null;
+        ProfileStore target = null;
+        try {
+            source = ProfileStore.open(from, vertx, writer, root, format, 256);
+            target = ProfileStore.open(to, vertx, writer, root, format, 256);
+            new MigrateStore().migrate(source, target);
+        } finally {
+            writer.close();
+            if (source != null) {
+                source.close();
+            }
+            if (target != null) {
+                target.close();
+            }
+            vertx.close().toCompletionStage().toCompletableFuture().join();
+        }
+    }
+
+    private void migrate(ProfileStore source, ProfileStore target) {
+        if (!target.loadUsers().isEmpty() || !target.userIDs().isEmpty()) {
+            throw new RuntimeException("Target store is not empty");
+        }
+        var start = System.currentTimeMillis();
+        var users = source.loadUsers();
+        for (var userInfo : users) {
+            submit(target.saveUser(userInfo));
+        }
+        var profiles = 0;
+        for (var userID : source.userIDs()) {
+            for (var profile : source.list(userID)) {
+                var page = source.read(userID, profile);
+                if (page != null) {
+                    submit(target.write(userID, profile, page));
+                    profiles++;
+                }
+                for (var record : source.readHistory(userID, profile)) {
+                    submit(target.appendHistory(userID, profile, record));
+                }
+            }
+        }
+        awaitPending();
+        System.out.println("Migrated " + users.size() + " users and " + profiles + " profiles in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void submit(Future<Void> write) {
+        pending.add(write);
+        if (pending.size() >= BATCH_SIZE) {
+            awaitPending();
+        }
+    }
+
+    private void awaitPending() {
+        Future.all(pending).toCompletionStage().toCompletableFuture().join();
+        pending.clear();
+    }
+}
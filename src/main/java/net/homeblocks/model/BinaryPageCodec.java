@@ -0,0 +1,138 @@
+package net.homeblocks.model;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of pages, for storage. The layout is fixed, so no field name is stored at all:
+ * <pre>
+ * page   := "HBP" version:u8 blockCount:varint block*
+ * block  := type:str posx:zigzag posy:zigzag title:str description:str linkCount:varint link*
+ * link   := title:str url:str description:str
+ * str    := 0 (null) | (byteLength + 1):varint utf8Bytes
+ * </pre>
+ */
+public class BinaryPageCodec {
+    private static final byte[] MAGIC = {'H', 'B', 'P'};
+    private static final byte VERSION = 1;
+
+    private BinaryPageCodec() {
+    }
+
+    public static boolean isBinary(Buffer buffer) {
+        return buffer.length() > MAGIC.length
+                && buffer.getByte(0) == MAGIC[0] && buffer.getByte(1) == MAGIC[1] && buffer.getByte(2) == MAGIC[2];
+    }
+
+    public static Buffer encode(Page page) {
+        var buf = Buffer.buffer(256);
+        buf.appendBytes(MAGIC).appendByte(VERSION);
+        writeVarint(buf, page.getBlocks().size());
+        for (var block : page.getBlocks()) {
+            writeString(buf, block.getType());
+            writeVarint(buf, zigzag(block.getPosx()));
+            writeVarint(buf, zigzag(block.getPosy()));
+            writeString(buf, block.getTitle());
+            writeString(buf, block.getDescription());
+            writeVarint(buf, block.getLinks().size());
+            for (var link : block.getLinks()) {
+                writeString(buf, link.getTitle());
+                writeString(buf, link.getUrl());
+                writeString(buf, link.getDescription());
+            }
+        }
+        return buf;
+    }
+
+    public static Page decode(Buffer buffer) {
+        if (!isBinary(buffer)) {
+            throw new DecodeException("Not a binary page");
+        }
+        if (buffer.getByte(MAGIC.length) != VERSION) {
+            throw new DecodeException("Unsupported binary page version: " + buffer.getByte(MAGIC.length));
+        }
+        try {
+            var reader = new Reader(buffer, MAGIC.length + 1);
+            var blockCount = reader.varint();
+            List<Block> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                var type = reader.string();
+                var posx = unzigzag(reader.varint());
+                var posy = unzigzag(reader.varint());
+                var title = reader.string();
+                var description = reader.string();
+                var linkCount = reader.varint();
+                List<Link> links = new ArrayList<>(linkCount);
+                for (int j = 0; j < linkCount; j++) {
+                    links.add(new Link(reader.string(), reader.string(), reader.string()));
+                }
+                blocks.add(new Block(type, posx, posy, title, description, links));
+            }
+            return new Page(blocks);
+        } catch (IndexOutOfBoundsException e) {
+            throw new DecodeException("Truncated binary page");
+        }
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarint(Buffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.appendByte((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.appendByte((byte) value);
+    }
+
+    private static void writeString(Buffer buf, String s) {
+        if (s == null) {
+            writeVarint(buf, 0);
+            return;
+        }
+        var bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(buf, bytes.length + 1);
+        buf.appendBytes(bytes);
+    }
+
+    private static class Reader {
+        private final Buffer buf;
+        private int pos;
+
+        private Reader(Buffer buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        private int varint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                var b = buf.getByte(pos++);
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new DecodeException("Malformed varint");
+        }
+
+        private String string() {
+            var len = varint();
+            if (len == 0) {
+                return null;
+            }
+            var s = buf.getString(pos, pos + len - 1, "UTF-8");
+            pos += len - 1;
+            return s;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package net.homeblocks.model;
 import io.vertx.core.json.JsonObject;
 
 import java.util.List;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
 public class Block {
@@ -22,6 +23,65 @@ public class Block {
         this.links = links;
     }
 
+    public String getType() {
+        return type;
+    }
+
+    public int getPosx() {
+        return posx;
+    }
+
+    public int getPosy() {
+        return posy;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public List<Link> getLinks() {
+        return links;
+    }
+
+    public Block withPosition(int posx, int posy) {
+        return new Block(type, posx, posy, title, description, links);
+    }
+
+    public Block withTitle(String title) {
+        return new Block(type, posx, posy, title, description, links);
+    }
+
+    public Block withDescription(String description) {
+        return new Block(type, posx, posy, title, description, links);
+    }
+
+    public Block withLinks(List<Link> links) {
+        return new Block(type, posx, posy, title, description, links);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Block)) {
+            return false;
+        }
+        var block = (Block) o;
+        return posx == block.posx && posy == block.posy && Objects.equals(type, block.type)
+                && Objects.equals(title, block.title) && Objects.equals(description, block.description)
+                && Objects.equals(links, block.links);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, posx, posy, title, description, links);
+    }
+
     public JsonObject toJson() {
         return new JsonObject()
                 .put("type", this.type)
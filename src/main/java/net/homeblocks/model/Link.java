@@ -2,6 +2,8 @@ package net.homeblocks.model;
 
 import io.vertx.core.json.JsonObject;
 
+import java.util.Objects;
+
 public class Link {
     private final String title;
     private final String url;
@@ -13,6 +15,36 @@ public class Link {
         this.description = description;
     }
 
+    public String getTitle() {
+        return title;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Link)) {
+            return false;
+        }
+        var link = (Link) o;
+        return Objects.equals(title, link.title) && Objects.equals(url, link.url)
+                && Objects.equals(description, link.description);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(title, url, description);
+    }
+
     public JsonObject toJson() {
         return new JsonObject().put("title", this.title).put("url", this.url).put("description", this.description);
     }
@@ -12,6 +12,10 @@ public class Page {
         this.blocks = blocks;
     }
 
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
     public JsonObject toJson() {
         return new JsonObject()
                 .put("blocks", this.blocks.stream().map(Block::toJson).collect(Collectors.toList()));
@@ -0,0 +1,240 @@
+package net.homeblocks.model;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming JSON codec for pages: reads and writes bytes directly, without building intermediate JsonObject trees.
+ * The output is byte-for-byte the same as {@code page.toJson().toBuffer()}.
+ */
+public class PageCodec {
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private PageCodec() {
+    }
+
+    /**
+     * Runs a generator writing into a new buffer.
+     */
+    public static Buffer generate(GeneratorWriter writer) {
+        var buf = Buffer.buffer();
+        try (var gen = FACTORY.createGenerator(new BufferOutputStream(buf))) {
+            writer.write(gen);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buf;
+    }
+
+    @FunctionalInterface
+    public interface GeneratorWriter {
+        void write(JsonGenerator gen) throws IOException;
+    }
+
+    public static Buffer encode(Page page) {
+        return generate(gen -> write(gen, page));
+    }
+
+    public static void write(JsonGenerator gen, Page page) throws IOException {
+        gen.writeStartObject();
+        gen.writeArrayFieldStart("blocks");
+        for (var block : page.getBlocks()) {
+            write(gen, block);
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+    }
+
+    private static void write(JsonGenerator gen, Block block) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("type", block.getType());
+        gen.writeNumberField("posx", block.getPosx());
+        gen.writeNumberField("posy", block.getPosy());
+        gen.writeStringField("title", block.getTitle());
+        gen.writeStringField("description", block.getDescription());
+        gen.writeArrayFieldStart("links");
+        for (var link : block.getLinks()) {
+            gen.writeStartObject();
+            gen.writeStringField("title", link.getTitle());
+            gen.writeStringField("url", link.getUrl());
+            gen.writeStringField("description", link.getDescription());
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+    }
+
+    public static Page decode(Buffer buffer) {
+        try (var parser = FACTORY.createParser(new BufferInputStream(buffer))) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            var page = readPage(parser);
+            if (parser.nextToken() != null) {
+                throw new DecodeException("Unexpected content after page");
+            }
+            return page;
+        } catch (IOException e) {
+            throw new DecodeException("Failed to decode page: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads a page object, the parser being positioned on its START_OBJECT.
+     */
+    public static Page readPage(JsonParser parser) throws IOException {
+        List<Block> blocks = List.of();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.getCurrentName();
+            var token = parser.nextToken();
+            if ("blocks".equals(field) && token != JsonToken.VALUE_NULL) {
+                expect(parser, token, JsonToken.START_ARRAY);
+                blocks = new ArrayList<>();
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    expect(parser, token, JsonToken.START_OBJECT);
+                    blocks.add(readBlock(parser));
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new Page(blocks);
+    }
+
+    private static Block readBlock(JsonParser parser) throws IOException {
+        String type = null, title = null, description = null;
+        int posx = 0, posy = 0;
+        List<Link> links = List.of();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.getCurrentName();
+            var token = parser.nextToken();
+            switch (field) {
+                case "type" -> type = string(parser, token);
+                case "posx" -> posx = integer(parser, token);
+                case "posy" -> posy = integer(parser, token);
+                case "title" -> title = string(parser, token);
+                case "description" -> description = string(parser, token);
+                case "links" -> {
+                    if (token != JsonToken.VALUE_NULL) {
+                        expect(parser, token, JsonToken.START_ARRAY);
+                        links = new ArrayList<>();
+                        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                            expect(parser, token, JsonToken.START_OBJECT);
+                            links.add(readLink(parser));
+                        }
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+        return new Block(type, posx, posy, title, description, links);
+    }
+
+    private static Link readLink(JsonParser parser) throws IOException {
+        String title = null, url = null, description = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.getCurrentName();
+            var token = parser.nextToken();
+            switch (field) {
+                case "title" -> title = string(parser, token);
+                case "url" -> url = string(parser, token);
+                case "description" -> description = string(parser, token);
+                default -> parser.skipChildren();
+            }
+        }
+        return new Link(title, url, description);
+    }
+
+    private static String string(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        expect(parser, token, JsonToken.VALUE_STRING);
+        return parser.getText();
+    }
+
+    private static int integer(JsonParser parser, JsonToken token) throws IOException {
+        if (token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) {
+            throw new DecodeException("Expected number at " + parser.getCurrentLocation() + ", got " + token);
+        }
+        return parser.getIntValue();
+    }
+
+    private static String location(JsonParser parser) {
+        var loc = parser.getTokenLocation();
+        return "line " + loc.getLineNr() + ", column " + loc.getColumnNr();
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) {
+        if (actual != expected) {
+            throw new DecodeException("Expected " + expected + " at " + location(parser) + ", got " + actual);
+        }
+    }
+
+    /**
+     * Appends to a buffer. Jackson buffers its output, so this gets chunks rather than single bytes.
+     */
+    private static class BufferOutputStream extends OutputStream {
+        private final Buffer buffer;
+
+        BufferOutputStream(Buffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.appendByte((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.appendBytes(b, off, len);
+        }
+    }
+
+    /**
+     * Reads a buffer in place, without copying it whole first.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final Buffer buffer;
+        private int pos = 0;
+
+        BufferInputStream(Buffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return pos < buffer.length() ? buffer.getByte(pos++) & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            var remaining = buffer.length() - pos;
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            var n = Math.min(len, remaining);
+            buffer.getBytes(pos, pos + n, b, off);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.length() - pos;
+        }
+    }
+}
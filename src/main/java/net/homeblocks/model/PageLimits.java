@@ -0,0 +1,32 @@
+package net.homeblocks.model;
+
+/**
+ * Maximum size of a page, as a number of blocks and a total number of links.
+ */
+public record PageLimits(int maxBlocks, int maxLinks) {
+
+    public static class ExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ExceededException(String message) {
+            super(message);
+        }
+    }
+
+    public void checkBlocks(int blocks) {
+        if (blocks > maxBlocks) {
+            throw new ExceededException("Too many blocks, at most " + maxBlocks + " are allowed");
+        }
+    }
+
+    public void checkLinks(int links) {
+        if (links > maxLinks) {
+            throw new ExceededException("Too many links, at most " + maxLinks + " are allowed");
+        }
+    }
+
+    public void check(Page page) {
+        checkBlocks(page.getBlocks().size());
+        checkLinks(page.getBlocks().stream().mapToInt(b -> b.getLinks().size()).sum());
+    }
+}
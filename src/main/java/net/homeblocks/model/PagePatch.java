@@ -0,0 +1,215 @@
+package net.homeblocks.model;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Applies block-level operations to a page. Blocks and links are addressed by their index, as seen by the client
+ * before the operation. Supported operations:
+ * <ul>
+ *     <li>{"op": "addBlock", "block": {...}, "index": 2}: index is optional, the block is appended by default</li>
+ *     <li>{"op": "setBlock", "block": 2, "value": {...}}</li>
+ *     <li>{"op": "removeBlock", "block": 2}</li>
+ *     <li>{"op": "moveBlock", "block": 2, "posx": 1, "posy": -1}</li>
+ *     <li>{"op": "setField", "block": 2, "field": "title"|"description", "value": "..."}</li>
+ *     <li>{"op": "addLink", "block": 2, "link": {...}}</li>
+ *     <li>{"op": "setLink", "block": 2, "index": 0, "link": {...}}</li>
+ *     <li>{"op": "removeLink", "block": 2, "index": 0}</li>
+ *     <li>{"op": "moveLink", "block": 2, "index": 1, "to": 0}</li>
+ * </ul>
+ */
+public class PagePatch {
+    private PagePatch() {
+    }
+
+    /**
+     * Returns a new page with all operations applied, in order.
+     *
+     * @throws IllegalArgumentException if any operation is invalid; in that case nothing is applied
+     */
+    public static Page apply(Page page, JsonArray ops) {
+        var blocks = new ArrayList<>(page.getBlocks());
+        for (var o : ops) {
+            if (!(o instanceof JsonObject)) {
+                throw new IllegalArgumentException("Expected JsonObject in List");
+            }
+            try {
+                applyOne(blocks, (JsonObject) o);
+            } catch (ClassCastException | NullPointerException e) {
+                throw new IllegalArgumentException("Invalid operation: " + o, e);
+            }
+        }
+        return new Page(blocks);
+    }
+
+    /**
+     * Returns operations turning a page into another. Blocks are compared by index, past their common first and last
+     * ones, so that adding or removing a block in the middle takes a single operation; a block changed in place takes
+     * a move or field operations when that's all that changed, or is replaced as a whole otherwise.
+     */
+    public static JsonArray diff(Page from, Page to) {
+        var ops = new JsonArray();
+        var before = from.getBlocks();
+        var after = to.getBlocks();
+        var prefix = 0;
+        while (prefix < before.size() && prefix < after.size() && before.get(prefix).equals(after.get(prefix))) {
+            prefix++;
+        }
+        var suffix = 0;
+        while (suffix < before.size() - prefix && suffix < after.size() - prefix
+                && before.get(before.size() - 1 - suffix).equals(after.get(after.size() - 1 - suffix))) {
+            suffix++;
+        }
+        var changedBefore = before.size() - prefix - suffix;
+        var changedAfter = after.size() - prefix - suffix;
+        for (var i = prefix; i < prefix + Math.min(changedBefore, changedAfter); i++) {
+            diffBlock(ops, i, before.get(i), after.get(i));
+        }
+        // Removed from the last, so that indexes of the remaining ones hold
+        for (var i = prefix + changedBefore - 1; i >= prefix + changedAfter; i--) {
+            ops.add(new JsonObject().put("op", "removeBlock").put("block", i));
+        }
+        for (var i = prefix + changedBefore; i < prefix + changedAfter; i++) {
+            ops.add(new JsonObject().put("op", "addBlock").put("block", after.get(i).toJson()).put("index", i));
+        }
+        return ops;
+    }
+
+    private static void diffBlock(JsonArray ops, int idx, Block before, Block after) {
+        if (before.equals(after)) {
+            return;
+        }
+        if (!Objects.equals(before.getType(), after.getType()) || !before.getLinks().equals(after.getLinks())) {
+            ops.add(new JsonObject().put("op", "setBlock").put("block", idx).put("value", after.toJson()));
+            return;
+        }
+        if (before.getPosx() != after.getPosx() || before.getPosy() != after.getPosy()) {
+            ops.add(new JsonObject().put("op", "moveBlock").put("block", idx)
+                    .put("posx", after.getPosx()).put("posy", after.getPosy()));
+        }
+        if (!Objects.equals(before.getTitle(), after.getTitle())) {
+            ops.add(new JsonObject().put("op", "setField").put("block", idx).put("field", "title")
+                    .put("value", after.getTitle()));
+        }
+        if (!Objects.equals(before.getDescription(), after.getDescription())) {
+            ops.add(new JsonObject().put("op", "setField").put("block", idx).put("field", "description")
+                    .put("value", after.getDescription()));
+        }
+    }
+
+    private static void applyOne(List<Block> blocks, JsonObject op) {
+        var name = op.getString("op");
+        if (name == null) {
+            throw new IllegalArgumentException("Missing 'op'");
+        }
+        switch (name) {
+            case "addBlock": {
+                var block = Block.fromJson(object(op, "block"));
+                if (op.containsKey("index")) {
+                    var idx = integer(op, "index");
+                    if (idx < 0 || idx > blocks.size()) {
+                        throw new IllegalArgumentException("Invalid block index: " + idx);
+                    }
+                    blocks.add(idx, block);
+                } else {
+                    blocks.add(block);
+                }
+                return;
+            }
+            case "setBlock":
+                blocks.set(blockIndex(blocks, op), Block.fromJson(object(op, "value")));
+                return;
+            case "removeBlock":
+                blocks.remove(blockIndex(blocks, op));
+                return;
+            case "moveBlock": {
+                var idx = blockIndex(blocks, op);
+                blocks.set(idx, blocks.get(idx).withPosition(integer(op, "posx"), integer(op, "posy")));
+                return;
+            }
+            case "setField": {
+                var idx = blockIndex(blocks, op);
+                var field = op.getString("field");
+                var value = op.getString("value");
+                if ("title".equals(field)) {
+                    blocks.set(idx, blocks.get(idx).withTitle(value));
+                } else if ("description".equals(field)) {
+                    blocks.set(idx, blocks.get(idx).withDescription(value));
+                } else {
+                    throw new IllegalArgumentException("Unsupported field: " + field);
+                }
+                return;
+            }
+            case "addLink":
+            case "setLink":
+            case "removeLink":
+            case "moveLink": {
+                var idx = blockIndex(blocks, op);
+                var block = blocks.get(idx);
+                var links = new ArrayList<>(block.getLinks());
+                applyLinkOp(name, links, op);
+                blocks.set(idx, block.withLinks(links));
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation: " + name);
+    }
+
+    private static void applyLinkOp(String name, List<Link> links, JsonObject op) {
+        switch (name) {
+            case "addLink":
+                links.add(Link.fromJson(object(op, "link")));
+                return;
+            case "setLink":
+                links.set(linkIndex(links, op, "index"), Link.fromJson(object(op, "link")));
+                return;
+            case "removeLink":
+                links.remove(linkIndex(links, op, "index"));
+                return;
+            case "moveLink": {
+                var link = links.remove(linkIndex(links, op, "index"));
+                var to = integer(op, "to");
+                if (to < 0 || to > links.size()) {
+                    throw new IllegalArgumentException("Invalid link index: " + to);
+                }
+                links.add(to, link);
+            }
+        }
+    }
+
+    private static int blockIndex(List<Block> blocks, JsonObject op) {
+        var idx = integer(op, "block");
+        if (idx < 0 || idx >= blocks.size()) {
+            throw new IllegalArgumentException("Invalid block index: " + idx);
+        }
+        return idx;
+    }
+
+    private static int linkIndex(List<Link> links, JsonObject op, String key) {
+        var idx = integer(op, key);
+        if (idx < 0 || idx >= links.size()) {
+            throw new IllegalArgumentException("Invalid link index: " + idx);
+        }
+        return idx;
+    }
+
+    private static int integer(JsonObject op, String key) {
+        var value = op.getValue(key);
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException("Expected number for '" + key + "'");
+        }
+        return ((Number) value).intValue();
+    }
+
+    private static JsonObject object(JsonObject op, String key) {
+        var value = op.getValue(key);
+        if (!(value instanceof JsonObject)) {
+            throw new IllegalArgumentException("Expected object for '" + key + "'");
+        }
+        return (JsonObject) value;
+    }
+}
@@ -0,0 +1,214 @@
+package net.homeblocks.model;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes a JSON page incrementally, as chunks of a request body arrive, so that the body is never held in memory.
+ * Same format as {@link PageCodec}. Limits are enforced as soon as they're exceeded, before the rest is read.
+ */
+public class PageStreamDecoder {
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private enum Context {ROOT, PAGE, BLOCKS, BLOCK, LINKS, LINK, DONE}
+
+    private final PageLimits limits;
+    private final JsonParser parser;
+    private final ByteArrayFeeder feeder;
+    private Context context = Context.ROOT;
+    // Depth of the unknown value being skipped, if any
+    private int skipDepth = 0;
+    private String field;
+    private List<Block> blocks = List.of();
+    private int blockCount = 0;
+    private int linkCount = 0;
+    // Block being read
+    private String type, title, description;
+    private int posx, posy;
+    private List<Link> links;
+    // Link being read
+    private String linkTitle, linkUrl, linkDescription;
+
+    public PageStreamDecoder(PageLimits limits) {
+        this.limits = limits;
+        try {
+            this.parser = FACTORY.createNonBlockingByteArrayParser();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+    }
+
+    /**
+     * Parses a chunk of input.
+     *
+     * @throws DecodeException if the input is not a valid page
+     * @throws PageLimits.ExceededException if the page is too large
+     */
+    public void feed(Buffer chunk) {
+        var bytes = chunk.getBytes();
+        try {
+            feeder.feedInput(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            throw new DecodeException("Failed to decode page: " + e.getMessage(), e);
+        }
+        process();
+    }
+
+    /**
+     * Signals the end of input, and returns the page.
+     */
+    public Page end() {
+        feeder.endOfInput();
+        process();
+        if (context != Context.DONE) {
+            throw new DecodeException("Unexpected end of page");
+        }
+        return new Page(blocks);
+    }
+
+    private void process() {
+        try {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                handle(token);
+            }
+        } catch (IOException e) {
+            throw new DecodeException("Failed to decode page: " + e.getMessage(), e);
+        }
+    }
+
+    private void handle(JsonToken token) throws IOException {
+        if (skipDepth > 0) {
+            if (token.isStructStart()) {
+                skipDepth++;
+            } else if (token.isStructEnd()) {
+                skipDepth--;
+            }
+            return;
+        }
+        if (token == JsonToken.FIELD_NAME) {
+            field = parser.getCurrentName();
+            return;
+        }
+        switch (context) {
+            case ROOT -> {
+                expect(token, JsonToken.START_OBJECT);
+                context = Context.PAGE;
+            }
+            case PAGE -> {
+                if (token == JsonToken.END_OBJECT) {
+                    context = Context.DONE;
+                } else if ("blocks".equals(field) && token != JsonToken.VALUE_NULL) {
+                    expect(token, JsonToken.START_ARRAY);
+                    blocks = new ArrayList<>();
+                    context = Context.BLOCKS;
+                } else if ("blocks".equals(field)) {
+                    blocks = List.of();
+                } else {
+                    skip(token);
+                }
+            }
+            case BLOCKS -> {
+                if (token == JsonToken.END_ARRAY) {
+                    context = Context.PAGE;
+                } else {
+                    expect(token, JsonToken.START_OBJECT);
+                    limits.checkBlocks(++blockCount);
+                    type = title = description = null;
+                    posx = posy = 0;
+                    links = List.of();
+                    context = Context.BLOCK;
+                }
+            }
+            case BLOCK -> {
+                if (token == JsonToken.END_OBJECT) {
+                    blocks.add(new Block(type, posx, posy, title, description, links));
+                    context = Context.BLOCKS;
+                    return;
+                }
+                switch (field) {
+                    case "type" -> type = string(token);
+                    case "posx" -> posx = integer(token);
+                    case "posy" -> posy = integer(token);
+                    case "title" -> title = string(token);
+                    case "description" -> description = string(token);
+                    case "links" -> {
+                        if (token != JsonToken.VALUE_NULL) {
+                            expect(token, JsonToken.START_ARRAY);
+                            links = new ArrayList<>();
+                            context = Context.LINKS;
+                        } else {
+                            links = List.of();
+                        }
+                    }
+                    default -> skip(token);
+                }
+            }
+            case LINKS -> {
+                if (token == JsonToken.END_ARRAY) {
+                    context = Context.BLOCK;
+                } else {
+                    expect(token, JsonToken.START_OBJECT);
+                    limits.checkLinks(++linkCount);
+                    linkTitle = linkUrl = linkDescription = null;
+                    context = Context.LINK;
+                }
+            }
+            case LINK -> {
+                if (token == JsonToken.END_OBJECT) {
+                    links.add(new Link(linkTitle, linkUrl, linkDescription));
+                    context = Context.LINKS;
+                    return;
+                }
+                switch (field) {
+                    case "title" -> linkTitle = string(token);
+                    case "url" -> linkUrl = string(token);
+                    case "description" -> linkDescription = string(token);
+                    default -> skip(token);
+                }
+            }
+            case DONE -> throw new DecodeException("Unexpected content after page");
+        }
+    }
+
+    private void skip(JsonToken token) {
+        if (token.isStructStart()) {
+            skipDepth = 1;
+        }
+    }
+
+    private String string(JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        expect(token, JsonToken.VALUE_STRING);
+        return parser.getText();
+    }
+
+    private int integer(JsonToken token) throws IOException {
+        if (token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) {
+            throw new DecodeException("Expected number at " + location() + ", got " + token);
+        }
+        return parser.getIntValue();
+    }
+
+    private String location() {
+        var loc = parser.getTokenLocation();
+        return "line " + loc.getLineNr() + ", column " + loc.getColumnNr();
+    }
+
+    private void expect(JsonToken actual, JsonToken expected) {
+        if (actual != expected) {
+            throw new DecodeException("Expected " + expected + " at " + location() + ", got " + actual);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package net.homeblocks.model;
 
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonObject;
 
 import java.util.List;
@@ -36,20 +37,39 @@ public class Profiles {
         return new JsonObject().put("title", "login").put("page", page.toJson());
     }
 
-    public static JsonObject user(String refUser, List<String> profiles, String logged) {
-        var page = new Page(List.of(
+    public static Page userPage(String refUser, List<String> profiles) {
+        return new Page(List.of(
             Block.emptyMain(),
             new Block("links", 1, 0, "Profiles", "", profiles.stream().map(
                     p -> new Link(p, "#/u/" + refUser + "/" + p, "")
             ).collect(Collectors.toList()))
         ));
+    }
+
+    public static JsonObject user(String refUser, List<String> profiles, String logged) {
         return new JsonObject()
                 .put("title", refUser + "'s place")
-                .put("page", page.toJson())
+                .put("page", userPage(refUser, profiles).toJson())
                 .put("refUser", refUser)
                 .put("logged", logged);
     }
 
+    /**
+     * Same content as {@link #page}, streamed to bytes.
+     */
+    public static Buffer encodedPage(String refUser, String profile, Page page, String logged) {
+        return PageCodec.generate(gen -> {
+            gen.writeStartObject();
+            gen.writeStringField("title", refUser + "'s " + profile);
+            gen.writeFieldName("page");
+            PageCodec.write(gen, page);
+            gen.writeStringField("refUser", refUser);
+            gen.writeStringField("profile", profile);
+            gen.writeStringField("logged", logged);
+            gen.writeEndObject();
+        });
+    }
+
     public static JsonObject page(String refUser, String profile, Page page, String logged) {
         return new JsonObject()
                 .put("title", refUser + "'s " + profile)
@@ -0,0 +1,186 @@
+package net.homeblocks.server;
+
+import io.vertx.core.http.Cookie;
+import io.vertx.core.http.CookieSameSite;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Stateless sessions: the logged user is kept in a cookie, encrypted and authenticated with AES-GCM, and so is a
+ * pending login, in another cookie, until the provider calls back. Nothing is stored server-side, so anonymous
+ * visitors cost nothing and any process sharing the secret can serve any request, including a login started on
+ * another process.
+ */
+public class CookieUserSessions implements UserSessions {
+    private static final String COOKIE_NAME = "hb-session";
+    private static final String LOGIN_COOKIE_NAME = "hb-login";
+    private static final String CTX_KEY = "hb-user";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private final SecretKeySpec key;
+    private final long maxAgeSeconds;
+    private final long loginStateTtlMs;
+    private final boolean secure;
+    private final SecureRandom random = new SecureRandom();
+
+    public CookieUserSessions(String secret, long maxAgeSeconds, long loginStateTtlMs, boolean secure) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+            this.key = new SecretKeySpec(digest, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        this.maxAgeSeconds = maxAgeSeconds;
+        this.loginStateTtlMs = loginStateTtlMs;
+        this.secure = secure;
+    }
+
+    @Override
+    public void install(Router router) {
+        // Nothing to install: cookies are read on demand
+    }
+
+    @Override
+    public HttpUser get(RoutingContext ctx) {
+        if (ctx.data().containsKey(CTX_KEY)) {
+            return ctx.get(CTX_KEY);
+        }
+        HttpUser user = null;
+        var cookie = ctx.request().getCookie(COOKIE_NAME);
+        if (cookie != null) {
+            user = decode(cookie.getValue());
+        }
+        ctx.put(CTX_KEY, user);
+        return user;
+    }
+
+    @Override
+    public void put(RoutingContext ctx, HttpUser user) {
+        ctx.put(CTX_KEY, user);
+        ctx.response().addCookie(cookie(COOKIE_NAME, encode(user), maxAgeSeconds));
+    }
+
+    @Override
+    public void remove(RoutingContext ctx) {
+        ctx.put(CTX_KEY, null);
+        // Overwrites the browser's cookie: removeCookie only drops the ones set by this response
+        ctx.response().addCookie(cookie(COOKIE_NAME, "", 0));
+    }
+
+    @Override
+    public String newLoginState(RoutingContext ctx, JsonObject json) {
+        var state = UUID.randomUUID().toString();
+        var login = new JsonObject()
+                .put("state", state)
+                .put("json", json)
+                .put("expiresAt", System.currentTimeMillis() + loginStateTtlMs);
+        // A new login replaces the pending one, if any
+        ctx.response().addCookie(cookie(LOGIN_COOKIE_NAME, seal(login), Math.max(1, loginStateTtlMs / 1000)));
+        return state;
+    }
+
+    @Override
+    public boolean isValidLoginState(RoutingContext ctx, String state) {
+        return loginState(ctx, state) != null;
+    }
+
+    @Override
+    public JsonObject popLoginState(RoutingContext ctx, String state) {
+        var login = loginState(ctx, state);
+        if (login == null) {
+            return null;
+        }
+        ctx.response().addCookie(cookie(LOGIN_COOKIE_NAME, "", 0));
+        return login.getJsonObject("json");
+    }
+
+    private JsonObject loginState(RoutingContext ctx, String state) {
+        var cookie = ctx.request().getCookie(LOGIN_COOKIE_NAME);
+        if (cookie == null || state == null) {
+            return null;
+        }
+        var login = unseal(cookie.getValue());
+        if (login == null || !state.equals(login.getString("state"))
+                || login.getLong("expiresAt", 0L) <= System.currentTimeMillis()) {
+            return null;
+        }
+        return login;
+    }
+
+    private Cookie cookie(String name, String value, long maxAgeSeconds) {
+        return Cookie.cookie(name, value)
+                .setPath("/")
+                .setMaxAge(maxAgeSeconds)
+                .setHttpOnly(true)
+                .setSecure(secure)
+                .setSameSite(CookieSameSite.LAX);
+    }
+
+    private String encode(HttpUser user) {
+        return seal(new JsonObject()
+                .put("user", user.toJson())
+                .put("issuedAt", System.currentTimeMillis()));
+    }
+
+    private HttpUser decode(String value) {
+        var payload = unseal(value);
+        if (payload == null) {
+            return null;
+        }
+        try {
+            if (payload.getLong("issuedAt") + maxAgeSeconds * 1000 < System.currentTimeMillis()) {
+                return null;
+            }
+            return HttpUser.fromJson(payload.getJsonObject("user"));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private String seal(JsonObject json) {
+        var payload = json.toBuffer().getBytes();
+        try {
+            var iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            var cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            var encrypted = cipher.doFinal(payload);
+            var out = ByteBuffer.allocate(IV_LENGTH + encrypted.length).put(iv).put(encrypted);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(out.array());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the sealed JSON object, or null if the value wasn't sealed with this secret.
+     */
+    private JsonObject unseal(String value) {
+        try {
+            var bytes = Base64.getUrlDecoder().decode(value);
+            if (bytes.length <= IV_LENGTH) {
+                return null;
+            }
+            var cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, bytes, 0, IV_LENGTH));
+            return new JsonObject(new String(cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH),
+                    StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException | RuntimeException e) {
+            // Tampered, truncated, or signed with another secret
+            return null;
+        }
+    }
+}
@@ -1,6 +1,38 @@
 package net.homeblocks.server;
 
+import io.vertx.core.json.JsonObject;
 import io.vertx.ext.auth.User;
 import net.homeblocks.model.UserInfo;
 
-public record HttpUser(User oAuthUser, UserInfo userInfo, String stateToken) {}
+/**
+ * What a session needs to know about the logged user. Kept small and serializable, so it can live in a cookie.
+ */
+public record HttpUser(UserInfo userInfo, long expiresAt, String stateToken) {
+
+    public static HttpUser fromOAuth(User oAuthUser, UserInfo userInfo, String stateToken) {
+        var exp = oAuthUser.containsKey("exp") ? oAuthUser.get("exp") : null;
+        // Tokens without expiry (such as GitHub's) are valid until revoked
+        var expiresAt = exp instanceof Number ? ((Number) exp).longValue() * 1000 : Long.MAX_VALUE;
+        return new HttpUser(userInfo, expiresAt, stateToken);
+    }
+
+    public boolean expired() {
+        return System.currentTimeMillis() >= expiresAt;
+    }
+
+    public HttpUser withUserInfo(UserInfo newUserInfo) {
+        return new HttpUser(newUserInfo, expiresAt, stateToken);
+    }
+
+    public JsonObject toJson() {
+        return new JsonObject()
+                .put("userInfo", userInfo.toJson())
+                .put("expiresAt", expiresAt)
+                .put("stateToken", stateToken);
+    }
+
+    public static HttpUser fromJson(JsonObject json) {
+        return new HttpUser(UserInfo.fromJson(json.getJsonObject("userInfo")), json.getLong("expiresAt"),
+                json.getString("stateToken"));
+    }
+}
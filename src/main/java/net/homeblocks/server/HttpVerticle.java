@@ -0,0 +1,44 @@
+package net.homeblocks.server;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Promise;
+import net.homeblocks.services.LinkChecker;
+import net.homeblocks.services.ProfileService;
+import net.homeblocks.services.SearchService;
+import net.homeblocks.services.UserService;
+
+/**
+ * Serves the HTTP routes. Several instances may be deployed, each on its own event loop, sharing the server ports
+ * as well as the services, the pending login states, and the response caches and live update subscribers.
+ */
+public class HttpVerticle extends AbstractVerticle {
+    private final ServerOptions opts;
+    private final UserService userService;
+    private final ProfileService profileService;
+    private final SearchService searchService;
+    private final LoginStateStore loginStates;
+    private final StaticAssets staticAssets;
+    private final MediaProxy mediaProxy;
+    private final LinkChecker linkChecker;
+    private final Server.SharedRoutes shared;
+
+    public HttpVerticle(ServerOptions opts, UserService userService, ProfileService profileService,
+                        SearchService searchService, LoginStateStore loginStates, StaticAssets staticAssets,
+                        MediaProxy mediaProxy, LinkChecker linkChecker, Server.SharedRoutes shared) {
+        this.opts = opts;
+        this.userService = userService;
+        this.profileService = profileService;
+        this.searchService = searchService;
+        this.loginStates = loginStates;
+        this.staticAssets = staticAssets;
+        this.mediaProxy = mediaProxy;
+        this.linkChecker = linkChecker;
+        this.shared = shared;
+    }
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        Server.start(vertx, opts, userService, profileService, searchService, loginStates, staticAssets, mediaProxy,
+                linkChecker, shared, startPromise);
+    }
+}
@@ -0,0 +1,166 @@
+package net.homeblocks.server;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+import net.homeblocks.model.Page;
+import net.homeblocks.services.Metrics;
+import net.homeblocks.services.ProfileListener;
+import net.homeblocks.services.ProfileService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes profile changes to the browsers showing them, as server-sent events. A single instance is shared by the
+ * HTTP verticles: it hears about changes right from the profile service, and hands each subscriber its events on the
+ * context that serves its connection, so that it doesn't matter which instance served the change.
+ * <p>
+ * Events only carry the new version of the profile, along with the boot stamp, as versions restart on each boot:
+ * clients fetch the profile again, which is served from the page cache and answered with 304 if they already have
+ * it. An idle subscriber costs its connection and an entry in a map: there is no per-subscriber timer, a single
+ * periodic heartbeat keeps connections open through proxies, and detects dead ones. A subscriber that doesn't read fast enough gets no more events until its connection drains,
+ * then the latest version only; it is disconnected if it doesn't drain within two heartbeats.
+ */
+public class LiveUpdates {
+    private final ProfileService profileService;
+    private final long heartbeatMs;
+    // Profile key -> subscribers, from any HTTP verticle
+    private final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    private static class Subscriber {
+        private final Context context;
+        private final HttpServerResponse response;
+        // Only touched from the subscriber's context
+        private long laggingSince;
+        private long pendingVersion;
+
+        Subscriber(Context context, HttpServerResponse response) {
+            this.context = context;
+            this.response = response;
+        }
+    }
+
+    /**
+     * Created once, whatever the number of HTTP verticles.
+     *
+     * @param heartbeatMs interval between heartbeats, which also bounds how long a slow subscriber is kept
+     */
+    public LiveUpdates(Vertx vertx, ProfileService profileService, long heartbeatMs) {
+        this.profileService = profileService;
+        this.heartbeatMs = heartbeatMs;
+        Metrics.gauge("homeblocks.live.subscribers", count::get);
+        profileService.addListener(new ProfileListener() {
+            @Override
+            public void profileUpdated(int userID, String profile, Page page) {
+                // Called while the change is being made: the version is this change's
+                var version = profileService.version(userID, profile);
+                if (version != null) {
+                    changed(key(userID, profile), version);
+                }
+            }
+        });
+        vertx.setPeriodic(heartbeatMs, id -> heartbeat());
+    }
+
+    private static String key(int userID, String profile) {
+        return userID + "/" + profile;
+    }
+
+    /**
+     * Turns the request into an event stream of the profile's versions, starting with the current one.
+     */
+    public void subscribe(RoutingContext ctx, int userID, String profile, long version) {
+        var key = key(userID, profile);
+        var response = ctx.response();
+        response.setChunked(true)
+                .putHeader(HttpHeaders.CONTENT_TYPE, "text/event-stream")
+                .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache")
+                // Keeps reverse proxies from buffering events
+                .putHeader("X-Accel-Buffering", "no");
+        var subscriber = new Subscriber(Vertx.currentContext(), response);
+        // Added and removed atomically with their set, so that none is added to a set being dropped
+        subscribers.compute(key, (k, set) -> {
+            var added = set != null ? set : ConcurrentHashMap.<Subscriber>newKeySet();
+            added.add(subscriber);
+            return added;
+        });
+        count.incrementAndGet();
+        response.closeHandler(v -> unsubscribe(key, subscriber));
+        response.exceptionHandler(t -> unsubscribe(key, subscriber));
+        // Browsers reconnect by themselves, after that delay
+        response.write("retry: " + heartbeatMs + "\n\n");
+        // Changes made from other event loops since the version was read went to the subscribers before this one
+        var current = profileService.version(userID, profile);
+        send(subscriber, current != null ? Math.max(version, current) : version);
+    }
+
+    private void unsubscribe(String key, Subscriber subscriber) {
+        var removed = new boolean[]{false};
+        subscribers.computeIfPresent(key, (k, set) -> {
+            removed[0] = set.remove(subscriber);
+            return set.isEmpty() ? null : set;
+        });
+        if (removed[0]) {
+            count.decrementAndGet();
+        }
+    }
+
+    private void changed(String key, long version) {
+        var set = subscribers.get(key);
+        if (set != null) {
+            for (var subscriber : set) {
+                subscriber.context.runOnContext(v -> send(subscriber, version));
+            }
+        }
+    }
+
+    private void send(Subscriber subscriber, long version) {
+        if (subscriber.laggingSince > 0) {
+            subscriber.pendingVersion = Math.max(subscriber.pendingVersion, version);
+            return;
+        }
+        var response = subscriber.response;
+        response.write("data: {\"stamp\":\"" + Routes.BOOT_STAMP + "\",\"version\":" + version + "}\n\n");
+        if (response.writeQueueFull()) {
+            subscriber.laggingSince = System.currentTimeMillis();
+            response.drainHandler(v -> {
+                response.drainHandler(null);
+                subscriber.laggingSince = 0;
+                if (subscriber.pendingVersion > 0) {
+                    var pending = subscriber.pendingVersion;
+                    subscriber.pendingVersion = 0;
+                    send(subscriber, pending);
+                }
+            });
+        }
+    }
+
+    private void heartbeat() {
+        var now = System.currentTimeMillis();
+        // One task per context rather than per subscriber. Copied, as failed writes and resets may unsubscribe
+        // right away.
+        Map<Context, List<Subscriber>> byContext = new HashMap<>();
+        subscribers.values().forEach(set -> set.forEach(subscriber ->
+                byContext.computeIfAbsent(subscriber.context, c -> new ArrayList<>()).add(subscriber)));
+        byContext.forEach((context, list) -> context.runOnContext(v -> list.forEach(subscriber -> beat(subscriber, now))));
+    }
+
+    private void beat(Subscriber subscriber, long now) {
+        if (subscriber.laggingSince == 0) {
+            // A comment: ignored by browsers, fails on connections closed without notice
+            subscriber.response.write(":\n\n");
+        } else if (now - subscriber.laggingSince > 2 * heartbeatMs) {
+            // Unsubscribed by its close handler
+            subscriber.response.reset();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package net.homeblocks.server;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.SessionHandler;
+import io.vertx.ext.web.sstore.LocalSessionStore;
+import net.homeblocks.services.Metrics;
+
+import java.util.UUID;
+
+/**
+ * Server-side sessions, held in memory and shared by the verticles of this process, as are pending logins.
+ */
+public class LocalUserSessions implements UserSessions {
+    private final Vertx vertx;
+    private final LoginStateStore loginStates;
+
+    public LocalUserSessions(Vertx vertx, LoginStateStore loginStates) {
+        this.vertx = vertx;
+        this.loginStates = loginStates;
+    }
+
+    @Override
+    public void install(Router router) {
+        var store = LocalSessionStore.create(vertx);
+        router.route().handler(SessionHandler.create(store));
+        // The store is backed by a local map shared by all verticles, whose size can be read synchronously
+        var sessions = vertx.sharedData().getLocalMap(LocalSessionStore.DEFAULT_SESSION_MAP_NAME);
+        Metrics.gauge("homeblocks.sessions", sessions::size);
+    }
+
+    @Override
+    public HttpUser get(RoutingContext ctx) {
+        var s = ctx.session();
+        if (s == null) {
+            return null;
+        }
+        return s.get("user");
+    }
+
+    @Override
+    public void put(RoutingContext ctx, HttpUser user) {
+        var s = ctx.session();
+        if (s != null) {
+            s.put("user", user);
+        }
+    }
+
+    @Override
+    public void remove(RoutingContext ctx) {
+        var s = ctx.session();
+        if (s != null) {
+            s.remove("user");
+        }
+    }
+
+    @Override
+    public String newLoginState(RoutingContext ctx, JsonObject json) {
+        var state = UUID.randomUUID().toString();
+        loginStates.put(state, json);
+        return state;
+    }
+
+    @Override
+    public boolean isValidLoginState(RoutingContext ctx, String state) {
+        return loginStates.isValid(state);
+    }
+
+    @Override
+    public JsonObject popLoginState(RoutingContext ctx, String state) {
+        return loginStates.pop(state);
+    }
+}
@@ -0,0 +1,115 @@
+package net.homeblocks.server;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import net.homeblocks.services.Metrics;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pending OAuth login states, shared by all HTTP verticles. States expire after a fixed TTL, so insertion order is
+ * also expiry order: a FIFO queue makes expiry O(1) per state, without scanning. The queue length is capped, so
+ * abandoned logins can't grow the heap beyond the capacity; when it's full, the oldest pending states are evicted,
+ * so that a flood of login page hits only fails the logins started before it, not the ones started during it.
+ */
+public class LoginStateStore {
+    private final long ttlMs;
+    private final int capacity;
+    private final Map<String, Entry> states = new ConcurrentHashMap<>();
+    private final Queue<Expiry> expiries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final long sweepTimer;
+    private final Vertx vertx;
+
+    private record Entry(JsonObject json, long expiresAt) {}
+
+    private record Expiry(String state, Entry entry) {}
+
+    public LoginStateStore(Vertx vertx, long ttlMs, int capacity) {
+        this.vertx = vertx;
+        this.ttlMs = ttlMs;
+        this.capacity = capacity;
+        this.sweepTimer = vertx.setPeriodic(Math.max(1000, ttlMs / 10), id -> purgeExpired());
+        Metrics.gauge("homeblocks.login.states", states::size);
+        Metrics.gauge("homeblocks.login.states.evicted", evicted::sum);
+    }
+
+    /**
+     * Stores the data attached to a new login state, evicting the oldest pending ones if the store is full.
+     */
+    public void put(String state, JsonObject json) {
+        if (queued.get() >= capacity) {
+            purgeExpired();
+        }
+        var entry = new Entry(json, System.currentTimeMillis() + ttlMs);
+        states.put(state, entry);
+        expiries.add(new Expiry(state, entry));
+        if (queued.incrementAndGet() > capacity) {
+            evictOldest();
+        }
+    }
+
+    public boolean isValid(String state) {
+        var entry = states.get(state);
+        return entry != null && entry.expiresAt() > System.currentTimeMillis();
+    }
+
+    /**
+     * Removes a state and returns its data, or null if it's unknown or expired.
+     */
+    public JsonObject pop(String state) {
+        var entry = states.remove(state);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt() <= System.currentTimeMillis()) {
+            expired.increment();
+            return null;
+        }
+        return entry.json();
+    }
+
+    private void purgeExpired() {
+        var now = System.currentTimeMillis();
+        Expiry head;
+        while ((head = expiries.peek()) != null && head.entry().expiresAt() <= now) {
+            if (expiries.remove(head)) {
+                queued.decrementAndGet();
+                if (states.remove(head.state(), head.entry())) {
+                    expired.increment();
+                }
+            }
+        }
+    }
+
+    private void evictOldest() {
+        Expiry head;
+        // States popped by their login are still queued: evicting them only frees their slot
+        while (queued.get() > capacity && (head = expiries.poll()) != null) {
+            queued.decrementAndGet();
+            if (states.remove(head.state(), head.entry())) {
+                evicted.increment();
+            }
+        }
+    }
+
+    public JsonObject stats() {
+        return new JsonObject()
+                .put("live", states.size())
+                .put("capacity", capacity)
+                .put("expired", expired.sum())
+                .put("queued", queued.get())
+                .put("evicted", evicted.sum());
+    }
+
+    public void close() {
+        vertx.cancelTimer(sweepTimer);
+    }
+}
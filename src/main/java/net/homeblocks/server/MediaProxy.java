@@ -0,0 +1,653 @@
+package net.homeblocks.server;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.CopyOptions;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.ext.web.RoutingContext;
+import net.homeblocks.model.Page;
+import net.homeblocks.services.Hosts;
+import net.homeblocks.services.LinkChecker;
+import net.homeblocks.services.Metrics;
+import net.homeblocks.services.ProfileKey;
+import net.homeblocks.services.ProfileListener;
+import net.homeblocks.services.ProfileService;
+import net.homeblocks.services.ProfileStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches images, audio, video and link favicons on behalf of visitors, so that their browsers don't call third-party
+ * hosts. Fetched files are kept in a disk cache, evicted least recently used first beyond a total size, and served
+ * with {@code sendFile}, including single byte ranges for seeking in audio and video.
+ * <p>
+ * Stale entries are still served while being revalidated in the background, with a conditional request. Concurrent
+ * fetches of the same URL share one upstream request. Only public hosts are fetched, and only media content types
+ * are kept, so that the proxy can neither reach internal services nor serve pages from this origin.
+ * <p>
+ * Only URLs linked from stored profiles are fetched, and favicons of their sites: the proxy doesn't fetch whatever
+ * it's asked to on behalf of anyone. Links are collected by walking all pages at startup, then kept up to date as
+ * profiles change.
+ * <p>
+ * Each fetch is stored under a file name of its own, so that evicting or replacing an entry never deletes the file
+ * of a newer fetch of the same URL.
+ */
+public class MediaProxy {
+    private static final long MIN_TTL_MS = 60_000;
+    private static final long DEFAULT_TTL_MS = 24 * 3600_000L;
+    private static final long MAX_TTL_MS = 30 * 24 * 3600_000L;
+    private static final long MISSING_TTL_MS = 10 * 60_000L;
+    private static final int MAX_REDIRECTS = 3;
+    private static final Pattern MAX_AGE = Pattern.compile("max-age=(\\d+)");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    // Hex characters of a key
+    private static final int KEY_LENGTH = 40;
+    // SVG images may hold scripts: never let them run on this origin
+    private static final String CSP = "default-src 'none'; style-src 'unsafe-inline'; sandbox";
+
+    public enum Kind {MEDIA, FAVICON}
+
+    /**
+     * A cached response. Its content type is null for URLs that could not be fetched, which are remembered for a
+     * while, in memory only.
+     */
+    private record Entry(String key, String file, String url, String contentType, long length, String etag,
+                         String lastModified, long fetchedAt, long expiresAt) {
+        boolean missing() {
+            return contentType == null;
+        }
+
+        boolean stale(long now) {
+            return now >= expiresAt;
+        }
+
+        String servedETag() {
+            return "\"" + key.substring(0, 16) + "-" + Long.toString(fetchedAt, 36) + "\"";
+        }
+
+        JsonObject toJson() {
+            return new JsonObject()
+                    .put("url", url)
+                    .put("contentType", contentType)
+                    .put("length", length)
+                    .put("etag", etag)
+                    .put("lastModified", lastModified)
+                    .put("fetchedAt", fetchedAt)
+                    .put("expiresAt", expiresAt);
+        }
+
+        static Entry fromJson(String key, String file, JsonObject json) {
+            return new Entry(key, file, json.getString("url"), json.getString("contentType"), json.getLong("length"),
+                    json.getString("etag"), json.getString("lastModified"), json.getLong("fetchedAt"),
+                    json.getLong("expiresAt"));
+        }
+    }
+
+    private final Vertx vertx;
+    private final HttpClient client;
+    private final Path dir;
+    private final long maxBytes;
+    private final long maxEntrySize;
+    private final boolean allowPrivateHosts;
+    // Access ordered: the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Future<Entry>> fetches = new ConcurrentHashMap<>();
+    private final AtomicLong fetchCount = new AtomicLong();
+    private long totalBytes = 0;
+    // Keys of the URLs linked from stored pages -> number of pages linking them, and the keys of each page
+    private final Map<String, Integer> linked = new HashMap<>();
+    private final Map<ProfileKey, Set<String>> pageLinks = new HashMap<>();
+    private final Promise<Void> walked = Promise.promise();
+
+    public MediaProxy(Vertx vertx, ProfileStore store, ProfileService profileService, Path dir, long maxBytes,
+                      long maxEntrySize, boolean allowPrivateHosts) {
+        this.vertx = vertx;
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxEntrySize = maxEntrySize;
+        this.allowPrivateHosts = allowPrivateHosts;
+        this.client = vertx.createHttpClient(new HttpClientOptions()
+                .setConnectTimeout(10_000)
+                .setIdleTimeout(30)
+                .setMaxPoolSize(32)
+                .setForceSni(true));
+        try {
+            load();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Metrics.gauge("homeblocks.media.cache.bytes", this::totalBytes);
+        Metrics.gauge("homeblocks.media.cache.entries", this::size);
+        profileService.addListener(new ProfileListener() {
+            @Override
+            public void profileCreated(int userID, String profile, Page page) {
+                linked(new ProfileKey(userID, profile), linkKeys(page), true);
+            }
+
+            @Override
+            public void profileUpdated(int userID, String profile, Page page) {
+                linked(new ProfileKey(userID, profile), linkKeys(page), true);
+            }
+        });
+        var start = System.currentTimeMillis();
+        vertx.executeBlocking(() -> collectLinks(store, profileService), false).onComplete(ar -> {
+            if (ar.failed()) {
+                // Not fatal: pages saved from now on are still proxied
+                System.err.println("Could not walk profiles for media links: " + ar.cause());
+            } else {
+                ar.result().forEach((key, keys) -> linked(key, keys, false));
+                System.out.println("Walked media links of " + ar.result().size() + " profiles in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+            walked.complete();
+        });
+    }
+
+    private static Map<ProfileKey, Set<String>> collectLinks(ProfileStore store, ProfileService profileService) {
+        Map<ProfileKey, Set<String>> links = new HashMap<>();
+        for (var userID : store.userIDs()) {
+            for (var profile : store.list(userID)) {
+                try {
+                    var page = profileService.peek(userID, profile);
+                    if (page != null) {
+                        links.put(new ProfileKey(userID, profile), linkKeys(page));
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Could not read profile " + profile + " of user " + userID + ": " + e.getMessage());
+                }
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Returns the keys of the media and favicons that a page may show.
+     */
+    static Set<String> linkKeys(Page page) {
+        Set<String> keys = new HashSet<>();
+        for (var url : LinkChecker.urls(page)) {
+            for (var kind : Kind.values()) {
+                var target = target(url, kind);
+                if (target != null) {
+                    keys.add(key(kind, target));
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Sets the links of a page.
+     *
+     * @param replace false to leave pages alone if they are already known: the walk may have read them before a
+     *                change that listeners already reported
+     */
+    private void linked(ProfileKey profile, Set<String> keys, boolean replace) {
+        synchronized (linked) {
+            if (!replace && pageLinks.containsKey(profile)) {
+                return;
+            }
+            var previous = pageLinks.put(profile, keys);
+            keys.forEach(key -> linked.merge(key, 1, Integer::sum));
+            if (previous != null) {
+                previous.forEach(key -> linked.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1));
+            }
+        }
+    }
+
+    private boolean isLinked(String key) {
+        synchronized (linked) {
+            return linked.containsKey(key);
+        }
+    }
+
+    /**
+     * Reads the metadata of cached files. Leftovers of interrupted fetches, and files without metadata, are deleted.
+     * Data files are named after their key and fetch, and their metadata after them.
+     */
+    private void load() throws IOException {
+        Files.createDirectories(dir);
+        List<Entry> loaded = new ArrayList<>();
+        try (var files = Files.list(dir)) {
+            for (var file : files.toList()) {
+                var name = file.getFileName().toString();
+                if (name.endsWith(".json")) {
+                    var dataName = name.substring(0, name.length() - ".json".length());
+                    var data = dir.resolve(dataName);
+                    try {
+                        var key = dataName.substring(0, Math.min(dataName.length(), KEY_LENGTH));
+                        var entry = Entry.fromJson(key, dataName, new JsonObject(Files.readString(file)));
+                        if (Files.isRegularFile(data) && Files.size(data) == entry.length()) {
+                            loaded.add(entry);
+                            continue;
+                        }
+                    } catch (RuntimeException e) {
+                        System.err.println("Invalid media cache entry " + file + ": " + e.getMessage());
+                    }
+                    Files.deleteIfExists(file);
+                    Files.deleteIfExists(data);
+                } else if (name.endsWith(".tmp") || !Files.exists(dir.resolve(name + ".json"))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        // Older fetches of the same URL are replaced, and deleted
+        loaded.sort(Comparator.comparingLong(Entry::fetchedAt));
+        loaded.forEach(this::put);
+        System.out.println("Loaded " + entries.size() + " cached media files, " + totalBytes + " bytes");
+    }
+
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Serves the media or favicon of the {@code url} parameter, fetching it first if it isn't cached.
+     */
+    public void handle(RoutingContext ctx, Kind kind) {
+        var start = Metrics.start();
+        var target = target(ctx.request().getParam("url"), kind);
+        if (target == null) {
+            error(ctx, 400, "Invalid URL");
+            return;
+        }
+        var key = key(kind, target);
+        if (!walked.future().isComplete()) {
+            walked.future().onComplete(v -> handle(ctx, kind));
+            return;
+        }
+        if (!isLinked(key)) {
+            ctx.response().putHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+            error(ctx, 403, "Not linked from any profile");
+            return;
+        }
+        var entry = get(key);
+        var now = System.currentTimeMillis();
+        if (entry != null && !(entry.missing() && entry.stale(now))) {
+            if (entry.stale(now)) {
+                // Serve the stale copy right away, the next visitors get the revalidated one
+                fetch(key, kind, target, entry);
+            }
+            Metrics.recordTime("homeblocks.media.request", start, "cache", entry.stale(now) ? "stale" : "hit");
+            serve(ctx, entry);
+            return;
+        }
+        fetch(key, kind, target, null).onComplete(ar -> {
+            Metrics.recordTime("homeblocks.media.request", start, "cache", "miss");
+            if (ar.succeeded()) {
+                serve(ctx, ar.result());
+            } else {
+                error(ctx, 502, "Could not fetch media");
+            }
+        });
+    }
+
+    /**
+     * Returns the URL to fetch: the media URL itself, or the favicon of the site of a link.
+     */
+    static URI target(String url, Kind kind) {
+        if (url == null) {
+            return null;
+        }
+        // Fragments are never sent
+        var fragment = url.indexOf('#');
+        try {
+            var uri = new URI((fragment < 0 ? url : url.substring(0, fragment)).trim());
+            var scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase();
+            if (!"http".equals(scheme) && !"https".equals(scheme) || uri.getHost() == null
+                    || uri.getRawUserInfo() != null) {
+                return null;
+            }
+            if (kind == Kind.FAVICON) {
+                return new URI(scheme, null, uri.getHost(), uri.getPort(), "/favicon.ico", null, null);
+            }
+            return uri;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    static String key(Kind kind, URI target) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256")
+                    .digest((kind + " " + target).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 20);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Fetches a URL, or joins the ongoing fetch of it.
+     *
+     * @param previous the cached entry to revalidate, if any
+     */
+    private Future<Entry> fetch(String key, Kind kind, URI target, Entry previous) {
+        var promise = Promise.<Entry>promise();
+        var ongoing = fetches.putIfAbsent(key, promise.future());
+        if (ongoing != null) {
+            return ongoing;
+        }
+        var start = Metrics.start();
+        request(key, kind, target, previous, 0)
+                .recover(e -> {
+                    System.err.println("Could not fetch media " + target + ": " + e.getMessage());
+                    if (previous != null && !previous.missing()) {
+                        // Keep serving what we have, and try again later
+                        return Future.succeededFuture(previous);
+                    }
+                    var now = System.currentTimeMillis();
+                    var missing = new Entry(key, null, target.toString(), null, 0, null, null, now,
+                            now + MISSING_TTL_MS);
+                    put(missing);
+                    return Future.succeededFuture(missing);
+                })
+                .onComplete(ar -> {
+                    fetches.remove(key);
+                    Metrics.recordTime("homeblocks.media.fetch", start, "kind", kind.name().toLowerCase());
+                    promise.handle(ar);
+                });
+        return promise.future();
+    }
+
+    private Future<Entry> request(String key, Kind kind, URI target, Entry previous, int redirects) {
+        return Hosts.resolvePublic(vertx, target.getHost(), allowPrivateHosts).compose(address -> {
+            var options = new RequestOptions()
+                    .setMethod(HttpMethod.GET)
+                    .setAbsoluteURI(target.toString())
+                    .setServer(SocketAddress.inetSocketAddress(new InetSocketAddress(address, port(target))))
+                    .putHeader(HttpHeaders.USER_AGENT, "homeblocks-media-proxy")
+                    .setFollowRedirects(false);
+            if (previous != null && !previous.missing()) {
+                if (previous.etag() != null) {
+                    options.putHeader(HttpHeaders.IF_NONE_MATCH, previous.etag());
+                }
+                if (previous.lastModified() != null) {
+                    options.putHeader(HttpHeaders.IF_MODIFIED_SINCE, previous.lastModified());
+                }
+            }
+            return client.request(options).compose(req -> req.send());
+        }).compose(res -> {
+            var status = res.statusCode();
+            if (status >= 300 && status < 400 && status != 304 && res.getHeader(HttpHeaders.LOCATION) != null) {
+                res.end();
+                if (redirects >= MAX_REDIRECTS) {
+                    return Future.failedFuture("Too many redirects");
+                }
+                var location = target(target.resolve(res.getHeader(HttpHeaders.LOCATION)).toString(), Kind.MEDIA);
+                if (location == null) {
+                    return Future.failedFuture("Invalid redirect");
+                }
+                return request(key, kind, location, previous, redirects + 1);
+            }
+            var now = System.currentTimeMillis();
+            if (status == 304 && previous != null && !previous.missing()) {
+                res.end();
+                var refreshed = new Entry(key, previous.file(), previous.url(), previous.contentType(), previous.length(),
+                        previous.etag(), previous.lastModified(), previous.fetchedAt(), now + ttl(res));
+                put(refreshed);
+                writeMetadata(refreshed);
+                return Future.succeededFuture(refreshed);
+            }
+            if (status != 200) {
+                res.end();
+                return Future.failedFuture("HTTP " + status);
+            }
+            var contentType = res.getHeader(HttpHeaders.CONTENT_TYPE);
+            if (!accepted(kind, contentType)) {
+                res.end();
+                return Future.failedFuture("Unexpected content type " + contentType);
+            }
+            var length = res.getHeader(HttpHeaders.CONTENT_LENGTH);
+            if (length != null && Long.parseLong(length) > maxEntrySize) {
+                res.request().reset();
+                return Future.failedFuture("Too large: " + length + " bytes");
+            }
+            return store(key, target, res, contentType, now);
+        });
+    }
+
+    private static int port(URI target) {
+        if (target.getPort() > 0) {
+            return target.getPort();
+        }
+        return "https".equals(target.getScheme()) ? 443 : 80;
+    }
+
+    private static boolean accepted(Kind kind, String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        var type = contentType.toLowerCase();
+        return type.startsWith("image/") || kind == Kind.MEDIA && (type.startsWith("audio/") || type.startsWith("video/"));
+    }
+
+    private static long ttl(HttpClientResponse res) {
+        var cacheControl = res.getHeader(HttpHeaders.CACHE_CONTROL);
+        if (cacheControl == null) {
+            return DEFAULT_TTL_MS;
+        }
+        if (cacheControl.contains("no-cache") || cacheControl.contains("no-store")) {
+            return MIN_TTL_MS;
+        }
+        var m = MAX_AGE.matcher(cacheControl);
+        if (m.find()) {
+            try {
+                return Math.max(MIN_TTL_MS, Math.min(MAX_TTL_MS, Long.parseLong(m.group(1)) * 1000));
+            } catch (NumberFormatException e) {
+                return MAX_TTL_MS;
+            }
+        }
+        return DEFAULT_TTL_MS;
+    }
+
+    /**
+     * Streams the response body to a temporary file, aborting beyond the maximum size, then moves it in place.
+     */
+    private Future<Entry> store(String key, URI target, HttpClientResponse res, String contentType, long now) {
+        res.pause();
+        var name = key + "-" + Long.toString(now, 36) + "-" + Long.toString(fetchCount.incrementAndGet(), 36);
+        var tmp = dir.resolve(name + ".tmp").toString();
+        var ttl = ttl(res);
+        var etag = res.getHeader(HttpHeaders.ETAG);
+        var lastModified = res.getHeader(HttpHeaders.LAST_MODIFIED);
+        return vertx.fileSystem().open(tmp, new OpenOptions().setWrite(true).setCreate(true).setTruncateExisting(true))
+                .compose(file -> {
+                    var promise = Promise.<Long>promise();
+                    var received = new long[]{0};
+                    res.handler(buf -> {
+                        received[0] += buf.length();
+                        if (received[0] > maxEntrySize) {
+                            res.request().reset();
+                            promise.tryFail("Too large: more than " + maxEntrySize + " bytes");
+                            return;
+                        }
+                        file.write(buf);
+                        if (file.writeQueueFull()) {
+                            res.pause();
+                            file.drainHandler(v -> res.resume());
+                        }
+                    });
+                    res.exceptionHandler(promise::tryFail);
+                    file.exceptionHandler(promise::tryFail);
+                    res.endHandler(v -> promise.tryComplete(received[0]));
+                    res.resume();
+                    return promise.future().transform(ar -> closeAndKeep(file, tmp, ar.succeeded())
+                            .compose(v -> ar.succeeded() ? Future.succeededFuture(ar.result())
+                                    : Future.failedFuture(ar.cause())));
+                })
+                .compose(length -> vertx.fileSystem().move(tmp, dir.resolve(name).toString(),
+                                new CopyOptions().setReplaceExisting(true))
+                        .map(v -> new Entry(key, name, target.toString(), contentType, length, etag, lastModified,
+                                now, now + ttl)))
+                .onSuccess(entry -> {
+                    writeMetadata(entry);
+                    put(entry);
+                });
+    }
+
+    private Future<Void> closeAndKeep(AsyncFile file, String tmp, boolean keep) {
+        var closed = file.close();
+        return keep ? closed : closed.transform(ar -> vertx.fileSystem().delete(tmp)).otherwiseEmpty();
+    }
+
+    private void writeMetadata(Entry entry) {
+        vertx.fileSystem().writeFile(dir.resolve(entry.file() + ".json").toString(), entry.toJson().toBuffer())
+                .onFailure(e -> System.err.println("Could not write media cache entry: " + e.getMessage()));
+    }
+
+    private synchronized void put(Entry entry) {
+        var previous = entries.put(entry.key(), entry);
+        if (previous != null) {
+            totalBytes -= previous.length();
+            if (!previous.missing() && !previous.file().equals(entry.file())) {
+                delete(previous);
+            }
+        }
+        totalBytes += entry.length();
+        evict();
+    }
+
+    private void evict() {
+        var it = entries.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            var eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.length();
+            if (!eldest.missing()) {
+                delete(eldest);
+            }
+        }
+    }
+
+    private void delete(Entry entry) {
+        // Files being sent remain readable until closed
+        var data = dir.resolve(entry.file());
+        vertx.fileSystem().delete(data.toString()).otherwiseEmpty();
+        vertx.fileSystem().delete(data + ".json").otherwiseEmpty();
+    }
+
+    private void serve(RoutingContext ctx, Entry entry) {
+        var res = ctx.response();
+        if (entry.missing()) {
+            res.putHeader(HttpHeaders.CACHE_CONTROL, "public, max-age=" + MISSING_TTL_MS / 1000);
+            error(ctx, 404, "Media not available");
+            return;
+        }
+        var etag = entry.servedETag();
+        var maxAge = Math.max(0, (entry.expiresAt() - System.currentTimeMillis()) / 1000);
+        res.putHeader(HttpHeaders.ETAG, etag)
+                .putHeader(HttpHeaders.CACHE_CONTROL, "public, max-age=" + maxAge)
+                .putHeader(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .putHeader("X-Content-Type-Options", "nosniff")
+                .putHeader("Content-Security-Policy", CSP);
+        if (etag.equals(ctx.request().getHeader(HttpHeaders.IF_NONE_MATCH))) {
+            res.setStatusCode(304).end();
+            return;
+        }
+        res.putHeader(HttpHeaders.CONTENT_TYPE, entry.contentType());
+        var file = dir.resolve(entry.file()).toString();
+        var range = ctx.request().getHeader("Range");
+        var ifRange = ctx.request().getHeader("If-Range");
+        Future<Void> sent;
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            var bounds = parseRange(range, entry.length());
+            if (bounds == null) {
+                res.putHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + entry.length());
+                error(ctx, 416, "Range not satisfiable");
+                return;
+            }
+            res.setStatusCode(206)
+                    .putHeader(HttpHeaders.CONTENT_RANGE, "bytes " + bounds[0] + "-" + bounds[1] + "/" + entry.length());
+            sent = res.sendFile(file, bounds[0], bounds[1] - bounds[0] + 1);
+        } else {
+            sent = res.sendFile(file);
+        }
+        sent.onFailure(e -> {
+            // Evicted in the meantime
+            if (!res.headWritten()) {
+                res.setStatusCode(200);
+                res.headers().remove(HttpHeaders.CONTENT_RANGE);
+                error(ctx, 503, "Media not available, try again");
+            }
+        });
+    }
+
+    /**
+     * Parses a single byte range.
+     *
+     * @return the first and last positions, inclusive, or null if not satisfiable
+     */
+    static long[] parseRange(String header, long length) {
+        var m = RANGE.matcher(header.trim());
+        if (!m.matches() || length == 0) {
+            return null;
+        }
+        try {
+            long first;
+            long last;
+            if (m.group(1).isEmpty()) {
+                if (m.group(2).isEmpty()) {
+                    return null;
+                }
+                // Suffix: the last n bytes
+                first = Math.max(0, length - Long.parseLong(m.group(2)));
+                last = length - 1;
+            } else {
+                first = Long.parseLong(m.group(1));
+                last = m.group(2).isEmpty() ? length - 1 : Math.min(length - 1, Long.parseLong(m.group(2)));
+            }
+            return first <= last && first < length ? new long[]{first, last} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void error(RoutingContext ctx, int errorCode, String msg) {
+        ctx.response().setStatusCode(errorCode);
+        ctx.response().end(msg);
+    }
+
+    public void close() {
+        client.close();
+    }
+}
@@ -0,0 +1,296 @@
+package net.homeblocks.server;
+
+import io.vertx.core.buffer.Buffer;
+import net.homeblocks.model.Block;
+import net.homeblocks.model.Link;
+import net.homeblocks.model.Page;
+import net.homeblocks.services.Metrics;
+import net.homeblocks.services.ProfileListener;
+import net.homeblocks.services.ProfileService;
+import net.homeblocks.services.UserService;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Profiles rendered as complete HTML pages, for visitors and crawlers: the same markup as {@code mainview.html}
+ * and the {@code block-*.html} partials, with block positions computed as {@code app.js} does, but no script, so
+ * that a profile shows in a single request. Logging in and editing go to the Angular app.
+ * <p>
+ * Rendered pages are cached per profile, along with their gzipped form, and invalidated when the profile or its
+ * user's alias changes.
+ */
+public class ProfileHtml {
+    private static final int MAX_ENTRIES = 1000;
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 200;
+    // Same as Angular's default href sanitization
+    private static final Pattern SAFE_URL = Pattern.compile("^\\s*(https?|ftp|mailto|tel|file):", Pattern.CASE_INSENSITIVE);
+    private static final Pattern HTTP_URL = Pattern.compile("^https?://", Pattern.CASE_INSENSITIVE);
+
+    private final ProfileService profileService;
+    private final StaticAssets staticAssets;
+    private final Map<String, Rendered> pages;
+    private long generation = 0;
+
+    public record Rendered(String alias, long version, Buffer html, byte[] gzip) {}
+
+    public ProfileHtml(UserService userService, ProfileService profileService, StaticAssets staticAssets) {
+        this.profileService = profileService;
+        this.staticAssets = staticAssets;
+        this.pages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Rendered> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        userService.addListener(userInfo -> invalidateUser(userInfo.intIdx()));
+        profileService.addListener(new ProfileListener() {
+            @Override
+            public void profileCreated(int userID, String profile, Page page) {
+                invalidate(userID, profile);
+            }
+
+            @Override
+            public void profileUpdated(int userID, String profile, Page page) {
+                invalidate(userID, profile);
+            }
+
+            @Override
+            public void profileListChanged(int userID) {
+                invalidateUser(userID);
+            }
+        });
+    }
+
+    private static String key(int userID, String profile) {
+        return userID + "/" + profile;
+    }
+
+    /**
+     * Returns the rendered page of a profile, from the cache if it's still current.
+     */
+    public Rendered get(String alias, int userID, String profile) {
+        var key = key(userID, profile);
+        long gen;
+        synchronized (pages) {
+            var entry = pages.get(key);
+            if (entry != null && entry.alias().equals(alias)) {
+                return entry;
+            }
+            gen = generation;
+        }
+        var start = Metrics.start();
+        var versioned = profileService.loadVersioned(userID, profile);
+        var html = Buffer.buffer(render(alias, profile, versioned.page()));
+        var rendered = new Rendered(alias, versioned.version(), html, StaticAssets.gzip(html.getBytes()));
+        Metrics.recordTime("homeblocks.profile.render", start);
+        synchronized (pages) {
+            // Don't cache if invalidated in the meantime
+            if (gen == generation) {
+                pages.put(key, rendered);
+            }
+        }
+        return rendered;
+    }
+
+    private void invalidate(int userID, String profile) {
+        synchronized (pages) {
+            generation++;
+            pages.remove(key(userID, profile));
+        }
+    }
+
+    private void invalidateUser(int userID) {
+        var prefix = userID + "/";
+        synchronized (pages) {
+            generation++;
+            pages.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    /**
+     * Path of a profile in the Angular app.
+     */
+    static String appPath(String alias, String profile) {
+        return "/#/u/" + pathSegment(alias) + "/" + pathSegment(profile);
+    }
+
+    private static String pathSegment(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    String render(String alias, String profile, Page page) {
+        var title = alias + "'s " + profile;
+        var sb = new StringBuilder(4096);
+        sb.append("<!doctype html>\n<html>\n<head>\n")
+                .append("    <meta charset=\"utf-8\">\n")
+                .append("    <meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">\n")
+                .append("    <title>").append(escape(title)).append("</title>\n")
+                .append("    <link rel=\"icon\" href=\"").append(staticAssets.url("favicon.ico")).append("\" type=\"image/x-icon\">\n")
+                .append("    <link rel=\"stylesheet\" href=\"").append(staticAssets.url("css/font-awesome.min.css")).append("\">\n")
+                .append("    <link rel=\"stylesheet\" href=\"").append(staticAssets.url("common-layout.css")).append("\">\n")
+                .append("</head>\n<body>\n<div id=\"page\">\n");
+        var blocks = page.getBlocks();
+        // Like checkOutOfScreen: blocks are centered, but shifted so that none is off the top or left edges
+        var minX = 0;
+        var minY = 0;
+        for (var block : blocks) {
+            minX = Math.min(minX, block.getPosx());
+            minY = Math.min(minY, block.getPosy());
+        }
+        var left = "max(50%, " + (WIDTH / 2 - minX * WIDTH) + "px)";
+        var top = "max(50%, " + (HEIGHT / 2 - minY * HEIGHT) + "px)";
+        var lightColor = lightColor(alias + "/" + profile);
+        for (var i = 0; i < blocks.size(); i++) {
+            var block = blocks.get(i);
+            var color = ((block.getPosx() + block.getPosy()) % 2) != 0 ? lightColor : "#020202";
+            sb.append("    <div class=\"block read\" style=\"left: ").append(left).append("; top: ").append(top)
+                    .append("; margin-left: ").append(-WIDTH / 2 + block.getPosx() * WIDTH)
+                    .append("px; margin-top: ").append(-HEIGHT / 2 + block.getPosy() * HEIGHT)
+                    .append("px; background-color: ").append(color).append(";\">\n");
+            renderBlock(sb, block, i, alias, profile, title);
+            sb.append("    </div>\n");
+        }
+        sb.append("</div>\n</body>\n</html>\n");
+        return sb.toString();
+    }
+
+    private static void renderBlock(StringBuilder sb, Block block, int id, String alias, String profile, String title) {
+        var type = block.getType() == null ? "" : block.getType();
+        switch (type) {
+            case "main" -> {
+                if (id == 0) {
+                    var app = escape(appPath(alias, profile));
+                    sb.append("<span>\n")
+                            .append("    <a href=\"").append(app).append("\" title=\"Log in\"><i class=\"fa fa-user\"></i></a>\n")
+                            .append("    <a href=\"").append(app).append("/e\" title=\"Switch to edit mode\"><i class=\"fa fa-pencil-square-o\"></i></a>&nbsp;\n")
+                            .append("    <a href=\"/api/user/").append(escape(pathSegment(alias))).append("/profile/")
+                            .append(escape(pathSegment(profile))).append("\" title=\"Show json\"><i class=\"fa fa-cloud-download\"></i></a>\n")
+                            .append("    <br/><br/>\n")
+                            .append("    <div>Welcome at ").append(escape(title)).append("!</div>\n")
+                            .append("</span>\n");
+                }
+            }
+            case "links" -> {
+                renderTitle(sb, block);
+                sb.append("<ul>\n");
+                for (var link : block.getLinks()) {
+                    sb.append("    <li>");
+                    if (isHttp(link.getUrl())) {
+                        sb.append("<img class=\"favicon\" src=\"/api/media/favicon?url=").append(escape(encode(link.getUrl())))
+                                .append("\" alt=\"\"> ");
+                    }
+                    sb.append("<a href=\"").append(escape(safeUrl(link.getUrl()))).append("\"");
+                    if (link.getDescription() != null && !link.getDescription().isEmpty()) {
+                        sb.append(" title=\"").append(escape(link.getDescription())).append("\"");
+                    }
+                    sb.append(">").append(escape(link.getTitle())).append("</a></li>\n");
+                }
+                sb.append("</ul>\n");
+            }
+            case "image" -> {
+                sb.append("<ul class=\"block-image\" style=\"width:100%; height:100%;\">\n");
+                var links = block.getLinks();
+                for (var i = 0; i < links.size(); i++) {
+                    // The first one only: the slideshow needs the app
+                    sb.append("    <li").append(i == 0 ? " class=\"visible\"" : "")
+                            .append(" style=\"background-image: url(").append(escape(cssUrl(links.get(i).getUrl())))
+                            .append("); background-repeat: no-repeat; background-position: center; background-size: contain; width: 100%; height: 100%; position: absolute\"></li>\n");
+                }
+                sb.append("</ul>\n");
+            }
+            case "audio", "video" -> {
+                renderTitle(sb, block);
+                var links = block.getLinks();
+                if (!links.isEmpty()) {
+                    sb.append("<select onchange=\"this.nextElementSibling.src = this.value\">\n");
+                    for (Link link : links) {
+                        sb.append("    <option value=\"").append(escape(media(link.getUrl()))).append("\">")
+                                .append(escape(link.getTitle())).append("</option>\n");
+                    }
+                    sb.append("</select>\n<").append(type).append(" src=\"").append(escape(media(links.get(0).getUrl())))
+                            .append("\" controls></").append(type).append(">\n");
+                }
+            }
+            default -> renderTitle(sb, block);
+        }
+    }
+
+    private static void renderTitle(StringBuilder sb, Block block) {
+        if (block.getTitle() != null && !block.getTitle().isEmpty()) {
+            sb.append("<div class=\"block-title\">").append(escape(block.getTitle())).append("</div>\n");
+        }
+    }
+
+    private static boolean isHttp(String url) {
+        return url != null && HTTP_URL.matcher(url).find();
+    }
+
+    /**
+     * Same as the {@code media} filter of {@code mainview.js}: media from other sites go through the proxy.
+     */
+    private static String media(String url) {
+        return isHttp(url) ? "/api/media?url=" + encode(url) : safeUrl(url);
+    }
+
+    private static String cssUrl(String url) {
+        // Unquoted in url(): characters that would end it are percent-encoded
+        return media(url).replace(" ", "%20").replace("'", "%27").replace("\"", "%22")
+                .replace("(", "%28").replace(")", "%29");
+    }
+
+    private static String safeUrl(String url) {
+        if (url == null) {
+            return "";
+        }
+        // Relative URLs have no scheme
+        var colon = url.indexOf(':');
+        var slash = url.indexOf('/');
+        if (colon < 0 || (slash >= 0 && slash < colon) || SAFE_URL.matcher(url).find()) {
+            return url;
+        }
+        return "unsafe:" + url;
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Same kind of color as {@code lightBlockColor} in {@code app.js}, but fixed per profile so that cached pages
+     * don't all look alike: one of R, G, B is 30, another 60, the third in [30, 60).
+     */
+    private static String lightColor(String seed) {
+        var hash = seed.hashCode() & 0x7fffffff;
+        var rgb = new String[3];
+        var low = hash % 3;
+        var high = (low + 1 + (hash / 3) % 2) % 3;
+        rgb[low] = "30";
+        rgb[high] = "60";
+        rgb[3 - low - high] = Integer.toString(30 + (hash / 6) % 30);
+        return "#" + rgb[0] + rgb[1] + rgb[2];
+    }
+
+    static String escape(String s) {
+        if (s == null) {
+            return "";
+        }
+        var sb = new StringBuilder(s.length() + 16);
+        for (var i = 0; i < s.length(); i++) {
+            var c = s.charAt(i);
+            switch (c) {
+                case '<' -> sb.append("&lt;");
+                case '>' -> sb.append("&gt;");
+                case '&' -> sb.append("&amp;");
+                case '"' -> sb.append("&quot;");
+                case '\'' -> sb.append("&#39;");
+                default -> sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
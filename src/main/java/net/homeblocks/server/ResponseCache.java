@@ -0,0 +1,147 @@
+package net.homeblocks.server;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import net.homeblocks.model.Page;
+import net.homeblocks.model.PageCodec;
+import net.homeblocks.model.Pair;
+import net.homeblocks.model.Profiles;
+import net.homeblocks.model.UserInfo;
+import net.homeblocks.oauth.Provider;
+import net.homeblocks.services.ProfileListener;
+import net.homeblocks.services.ProfileService;
+import net.homeblocks.services.UserService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Already-encoded API responses. The 404 page is constant and the login pages only differ by their state token,
+ * which is spliced into a pre-encoded template. User pages are cached per user, and invalidated when the user's
+ * alias or profile list changes.
+ */
+public class ResponseCache {
+    // Stands for the state token in login templates; neither escaped in JSON nor in URLs
+    private static final String STATE_MARKER = "HBSTATEMARKER";
+    private static final int MAX_USER_ENTRIES = 10_000;
+
+    private final ProfileService profileService;
+    private final Buffer notFound404;
+    private final List<Buffer> loginTemplate;
+    private final List<Buffer> singleBlockLoginTemplate;
+    private final Map<Integer, UserEntry> userPages;
+    private long generation = 0;
+
+    private record UserEntry(String alias, Buffer encodedPage) {}
+
+    public ResponseCache(UserService userService, ProfileService profileService, List<Provider> oauthProviders) {
+        this.profileService = profileService;
+        this.notFound404 = Profiles.notFound404().toBuffer();
+        var templateInfo = oauthProviders.stream()
+                .map(it -> new Pair<>("Login with " + it.displayName, it.authorizeURL(STATE_MARKER)))
+                .collect(Collectors.toList());
+        this.loginTemplate = split(Profiles.login(templateInfo));
+        this.singleBlockLoginTemplate = split(Profiles.singleBlockLogin(templateInfo));
+        this.userPages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, UserEntry> eldest) {
+                return size() > MAX_USER_ENTRIES;
+            }
+        };
+        userService.addListener(userInfo -> invalidateUser(userInfo.intIdx()));
+        profileService.addListener(new ProfileListener() {
+            @Override
+            public void profileCreated(int userID, String profile, Page page) {
+                invalidateUser(userID);
+            }
+
+            @Override
+            public void profileListChanged(int userID) {
+                invalidateUser(userID);
+            }
+        });
+    }
+
+    private static List<Buffer> split(JsonObject json) {
+        var encoded = json.encode();
+        var segments = new ArrayList<Buffer>();
+        var start = 0;
+        var idx = encoded.indexOf(STATE_MARKER);
+        while (idx >= 0) {
+            segments.add(Buffer.buffer(encoded.substring(start, idx)));
+            start = idx + STATE_MARKER.length();
+            idx = encoded.indexOf(STATE_MARKER, start);
+        }
+        segments.add(Buffer.buffer(encoded.substring(start)));
+        return segments;
+    }
+
+    private static Buffer join(List<Buffer> template, String state) {
+        var stateBytes = state.getBytes(StandardCharsets.UTF_8);
+        var size = template.stream().mapToInt(Buffer::length).sum() + (template.size() - 1) * stateBytes.length;
+        var buf = Buffer.buffer(size);
+        for (int i = 0; i < template.size(); i++) {
+            if (i > 0) {
+                buf.appendBytes(stateBytes);
+            }
+            buf.appendBuffer(template.get(i));
+        }
+        return buf;
+    }
+
+    public Buffer notFound404() {
+        return notFound404;
+    }
+
+    public Buffer login(String state) {
+        return join(loginTemplate, state);
+    }
+
+    public Buffer singleBlockLogin(String state) {
+        return join(singleBlockLoginTemplate, state);
+    }
+
+    /**
+     * Same content as {@link Profiles#user}, reusing the encoded page of the user.
+     */
+    public Buffer user(String refUser, UserInfo userInfo, String logged) {
+        var encodedPage = userPage(refUser, userInfo.intIdx());
+        return Buffer.buffer(encodedPage.length() + 128)
+                .appendString("{\"title\":").appendString(Json.encode(refUser + "'s place"))
+                .appendString(",\"page\":").appendBuffer(encodedPage)
+                .appendString(",\"refUser\":").appendString(Json.encode(refUser))
+                .appendString(",\"logged\":").appendString(Json.encode(logged))
+                .appendString("}");
+    }
+
+    private Buffer userPage(String refUser, int userID) {
+        long gen;
+        synchronized (userPages) {
+            var entry = userPages.get(userID);
+            if (entry != null && entry.alias().equals(refUser)) {
+                return entry.encodedPage();
+            }
+            gen = generation;
+        }
+        var encoded = PageCodec.encode(Profiles.userPage(refUser, profileService.list(userID)));
+        synchronized (userPages) {
+            // Don't cache if invalidated in the meantime
+            if (gen == generation) {
+                userPages.put(userID, new UserEntry(refUser, encoded));
+            }
+        }
+        return encoded;
+    }
+
+    private void invalidateUser(int userID) {
+        synchronized (userPages) {
+            generation++;
+            userPages.remove(userID);
+        }
+    }
+}
@@ -1,41 +1,85 @@
 package net.homeblocks.server;
 
+import io.vertx.core.Future;
+import io.vertx.core.ThreadingModel;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
-import io.vertx.ext.web.handler.SessionHandler;
 import io.vertx.ext.web.handler.StaticHandler;
-import io.vertx.ext.web.sstore.LocalSessionStore;
 import net.homeblocks.model.Page;
-import net.homeblocks.model.Pair;
+import net.homeblocks.model.PageLimits;
+import net.homeblocks.model.PageStreamDecoder;
 import net.homeblocks.model.Profiles;
 import net.homeblocks.model.UserInfo;
 import net.homeblocks.oauth.Provider;
+import net.homeblocks.services.LinkChecker;
+import net.homeblocks.services.ProfileHistory;
 import net.homeblocks.services.ProfileService;
+import net.homeblocks.services.SearchService;
 import net.homeblocks.services.UserService;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class Routes {
+    private static final int DEFAULT_SEARCH_SIZE = 20;
+    private static final int MAX_SEARCH_SIZE = 100;
+    // Deeper pages would keep that many hits around for each search
+    private static final int MAX_SEARCH_RESULTS = 1000;
+    // Versions restart on each boot: they are only comparable along with this stamp
+    static final String BOOT_STAMP = Long.toString(System.currentTimeMillis(), 36);
+    // Version stamp of the profile returned or written, matched by clients against live update events
+    private static final String VERSION_HEADER = "X-Profile-Version";
+
     private final UserService userService;
     private final ProfileService profileService;
+    private final SearchService searchService;
     private final List<Provider> oauthProviders;
-    private final Map<String, JsonObject> tmpStates = new HashMap<>();
+    private final UserSessions sessions;
+    private final MediaProxy mediaProxy;
+    private final LinkChecker linkChecker;
+    private final ServerOptions opts;
+    private final ResponseCache responses;
+    private final LiveUpdates liveUpdates;
+    private final ProfileHtml profileHtml;
+    private final Vertx vertx;
     private final Router router;
+    private final boolean virtualThreads;
 
-    public Routes(Vertx vertx, UserService userService, ProfileService profileService, List<Provider> oauthProviders) {
+    public Routes(Vertx vertx, UserService userService, ProfileService profileService, SearchService searchService,
+                  List<Provider> oauthProviders, UserSessions sessions, StaticAssets staticAssets, MediaProxy mediaProxy,
+                  LinkChecker linkChecker, ResponseCache responses, LiveUpdates liveUpdates, ProfileHtml profileHtml,
+                  ServerOptions opts) {
         this.userService = userService;
         this.profileService = profileService;
+        this.searchService = searchService;
         this.oauthProviders = oauthProviders;
+        this.sessions = sessions;
+        this.mediaProxy = mediaProxy;
+        this.linkChecker = linkChecker;
+        this.opts = opts;
+        this.responses = responses;
+        this.liveUpdates = liveUpdates;
+        this.profileHtml = profileHtml;
+        this.vertx = vertx;
         this.router = Router.router(vertx);
+        var context = Vertx.currentContext();
+        this.virtualThreads = context != null && context.threadingModel() == ThreadingModel.VIRTUAL_THREAD;
+
+        // Media are public and cacheable: served before sessions, so that responses don't set cookies
+        router.get("/api/media").handler(ctx -> mediaProxy.handle(ctx, MediaProxy.Kind.MEDIA));
+        router.get("/api/media/favicon").handler(ctx -> mediaProxy.handle(ctx, MediaProxy.Kind.FAVICON));
 
-        var store = LocalSessionStore.create(vertx);
-        router.route().handler(SessionHandler.create(store));
+        sessions.install(router);
 
         // Login endpoints
         router.get("/api/login").handler(this::getLoginPage);
@@ -51,9 +95,21 @@ public class Routes {
         router.get("/api/user/:user/profile/:name").handler(this::getProfile);
         router.put("/api/user/:user/profile/:name").handler(this::createProfile);
         router.post("/api/user/:user/profile/:name").handler(this::updateProfile);
+        router.patch("/api/user/:user/profile/:name").handler(this::patchProfile);
+        router.get("/api/user/:user/profile/:name/links").handler(this::getLinkStatuses);
+        router.get("/api/user/:user/profile/:name/events").handler(this::subscribeProfile);
+        router.get("/api/user/:user/profile/:name/history").handler(this::getHistory);
+        router.get("/api/user/:user/profile/:name/history/:rev").handler(this::getRevision);
+        router.post("/api/user/:user/profile/:name/history/:rev/revert").handler(this::revertProfile);
         router.put("/api/alias/:alias").handler(this::setAlias);
+        router.get("/api/search").handler(this::search);
+
+        // Profiles rendered server-side
+        router.get("/u/:user/:name").handler(this::renderProfile);
 
         // Serve static
+        router.get("/*").handler(staticAssets::handle);
+        // Files added after startup
         router.route("/*").handler(StaticHandler.create("public"));
     }
 
@@ -61,20 +117,204 @@ public class Routes {
         return this.router;
     }
 
+    /**
+     * Sends a JSON payload, gzipped when it's large enough to be worth it and the client accepts it.
+     */
+    private void sendJson(RoutingContext ctx, Buffer body) {
+        var res = ctx.response();
+        if (body.length() >= opts.compressionThreshold()) {
+            var accepted = ctx.request().getHeader(HttpHeaders.ACCEPT_ENCODING);
+            res.putHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            if (StaticAssets.acceptsEncoding(accepted, "gzip")) {
+                res.putHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+                res.end(Buffer.buffer(StaticAssets.gzip(body.getBytes())));
+                return;
+            }
+        }
+        res.end(body);
+    }
+
+    /**
+     * Runs a service call that may block on file I/O. On event loops, it runs in place. On virtual threads, it runs
+     * on a virtual thread of its own while the handler awaits it, so that the verticle serves other requests
+     * meanwhile, and the handler code stays straight-line. Failures are thrown as they are either way.
+     */
+    private <T> T blocking(Supplier<T> call) {
+        if (virtualThreads) {
+            return Future.await(vertx.executeBlocking(call::get, false));
+        }
+        return call.get();
+    }
+
     private static void error(RoutingContext ctx, int errorCode, String msg) {
         ctx.response().setStatusCode(errorCode);
         ctx.response().end(msg);
     }
 
-    private static HttpUser getLoggedUser(RoutingContext ctx) {
-        var s = ctx.session();
-        if (s == null) {
+    /**
+     * Answers with an error before the whole body is read. The connection is closed, so that the rest of it
+     * is not read.
+     */
+    private static void reject(RoutingContext ctx, int errorCode, String msg) {
+        if (!ctx.response().ended()) {
+            if (!ctx.request().isEnded()) {
+                ctx.response().putHeader(HttpHeaders.CONNECTION, "close");
+            }
+            error(ctx, errorCode, msg);
+        }
+    }
+
+    /**
+     * Rejects the request right away if it announces a body larger than allowed.
+     */
+    private boolean announcedTooLarge(RoutingContext ctx) {
+        var length = ctx.request().getHeader(HttpHeaders.CONTENT_LENGTH);
+        if (length != null) {
+            try {
+                if (Long.parseLong(length) > opts.maxBodySize()) {
+                    reject(ctx, 413, "Request body too large");
+                    return true;
+                }
+            } catch (NumberFormatException e) {
+                reject(ctx, 400, "Invalid Content-Length");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads a body of at most {@code maxBodySize} bytes.
+     */
+    private void boundedBody(RoutingContext ctx, Consumer<Buffer> handler) {
+        if (announcedTooLarge(ctx)) {
+            return;
+        }
+        var body = Buffer.buffer();
+        ctx.request().handler(chunk -> {
+            if (ctx.response().ended()) {
+                return;
+            }
+            if (body.length() + chunk.length() > opts.maxBodySize()) {
+                reject(ctx, 413, "Request body too large");
+                return;
+            }
+            body.appendBuffer(chunk);
+        });
+        ctx.request().endHandler(v -> {
+            if (!ctx.response().ended()) {
+                handler.accept(body);
+            }
+        });
+    }
+
+    /**
+     * Decodes a page from the body as it arrives, within the size and page limits.
+     */
+    private void streamPage(RoutingContext ctx, Consumer<Page> handler) {
+        if (announcedTooLarge(ctx)) {
+            return;
+        }
+        var decoder = new PageStreamDecoder(opts.pageLimits());
+        var received = new AtomicLong();
+        ctx.request().handler(chunk -> {
+            if (ctx.response().ended()) {
+                return;
+            }
+            if (received.addAndGet(chunk.length()) > opts.maxBodySize()) {
+                reject(ctx, 413, "Request body too large");
+                return;
+            }
+            try {
+                decoder.feed(chunk);
+            } catch (PageLimits.ExceededException e) {
+                reject(ctx, 413, e.getMessage());
+            } catch (DecodeException e) {
+                reject(ctx, 400, e.getMessage());
+            }
+        });
+        ctx.request().endHandler(v -> {
+            if (ctx.response().ended()) {
+                return;
+            }
+            Page page;
+            try {
+                page = decoder.end();
+            } catch (DecodeException e) {
+                error(ctx, 400, e.getMessage());
+                return;
+            }
+            handler.accept(page);
+        });
+    }
+
+    /**
+     * The response also depends on the requested alias and on who is logged in, so they are part of the tag.
+     * Versions are only unique within a process lifetime, hence the boot stamp.
+     */
+    private static String etag(long version, UserInfo userInfo, String logged) {
+        return "\"" + BOOT_STAMP + "-" + userInfo.intIdx() + "-" + version + "-"
+                + Integer.toHexString(Objects.hash(userInfo.name(), logged)) + "\"";
+    }
+
+    /**
+     * Value of the version header: the version along with the boot stamp, as in live update events.
+     */
+    static String versionHeader(long version) {
+        return BOOT_STAMP + "-" + version;
+    }
+
+    /**
+     * Version the request was made against, from its {@code If-Match} header holding a version header value, or
+     * null if it has none. Versions from before a restart match no version.
+     *
+     * @throws NumberFormatException if the version is not a number
+     */
+    private static Long baseVersion(RoutingContext ctx) {
+        var ifMatch = ctx.request().getHeader(HttpHeaders.IF_MATCH);
+        if (ifMatch == null) {
             return null;
         }
-        return s.get("user");
+        var value = ifMatch.replace("\"", "");
+        var prefix = BOOT_STAMP + "-";
+        return value.startsWith(prefix) ? Long.parseLong(value.substring(prefix.length())) : -1L;
+    }
+
+    private static String htmlETag(long version, UserInfo userInfo, boolean gzip) {
+        var etag = etag(version, userInfo, null);
+        return gzip ? StaticAssets.variantETag(etag, "gzip") : etag;
+    }
+
+    private static void setETag(RoutingContext ctx, String etag) {
+        ctx.response().putHeader(HttpHeaders.ETAG, etag).putHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+    }
+
+    /**
+     * Ends the request with 304 if the client already has the current version, otherwise sets the ETag header.
+     */
+    private static boolean notModified(RoutingContext ctx, String etag) {
+        setETag(ctx, etag);
+        var ifNoneMatch = ctx.request().getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (var candidate : ifNoneMatch.split(",")) {
+                var tag = candidate.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(etag) || tag.equals("*")) {
+                    ctx.response().setStatusCode(304).end();
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
-    private static String getLoggedUserName(RoutingContext ctx) {
+    private HttpUser getLoggedUser(RoutingContext ctx) {
+        return sessions.get(ctx);
+    }
+
+    private String getLoggedUserName(RoutingContext ctx) {
         var logged = getLoggedUser(ctx);
         if (logged != null) {
             return logged.userInfo().name();
@@ -82,46 +322,36 @@ public class Routes {
         return null;
     }
 
-    private static boolean isValidLoggedUser(RoutingContext ctx, UserInfo user) {
+    private boolean isValidLoggedUser(RoutingContext ctx, UserInfo user) {
       var logged = getLoggedUser(ctx);
       if (logged != null) {
         if (user.intIdx() == logged.userInfo().intIdx()) {
-          return !logged.oAuthUser().expired();
+          return !logged.expired();
         }
       }
       return false;
     }
 
-    private static void updateLoggedUser(RoutingContext ctx, UserInfo newUser) {
+    private void updateLoggedUser(RoutingContext ctx, UserInfo newUser) {
         var logged = getLoggedUser(ctx);
         if (logged != null) {
             if (newUser.intIdx() == logged.userInfo().intIdx()) {
-                var session = ctx.session();
-                if (session != null) {
-                    session.put("user", new HttpUser(logged.oAuthUser(), newUser, logged.stateToken()));
-                }
+                sessions.put(ctx, logged.withUserInfo(newUser));
             }
         }
     }
 
-    private List<Pair<String, String>> buildLoginPageInfo(JsonObject json) {
-        var state = UUID.randomUUID().toString();
-        tmpStates.put(state, json);
-        return oauthProviders.stream().map(it -> {
-            var authorizationUrl = it.authorizeURL(state);
-            return new Pair<>("Login with " + it.displayName, authorizationUrl);
-        }).collect(Collectors.toList());
-    }
-
     private void getLoginPage(RoutingContext ctx) {
-        ctx.response().end(Profiles.login(buildLoginPageInfo(new JsonObject())).toString());
+        var state = sessions.newLoginState(ctx, new JsonObject());
+        sendJson(ctx, responses.login(state));
     }
 
     private void postLoginPage(RoutingContext ctx) {
         try {
-            ctx.request().bodyHandler(b ->
-                    ctx.response().end(Profiles.singleBlockLogin(buildLoginPageInfo(b.toJsonObject())).toString())
-            );
+            boundedBody(ctx, b -> {
+                var state = sessions.newLoginState(ctx, b.toJsonObject());
+                sendJson(ctx, responses.singleBlockLogin(state));
+            });
         } catch (Throwable e) {
             error(ctx, 500, e.toString());
             e.printStackTrace();
@@ -131,24 +361,15 @@ public class Routes {
     private void logout(RoutingContext ctx) {
         var user = getLoggedUser(ctx);
         if (user != null) {
-            ctx.session().remove("user");
+            sessions.remove(ctx);
         }
         ctx.response().end();
     }
 
-    private JsonObject popState(String state) {
-        var obj = tmpStates.get(state);
-        if (obj != null) {
-            tmpStates.remove(state);
-            return obj;
-        }
-        return null;
-    }
-
     private void getLogged(RoutingContext ctx) {
         var logged = getLoggedUser(ctx);
         if (logged != null) {
-            var json = popState(logged.stateToken());
+            var json = sessions.popLoginState(ctx, logged.stateToken());
             if (json != null) {
                 json.put("logged", logged.userInfo().name());
                 ctx.response().end(json.toString());
@@ -168,14 +389,17 @@ public class Routes {
             if (userInfo != null) {
                 var logged = getLoggedUserName(ctx);
                 try {
-                    var profiles = profileService.list(userInfo.intIdx());
-                    res.end(Profiles.user(user, profiles, logged).toString());
+                    var etag = etag(profileService.listVersion(userInfo.intIdx()), userInfo, logged);
+                    if (notModified(ctx, etag)) {
+                        return;
+                    }
+                    sendJson(ctx, blocking(() -> responses.user(user, userInfo, logged)));
                 } catch (Throwable t) {
-                    res.end(Profiles.notFound404().toString());
+                    sendJson(ctx, responses.notFound404());
                     t.printStackTrace();
                 }
             } else {
-                res.end(Profiles.notFound404().toString());
+                sendJson(ctx, responses.notFound404());
             }
         }
     }
@@ -189,18 +413,212 @@ public class Routes {
             if (userInfo != null) {
                 var logged = getLoggedUserName(ctx);
                 try {
-                    var page = profileService.load(userInfo.intIdx(), profile);
-                    res.end(Profiles.page(user, profile, page, logged).toString());
+                    var version = profileService.version(userInfo.intIdx(), profile);
+                    if (version != null) {
+                        res.putHeader(VERSION_HEADER, versionHeader(version));
+                        if (notModified(ctx, etag(version, userInfo, logged))) {
+                            return;
+                        }
+                    }
+                    var versioned = blocking(() -> profileService.loadVersioned(userInfo.intIdx(), profile));
+                    res.putHeader(VERSION_HEADER, versionHeader(versioned.version()));
+                    setETag(ctx, etag(versioned.version(), userInfo, logged));
+                    sendJson(ctx, Profiles.encodedPage(user, profile, versioned.page(), logged));
                 } catch (Throwable t) {
-                    res.end(Profiles.notFound404().toString());
+                    sendJson(ctx, responses.notFound404());
                     t.printStackTrace();
                 }
             } else {
-                res.end(Profiles.notFound404().toString());
+                sendJson(ctx, responses.notFound404());
             }
         }
     }
 
+    /**
+     * Statuses of the links of a profile that were checked, by URL.
+     */
+    private void getLinkStatuses(RoutingContext ctx) {
+        var user = ctx.request().getParam("user");
+        var profile = ctx.request().getParam("name");
+        var userInfo = userService.findByAlias(user);
+        if (userInfo == null || !blocking(() -> profileService.list(userInfo.intIdx())).contains(profile)) {
+            error(ctx, 404, "Profile not found");
+            return;
+        }
+        try {
+            var page = blocking(() -> profileService.load(userInfo.intIdx(), profile));
+            var json = new JsonObject();
+            linkChecker.statuses(LinkChecker.urls(page)).forEach((url, result) -> json.put(url, result.toJson()));
+            ctx.response().putHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+            sendJson(ctx, json.toBuffer());
+        } catch (Throwable t) {
+            error(ctx, 500, t.getMessage());
+            t.printStackTrace();
+        }
+    }
+
+    /**
+     * Finds the user owning a profile whose history is requested: only they can read it.
+     *
+     * @return null once an error is sent
+     */
+    private UserInfo historyOwner(RoutingContext ctx) {
+        var user = ctx.request().getParam("user");
+        var profile = ctx.request().getParam("name");
+        var userInfo = userService.findByAlias(user);
+        if (userInfo == null || !blocking(() -> profileService.list(userInfo.intIdx())).contains(profile)) {
+            error(ctx, 404, "Profile not found");
+            return null;
+        }
+        if (!isValidLoggedUser(ctx, userInfo)) {
+            error(ctx, 403, "You must log in");
+            return null;
+        }
+        return userInfo;
+    }
+
+    private static Integer revisionParam(RoutingContext ctx) {
+        try {
+            return Integer.parseInt(ctx.request().getParam("rev"));
+        } catch (NumberFormatException e) {
+            error(ctx, 400, "Invalid revision");
+            return null;
+        }
+    }
+
+    /**
+     * Revisions of a profile, latest first.
+     */
+    private void getHistory(RoutingContext ctx) {
+        var userInfo = historyOwner(ctx);
+        if (userInfo == null) {
+            return;
+        }
+        var profile = ctx.request().getParam("name");
+        try {
+            var revisions = blocking(() -> profileService.revisions(userInfo.intIdx(), profile));
+            ctx.response().putHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+            sendJson(ctx, new JsonObject().put("revisions", ProfileHistory.toJson(revisions)).toBuffer());
+        } catch (Throwable t) {
+            error(ctx, 500, t.getMessage());
+            t.printStackTrace();
+        }
+    }
+
+    /**
+     * A profile as it was at a revision, in the same form as the current one.
+     */
+    private void getRevision(RoutingContext ctx) {
+        var userInfo = historyOwner(ctx);
+        var revision = userInfo == null ? null : revisionParam(ctx);
+        if (revision == null) {
+            return;
+        }
+        var user = ctx.request().getParam("user");
+        var profile = ctx.request().getParam("name");
+        try {
+            var page = blocking(() -> profileService.revision(userInfo.intIdx(), profile, revision));
+            if (page == null) {
+                error(ctx, 404, "Revision not found");
+                return;
+            }
+            sendJson(ctx, Profiles.encodedPage(user, profile, page, getLoggedUserName(ctx)));
+        } catch (Throwable t) {
+            error(ctx, 500, t.getMessage());
+            t.printStackTrace();
+        }
+    }
+
+    /**
+     * Restores a profile as it was at a revision, and answers with the restored page.
+     */
+    private void revertProfile(RoutingContext ctx) {
+        var userInfo = historyOwner(ctx);
+        var revision = userInfo == null ? null : revisionParam(ctx);
+        if (revision == null) {
+            return;
+        }
+        var user = ctx.request().getParam("user");
+        var profile = ctx.request().getParam("name");
+        try {
+            var logged = getLoggedUserName(ctx);
+            blocking(() -> profileService.revert(userInfo.intIdx(), profile, revision))
+                    .onSuccess(reverted -> {
+                        ctx.response().putHeader(VERSION_HEADER, versionHeader(reverted.version()));
+                        sendJson(ctx, Profiles.encodedPage(user, profile, reverted.page(), logged));
+                    })
+                    .onFailure(t -> {
+                        error(ctx, 500, t.getMessage());
+                        t.printStackTrace();
+                    });
+        } catch (IllegalArgumentException e) {
+            error(ctx, 404, e.getMessage());
+        } catch (Throwable t) {
+            error(ctx, 500, t.getMessage());
+            t.printStackTrace();
+        }
+    }
+
+    /**
+     * A profile as a complete HTML page, for visitors and crawlers. Logged users get the Angular app instead, which
+     * lets them log out, edit, and so on.
+     */
+    private void renderProfile(RoutingContext ctx) {
+        var res = ctx.response();
+        var user = ctx.request().getParam("user");
+        var profile = ctx.request().getParam("name");
+        if (getLoggedUserName(ctx) != null) {
+            res.setStatusCode(302).putHeader(HttpHeaders.LOCATION, ProfileHtml.appPath(user, profile)).end();
+            return;
+        }
+        var userInfo = userService.findByAlias(user);
+        if (userInfo == null || !blocking(() -> profileService.list(userInfo.intIdx())).contains(profile)) {
+            error(ctx, 404, "Profile not found");
+            return;
+        }
+        try {
+            // The response depends on being logged in, and on compression
+            res.putHeader(HttpHeaders.VARY, "Cookie, Accept-Encoding");
+            var gzip = StaticAssets.acceptsEncoding(ctx.request().getHeader(HttpHeaders.ACCEPT_ENCODING), "gzip");
+            var version = profileService.version(userInfo.intIdx(), profile);
+            if (version != null && notModified(ctx, htmlETag(version, userInfo, gzip))) {
+                return;
+            }
+            var rendered = blocking(() -> profileHtml.get(user, userInfo.intIdx(), profile));
+            setETag(ctx, htmlETag(rendered.version(), userInfo, gzip));
+            res.putHeader(HttpHeaders.CONTENT_TYPE, "text/html;charset=UTF-8");
+            if (gzip) {
+                res.putHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+                res.end(Buffer.buffer(rendered.gzip()));
+            } else {
+                res.end(rendered.html());
+            }
+        } catch (Throwable t) {
+            error(ctx, 500, t.getMessage());
+            t.printStackTrace();
+        }
+    }
+
+    /**
+     * Streams the version stamps of a profile as server-sent events: the current one, then one per change.
+     */
+    private void subscribeProfile(RoutingContext ctx) {
+        var user = ctx.request().getParam("user");
+        var profile = ctx.request().getParam("name");
+        var userInfo = userService.findByAlias(user);
+        if (userInfo == null || !blocking(() -> profileService.list(userInfo.intIdx())).contains(profile)) {
+            error(ctx, 404, "Profile not found");
+            return;
+        }
+        try {
+            var versioned = blocking(() -> profileService.loadVersioned(userInfo.intIdx(), profile));
+            liveUpdates.subscribe(ctx, userInfo.intIdx(), profile, versioned.version());
+        } catch (Throwable t) {
+            error(ctx, 500, t.getMessage());
+            t.printStackTrace();
+        }
+    }
+
     private void createProfile(RoutingContext ctx) {
         var res = ctx.response();
         var user = ctx.request().getParam("user");
@@ -212,8 +630,12 @@ public class Routes {
                 if (isValidLoggedUser(ctx, userInfo)) {
                     var logged = getLoggedUserName(ctx);
                     try {
-                        var page = profileService.createEmpty(userInfo.intIdx(), profile);
-                        res.end(Profiles.page(user, profile, page, logged).toString());
+                        profileService.createEmpty(userInfo.intIdx(), profile)
+                                .onSuccess(page -> sendJson(ctx, Profiles.encodedPage(user, profile, page, logged)))
+                                .onFailure(t -> {
+                                    error(ctx, 500, t.getMessage());
+                                    t.printStackTrace();
+                                });
                     } catch (Throwable t) {
                         error(ctx, 500, t.getMessage());
                         t.printStackTrace();
@@ -222,7 +644,7 @@ public class Routes {
                     error(ctx, 403, "You must log in");
                 }
             } else {
-                res.end(Profiles.notFound404().toString());
+                sendJson(ctx, responses.notFound404());
             }
         }
     }
@@ -236,15 +658,61 @@ public class Routes {
             if (userInfo != null) {
                 // Is still logged?
                 if (isValidLoggedUser(ctx, userInfo)) {
-                    try {
-                        ctx.request().bodyHandler(it -> {
-                            profileService.update(userInfo.intIdx(), profile, Page.fromJson(it.toJsonObject()));
-                            res.end();
-                        });
-                    } catch (Throwable t) {
-                        error(ctx, 500, t.getMessage());
-                        t.printStackTrace();
-                    }
+                    streamPage(ctx, page -> {
+                        try {
+                            // Answered once durable
+                            blocking(() -> profileService.update(userInfo.intIdx(), profile, page))
+                                    .onSuccess(version -> res.putHeader(VERSION_HEADER, versionHeader(version)).end())
+                                    .onFailure(t -> {
+                                        error(ctx, 500, t.getMessage());
+                                        t.printStackTrace();
+                                    });
+                        } catch (Throwable t) {
+                            error(ctx, 500, t.getMessage());
+                            t.printStackTrace();
+                        }
+                    });
+                } else {
+                    error(ctx, 403, "You must log in");
+                }
+            } else {
+                error(ctx, 404, "User not found");
+            }
+        }
+    }
+
+    private void patchProfile(RoutingContext ctx) {
+        var res = ctx.response();
+        var user = ctx.request().getParam("user");
+        var profile = ctx.request().getParam("name");
+        if (user != null && profile != null) {
+            var userInfo = userService.findByAlias(user);
+            if (userInfo != null) {
+                // Is still logged?
+                if (isValidLoggedUser(ctx, userInfo)) {
+                    boundedBody(ctx, it -> {
+                        try {
+                            var ops = it.toJsonArray();
+                            var baseVersion = baseVersion(ctx);
+                            blocking(() -> profileService.patch(userInfo.intIdx(), profile, ops, opts.pageLimits(),
+                                    baseVersion))
+                                    .onSuccess(patched ->
+                                            res.putHeader(VERSION_HEADER, versionHeader(patched.version())).end())
+                                    .onFailure(t -> {
+                                        error(ctx, 500, t.getMessage());
+                                        t.printStackTrace();
+                                    });
+                        } catch (PageLimits.ExceededException e) {
+                            error(ctx, 413, e.getMessage());
+                        } catch (ProfileService.StaleVersionException e) {
+                            error(ctx, 412, e.getMessage());
+                        } catch (IllegalArgumentException | DecodeException e) {
+                            error(ctx, 400, e.getMessage());
+                        } catch (Throwable t) {
+                            error(ctx, 500, t.getMessage());
+                            t.printStackTrace();
+                        }
+                    });
                 } else {
                     error(ctx, 403, "You must log in");
                 }
@@ -254,6 +722,79 @@ public class Routes {
         }
     }
 
+    /**
+     * Full-text search over blocks, optionally restricted to one user's profiles. Results are paginated with
+     * {@code page} and {@code size}.
+     */
+    private void search(RoutingContext ctx) {
+        var query = ctx.request().getParam("q");
+        if (query == null || query.isBlank()) {
+            error(ctx, 400, "Missing query");
+            return;
+        }
+        Integer userID = null;
+        var user = ctx.request().getParam("user");
+        if (user != null) {
+            var userInfo = userService.findByAlias(user);
+            if (userInfo == null) {
+                error(ctx, 404, "User not found");
+                return;
+            }
+            userID = userInfo.intIdx();
+        }
+        int page;
+        int size;
+        try {
+            page = Integer.parseInt(ctx.request().getParam("page", "0"));
+            size = Integer.parseInt(ctx.request().getParam("size", String.valueOf(DEFAULT_SEARCH_SIZE)));
+        } catch (NumberFormatException e) {
+            error(ctx, 400, "Invalid page or size");
+            return;
+        }
+        if (page < 0 || size < 1 || size > MAX_SEARCH_SIZE) {
+            error(ctx, 400, "Invalid page or size");
+            return;
+        }
+        // As a long, as page * size can overflow
+        if ((long) page * size + size > MAX_SEARCH_RESULTS) {
+            error(ctx, 400, "Only the first " + MAX_SEARCH_RESULTS + " results can be paged through");
+            return;
+        }
+        var scope = userID;
+        // Scoring can take a few milliseconds on large indexes: keep it off the event loop
+        ctx.vertx().executeBlocking(() -> searchService.search(query, scope, page * size, size), false)
+                .onSuccess(results -> {
+                    var hits = new JsonArray();
+                    for (var hit : results.hits()) {
+                        var owner = userService.findById(hit.userID());
+                        if (owner == null) {
+                            continue;
+                        }
+                        var links = new JsonArray();
+                        hit.links().forEach(link -> links.add(link.toJson()));
+                        hits.add(new JsonObject()
+                                .put("user", owner.name())
+                                .put("profile", hit.profile())
+                                .put("block", hit.block())
+                                .put("title", hit.title())
+                                .put("description", hit.description())
+                                .put("links", links)
+                                .put("score", hit.score()));
+                    }
+                    sendJson(ctx, new JsonObject()
+                            .put("query", query)
+                            .put("total", results.total())
+                            .put("page", page)
+                            .put("size", size)
+                            .put("results", hits)
+                            .toBuffer());
+                })
+                .onFailure(t -> {
+                    error(ctx, 500, t.getMessage());
+                    t.printStackTrace();
+                });
+    }
+
     private void setAlias(RoutingContext ctx) {
         var res = ctx.response();
         var alias = ctx.request().getParam("alias");
@@ -280,7 +821,7 @@ public class Routes {
                     error(ctx, 403, "You must log in");
                 }
             } else {
-                res.end(Profiles.notFound404().toString());
+                sendJson(ctx, responses.notFound404());
             }
         }
     }
@@ -289,13 +830,13 @@ public class Routes {
         var state = ctx.request().getParam("state");
         var code = ctx.request().getParam("code");
         if (state != null && code != null) {
-            if (!tmpStates.containsKey(state)) {
+            if (!sessions.isValidLoginState(ctx, state)) {
                 error(ctx, 403, "Invalid state");
             } else {
                 prov.authenticate(code)
                         .onSuccess(user -> {
                             var userInfo = userService.findOrCreate(prov.name, user.id());
-                            ctx.session().put("user", new HttpUser(user.oAuthUser(), userInfo, state));
+                            sessions.put(ctx, HttpUser.fromOAuth(user.oAuthUser(), userInfo, state));
                             ctx.reroute("/reroute.html");
                         })
                         .onFailure(err -> {
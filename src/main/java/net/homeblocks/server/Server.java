@@ -1,23 +1,41 @@
 package net.homeblocks.server;
 
 import io.vertx.core.Promise;
+import io.vertx.core.ThreadingModel;
 import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
 import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.json.JsonObject;
 import io.vertx.core.net.PemKeyCertOptions;
+import io.vertx.micrometer.Label;
+import io.vertx.micrometer.MicrometerMetricsOptions;
+import io.vertx.micrometer.VertxPrometheusOptions;
+import net.homeblocks.model.PageLimits;
 import net.homeblocks.oauth.Provider;
+import net.homeblocks.services.PageFormat;
+import net.homeblocks.services.LinkChecker;
 import net.homeblocks.services.ProfileService;
+import net.homeblocks.services.SearchService;
 import net.homeblocks.services.UserService;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
     public final static String FS_ROOT = "..";
 
-    public static void start(Vertx vertx, UserService userService, ProfileService profileService, Promise<Void> startFuture) {
-        var oAuthProviders = Provider.loadProviders(FS_ROOT, vertx);
-        var router = new Routes(vertx, userService, profileService, oAuthProviders).getRouter();
+    public static void start(Vertx vertx, ServerOptions opts, UserService userService, ProfileService profileService,
+                             SearchService searchService, LoginStateStore loginStates, StaticAssets staticAssets,
+                             MediaProxy mediaProxy, LinkChecker linkChecker, SharedRoutes shared,
+                             Promise<Void> startFuture) {
+        var router = new Routes(vertx, userService, profileService, searchService, shared.oAuthProviders(),
+                createSessions(vertx, opts, loginStates), staticAssets, mediaProxy, linkChecker, shared.responses(),
+                shared.liveUpdates(), shared.profileHtml(), opts).getRouter();
 
-        var opts = loadOptions(vertx);
         if (opts.tlsCertPath() != null && opts.tlsKeyPath() != null) {
             vertx.createHttpServer(new HttpServerOptions()
                     .setSsl(true).setKeyCertOptions(new PemKeyCertOptions()
@@ -59,13 +77,114 @@ public class Server {
         }
     }
 
-    private static ServerOptions loadOptions(Vertx vertx) {
-        var fs = vertx.fileSystem();
-        var json = fs.readFileBlocking(Paths.get(FS_ROOT, "server.json").toFile().getAbsolutePath()).toJsonObject();
+    /**
+     * What the routes of all HTTP verticles share, beyond the services: the login providers, and the caches and
+     * subscribers that would otherwise be kept, and kept up to date, once per verticle.
+     */
+    public record SharedRoutes(List<Provider> oAuthProviders, ResponseCache responses, LiveUpdates liveUpdates,
+                               ProfileHtml profileHtml) {
+    }
+
+    /**
+     * Creates what the HTTP verticles share. Called once, whatever their number.
+     */
+    public static SharedRoutes sharedRoutes(Vertx vertx, ServerOptions opts, UserService userService,
+                                            ProfileService profileService, StaticAssets staticAssets,
+                                            List<Provider> oAuthProviders) {
+        return new SharedRoutes(oAuthProviders,
+                new ResponseCache(userService, profileService, oAuthProviders),
+                new LiveUpdates(vertx, profileService, opts.liveHeartbeatMs()),
+                new ProfileHtml(userService, profileService, staticAssets));
+    }
+
+    private static UserSessions createSessions(Vertx vertx, ServerOptions opts, LoginStateStore loginStates) {
+        if ("cookie".equals(opts.sessionMode())) {
+            if (opts.sessionSecret() == null) {
+                throw new IllegalStateException("'sessionSecret' is required with 'sessionMode': 'cookie'");
+            }
+            var secure = opts.tlsCertPath() != null && opts.tlsKeyPath() != null;
+            return new CookieUserSessions(opts.sessionSecret(), opts.sessionMaxAgeSeconds(), opts.loginStateTtlMs(),
+                    secure);
+        }
+        return new LocalUserSessions(vertx, loginStates);
+    }
+
+    /**
+     * Reads {@code server.json}. Doesn't need Vert.x, as some options are needed to create it.
+     */
+    public static ServerOptions loadOptions() {
+        try {
+            return parseOptions(new JsonObject(Files.readString(Paths.get(FS_ROOT, "server.json"))));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads options from their JSON form, with defaults for missing ones.
+     */
+    public static ServerOptions parseOptions(JsonObject json) {
         var clearPort = json.getInteger("clearPort", 80);
         var tlsPort = json.getInteger("tlsPort", 443);
         var tlsCertPath = json.getString("tlsCertPath");
         var tlsKeyPath = json.getString("tlsKeyPath");
-        return new ServerOptions(clearPort, tlsPort, tlsCertPath, tlsKeyPath);
+        var pageCacheSize = json.getInteger("pageCacheSize", 1000);
+        var pageFlushIntervalMs = json.getLong("pageFlushIntervalMs", 5000L);
+        var httpInstances = json.getInteger("httpInstances", Runtime.getRuntime().availableProcessors());
+        var loginStateTtlMs = json.getLong("loginStateTtlMs", 600_000L);
+        var loginStateCapacity = json.getInteger("loginStateCapacity", 100_000);
+        var sessionMode = json.getString("sessionMode", "local");
+        var sessionSecret = json.getString("sessionSecret");
+        var sessionMaxAgeSeconds = json.getLong("sessionMaxAgeSeconds", 30L * 24 * 3600);
+        var compressionThreshold = json.getInteger("compressionThreshold", 1024);
+        var pageFormat = PageFormat.valueOf(json.getString("pageFormat", "json").toUpperCase());
+        var metricsPort = json.getInteger("metricsPort", 0);
+        var blockedThreadWarningMs = json.getLong("blockedThreadWarningMs", 2000L);
+        var maxBodySize = json.getInteger("maxBodySize", 1024 * 1024);
+        var pageLimits = new PageLimits(json.getInteger("maxBlocks", 500), json.getInteger("maxLinks", 10_000));
+        var profileListReconcileMs = json.getLong("profileListReconcileMs", 60_000L);
+        var searchSnapshotIntervalMs = json.getLong("searchSnapshotIntervalMs", 300_000L);
+        var mediaCacheMaxBytes = json.getLong("mediaCacheMaxBytes", 1024L * 1024 * 1024);
+        var mediaMaxSize = json.getLong("mediaMaxSize", 50L * 1024 * 1024);
+        var allowPrivateHosts = json.getBoolean("allowPrivateHosts", false);
+        var linkCheckIntervalMs = json.getLong("linkCheckIntervalMs", 3600_000L);
+        var linkCheckConcurrency = json.getInteger("linkCheckConcurrency", 16);
+        var linkCheckHostIntervalMs = json.getLong("linkCheckHostIntervalMs", 1000L);
+        var httpThreadingModel = ThreadingModel.valueOf(json.getString("httpThreadingModel", "event_loop").toUpperCase());
+        if (httpThreadingModel == ThreadingModel.WORKER) {
+            throw new RuntimeException("httpThreadingModel must be event_loop or virtual_thread");
+        }
+        var profileStore = json.getString("profileStore", "files");
+        var storeCacheSizeMb = json.getInteger("storeCacheSizeMb", 256);
+        var historyRevisions = json.getInteger("historyRevisions", 100);
+        var liveHeartbeatMs = json.getLong("liveHeartbeatMs", 30_000L);
+        return new ServerOptions(clearPort, tlsPort, tlsCertPath, tlsKeyPath, pageCacheSize, pageFlushIntervalMs, httpInstances,
+                loginStateTtlMs, loginStateCapacity, sessionMode, sessionSecret, sessionMaxAgeSeconds, compressionThreshold,
+                pageFormat, metricsPort, blockedThreadWarningMs, maxBodySize, pageLimits, profileListReconcileMs,
+                searchSnapshotIntervalMs, mediaCacheMaxBytes, mediaMaxSize, allowPrivateHosts,
+                linkCheckIntervalMs, linkCheckConcurrency, linkCheckHostIntervalMs, httpThreadingModel, profileStore,
+                storeCacheSizeMb, historyRevisions, liveHeartbeatMs);
+    }
+
+    /**
+     * Vert.x options derived from {@code server.json}: metrics, with a Prometheus endpoint on their own port, and
+     * blocked thread detection.
+     */
+    public static VertxOptions vertxOptions(VertxOptions vertxOptions, ServerOptions opts) {
+        vertxOptions.setMaxEventLoopExecuteTime(opts.blockedThreadWarningMs())
+                .setMaxEventLoopExecuteTimeUnit(TimeUnit.MILLISECONDS);
+        if (opts.metricsEnabled()) {
+            vertxOptions.setMetricsOptions(new MicrometerMetricsOptions()
+                    .setEnabled(true)
+                    .setJvmMetricsEnabled(true)
+                    .addLabels(Label.HTTP_ROUTE, Label.HTTP_METHOD, Label.HTTP_CODE)
+                    .setPrometheusOptions(new VertxPrometheusOptions()
+                            .setEnabled(true)
+                            .setPublishQuantiles(true)
+                            .setStartEmbeddedServer(true)
+                            .setEmbeddedServerOptions(new HttpServerOptions().setPort(opts.metricsPort()))
+                            .setEmbeddedServerEndpoint("/metrics")));
+        }
+        return vertxOptions;
     }
 }
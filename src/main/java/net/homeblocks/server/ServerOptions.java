@@ -1,3 +1,23 @@
 package net.homeblocks.server;
 
-public record ServerOptions(int clearPort, int tlsPort, String tlsCertPath, String tlsKeyPath) {}
+import io.vertx.core.ThreadingModel;
+import net.homeblocks.model.PageLimits;
+import net.homeblocks.services.PageFormat;
+
+public record ServerOptions(int clearPort, int tlsPort, String tlsCertPath, String tlsKeyPath,
+                            int pageCacheSize, long pageFlushIntervalMs, int httpInstances,
+                            long loginStateTtlMs, int loginStateCapacity,
+                            String sessionMode, String sessionSecret, long sessionMaxAgeSeconds,
+                            int compressionThreshold, PageFormat pageFormat,
+                            int metricsPort, long blockedThreadWarningMs,
+                            int maxBodySize, PageLimits pageLimits, long profileListReconcileMs,
+                            long searchSnapshotIntervalMs, long mediaCacheMaxBytes, long mediaMaxSize,
+                            boolean allowPrivateHosts, long linkCheckIntervalMs, int linkCheckConcurrency,
+                            long linkCheckHostIntervalMs, ThreadingModel httpThreadingModel,
+                            String profileStore, int storeCacheSizeMb, int historyRevisions,
+                            long liveHeartbeatMs) {
+
+    public boolean metricsEnabled() {
+        return metricsPort > 0;
+    }
+}
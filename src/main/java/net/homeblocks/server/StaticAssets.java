@@ -0,0 +1,290 @@
+package net.homeblocks.server;
+
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.ext.web.RoutingContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Static files of {@code public/}, prepared once at startup:
+ * <ul>
+ *     <li>each file gets a content hash; references from pages and from stylesheets are rewritten as
+ *     {@code path?v=hash}, and such fingerprinted requests are served as immutable</li>
+ *     <li>compressible files get a gzip variant, written to a cache directory; brotli variants are used when provided
+ *     next to the original, as {@code file.br}, since the JDK has no brotli encoder, unless the content was rewritten
+ *     or the {@code .br} file is older than the original</li>
+ *     <li>all variants are served from disk with {@code sendFile}, so they are zero-copy on clear connections</li>
+ * </ul>
+ */
+public class StaticAssets {
+    private static final Set<String> NOT_COMPRESSIBLE = Set.of("png", "jpg", "jpeg", "gif", "ico", "woff", "woff2", "br", "gz");
+    private static final Pattern HTML_REF = Pattern.compile("(src|href)=\"([^\"?#:]+)\"");
+    private static final Pattern CSS_REF = Pattern.compile("url\\((['\"]?)([^'\")?#:]+)(\\?[^'\")#]*)?(#[^'\")]*)?\\1\\)");
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+            Map.entry("html", "text/html;charset=UTF-8"),
+            Map.entry("css", "text/css;charset=UTF-8"),
+            Map.entry("js", "application/javascript;charset=UTF-8"),
+            Map.entry("json", "application/json"),
+            Map.entry("map", "application/json"),
+            Map.entry("txt", "text/plain;charset=UTF-8"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("ttf", "font/ttf"),
+            Map.entry("otf", "font/otf"),
+            Map.entry("eot", "application/vnd.ms-fontobject"));
+
+    private final Map<String, Asset> assets = new HashMap<>();
+
+    private record Asset(String contentType, String hash, long length, File identity, File gzip, File brotli) {}
+
+    public StaticAssets(Path root, Path cacheDir) {
+        try {
+            build(root, cacheDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void build(Path root, Path cacheDir) throws IOException {
+        if (Files.exists(cacheDir)) {
+            try (var walk = Files.walk(cacheDir)) {
+                walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        Files.createDirectories(cacheDir);
+        List<Path> files;
+        try (var walk = Files.walk(root, FileVisitOption.FOLLOW_LINKS)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(p -> !p.toString().endsWith(".br") && !p.toString().endsWith(".gz"))
+                    .collect(Collectors.toList());
+        }
+        // References are rewritten with the hashes of their targets: plain files first, then stylesheets, then pages
+        var ordered = Stream.of(
+                files.stream().filter(p -> !isCss(p) && !isHtml(p)),
+                files.stream().filter(StaticAssets::isCss),
+                files.stream().filter(StaticAssets::isHtml)
+        ).flatMap(s -> s).collect(Collectors.toList());
+        for (var file : ordered) {
+            var rel = root.relativize(file).toString().replace(File.separatorChar, '/');
+            var content = Files.readAllBytes(file);
+            var identity = file;
+            // Templates are inserted into index.html: their references are resolved from the root as well
+            if (isCss(file) || isHtml(file)) {
+                var text = new String(content, StandardCharsets.UTF_8);
+                var rewritten = isCss(file) ? rewriteCss(rel, text) : rewriteHtml(text);
+                if (!rewritten.equals(text)) {
+                    content = rewritten.getBytes(StandardCharsets.UTF_8);
+                    identity = cacheDir.resolve(rel);
+                    Files.createDirectories(identity.getParent());
+                    Files.write(identity, content);
+                }
+            }
+            File gzip = null;
+            if (!NOT_COMPRESSIBLE.contains(extension(rel))) {
+                var compressed = gzip(content);
+                // Not worth it unless it saves at least 10%
+                if (compressed.length < content.length * 0.9) {
+                    var gzPath = cacheDir.resolve(rel + ".gz");
+                    Files.createDirectories(gzPath.getParent());
+                    Files.write(gzPath, compressed);
+                    gzip = gzPath.toFile();
+                }
+            }
+            // A provided brotli file only matches the original content, and only if it was made from this version
+            var br = Paths.get(file + ".br");
+            var brotli = identity == file && Files.isRegularFile(br)
+                    && !Files.getLastModifiedTime(br).toInstant().isBefore(Files.getLastModifiedTime(file).toInstant())
+                    ? br.toFile() : null;
+            var contentType = CONTENT_TYPES.getOrDefault(extension(rel), "application/octet-stream");
+            assets.put(rel, new Asset(contentType, hash(content), content.length, identity.toFile(), gzip, brotli));
+        }
+        System.out.println("Prepared " + assets.size() + " static assets");
+    }
+
+    private static boolean isCss(Path p) {
+        return p.toString().endsWith(".css");
+    }
+
+    private static boolean isHtml(Path p) {
+        return p.toString().endsWith(".html");
+    }
+
+    private static String extension(String path) {
+        var idx = path.lastIndexOf('.');
+        return idx < 0 ? "" : path.substring(idx + 1).toLowerCase();
+    }
+
+    private String rewriteHtml(String html) {
+        return replace(HTML_REF, html, m -> {
+            var asset = assets.get(m.group(2).replaceFirst("^/", ""));
+            return asset == null ? m.group() : m.group(1) + "=\"" + m.group(2) + "?v=" + asset.hash() + "\"";
+        });
+    }
+
+    private String rewriteCss(String cssPath, String css) {
+        var dir = cssPath.contains("/") ? cssPath.substring(0, cssPath.lastIndexOf('/') + 1) : "";
+        return replace(CSS_REF, css, m -> {
+            var target = Paths.get(dir + m.group(2)).normalize().toString().replace(File.separatorChar, '/');
+            var asset = assets.get(target);
+            if (asset == null) {
+                return m.group();
+            }
+            var fragment = m.group(4) == null ? "" : m.group(4);
+            return "url(" + m.group(1) + m.group(2) + "?v=" + asset.hash() + fragment + m.group(1) + ")";
+        });
+    }
+
+    private static String replace(Pattern pattern, String text, Function<Matcher, String> replacer) {
+        var m = pattern.matcher(text);
+        var sb = new StringBuilder();
+        while (m.find()) {
+            m.appendReplacement(sb, Matcher.quoteReplacement(replacer.apply(m)));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(content);
+            return HexFormat.of().formatHex(digest, 0, 5);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] gzip(byte[] content) {
+        var out = new ByteArrayOutputStream(content.length / 2 + 32);
+        try (var gz = new GZIPOutputStream(out)) {
+            gz.write(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Whether an {@code Accept-Encoding} header accepts a content coding, explicitly or through {@code *}, with a
+     * non-zero quality.
+     */
+    static boolean acceptsEncoding(String header, String coding) {
+        if (header == null) {
+            return false;
+        }
+        var q = -1.0;
+        var anyQ = -1.0;
+        for (var item : header.split(",")) {
+            var parts = item.split(";");
+            var name = parts[0].trim();
+            if (name.equalsIgnoreCase(coding)) {
+                q = quality(parts);
+            } else if (name.equals("*")) {
+                anyQ = quality(parts);
+            }
+        }
+        // An explicit entry overrides *
+        return q >= 0 ? q > 0 : anyQ > 0;
+    }
+
+    private static double quality(String[] parts) {
+        for (var i = 1; i < parts.length; i++) {
+            var param = parts[i].trim();
+            if (param.regionMatches(true, 0, "q=", 0, 2)) {
+                try {
+                    return Double.parseDouble(param.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Tag of a compressed variant, distinct from the identity's since both are cached under the same URL.
+     */
+    static String variantETag(String etag, String coding) {
+        var suffix = coding.equals("gzip") ? "-gz" : "-" + coding;
+        return etag.endsWith("\"") ? etag.substring(0, etag.length() - 1) + suffix + "\"" : etag + suffix;
+    }
+
+    /**
+     * Absolute URL of an asset, fingerprinted as in {@code index.html} if it exists.
+     */
+    public String url(String path) {
+        var asset = assets.get(path);
+        return asset == null ? "/" + path : "/" + path + "?v=" + asset.hash();
+    }
+
+    /**
+     * Serves the requested asset, or passes on to the next handler if it's unknown.
+     */
+    public void handle(RoutingContext ctx) {
+        var path = ctx.normalizedPath();
+        var asset = assets.get(path.equals("/") ? "index.html" : path.substring(1));
+        if (asset == null) {
+            ctx.next();
+            return;
+        }
+        var res = ctx.response();
+        var etag = "\"" + asset.hash() + "\"";
+        var file = asset.identity();
+        String coding = null;
+        if (asset.gzip() != null || asset.brotli() != null) {
+            res.putHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            var accepted = ctx.request().getHeader(HttpHeaders.ACCEPT_ENCODING);
+            if (asset.brotli() != null && acceptsEncoding(accepted, "br")) {
+                coding = "br";
+                file = asset.brotli();
+            } else if (asset.gzip() != null && acceptsEncoding(accepted, "gzip")) {
+                coding = "gzip";
+                file = asset.gzip();
+            }
+        }
+        if (coding != null) {
+            etag = variantETag(etag, coding);
+        }
+        res.putHeader(HttpHeaders.ETAG, etag);
+        res.putHeader(HttpHeaders.CACHE_CONTROL, asset.hash().equals(ctx.request().getParam("v")) ? IMMUTABLE : "no-cache");
+        if (etag.equals(ctx.request().getHeader(HttpHeaders.IF_NONE_MATCH))) {
+            res.setStatusCode(304).end();
+            return;
+        }
+        res.putHeader(HttpHeaders.CONTENT_TYPE, asset.contentType());
+        if (coding != null) {
+            res.putHeader(HttpHeaders.CONTENT_ENCODING, coding);
+        }
+        res.sendFile(file.getPath());
+    }
+}
@@ -0,0 +1,39 @@
+package net.homeblocks.server;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Keeps track of the logged user across requests, and of the logins in progress.
+ */
+public interface UserSessions {
+    /**
+     * Installs whatever handler the implementation needs, before any route.
+     */
+    void install(Router router);
+
+    HttpUser get(RoutingContext ctx);
+
+    void put(RoutingContext ctx, HttpUser user);
+
+    void remove(RoutingContext ctx);
+
+    /**
+     * Starts an OAuth login.
+     *
+     * @param json data to return once logged in
+     * @return the state to pass to the provider
+     */
+    String newLoginState(RoutingContext ctx, JsonObject json);
+
+    /**
+     * Whether the provider called back with a state started by this client, and not expired.
+     */
+    boolean isValidLoginState(RoutingContext ctx, String state);
+
+    /**
+     * Ends a login, and returns its data, or null if it's unknown or expired.
+     */
+    JsonObject popLoginState(RoutingContext ctx, String state);
+}
@@ -0,0 +1,357 @@
+package net.homeblocks.services;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Persists files from a single thread, with group commit: all the operations queued while the previous batch was
+ * being synced are applied together, then made durable with one fsync per touched file and directory. Callers'
+ * futures complete once their batch is durable.
+ * <p>
+ * Files are replaced atomically, by writing a temporary file which is renamed over the target. Several writes of
+ * the same file within a batch result in a single write of the last content. Appends go to files kept open by the
+ * writer, the {@link #MAX_APPEND_CHANNELS} most recently appended to, so that descriptors don't pile up with the
+ * number of files appended to. Other file operations ({@link #run}, {@link #rewrite}) act as barriers: they see everything queued before
+ * them on disk.
+ */
+public class DurableWriter {
+    static final int MAX_APPEND_CHANNELS = 64;
+    private static final Op STOP = new Op(null, null, null, null);
+
+    private final BlockingQueue<Op> queue = new LinkedBlockingQueue<>();
+    // Access ordered: the eldest channel is the least recently appended to. Only accessed by the writer thread.
+    private final LinkedHashMap<Path, FileChannel> appendChannels = new LinkedHashMap<>(16, 0.75f, true);
+    private final Thread thread;
+    private boolean closed = false;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final AtomicInteger openAppendFiles = new AtomicInteger();
+
+    @FunctionalInterface
+    public interface FileOperation {
+        void run() throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface Rewrite {
+        Buffer apply(Buffer content) throws IOException;
+    }
+
+    private enum Kind {WRITE, APPEND, RUN}
+
+    private record Op(Kind kind, Path path, Object payload, Completion completion) {
+    }
+
+    private record Completion(Promise<Void> promise, Context context) {
+        void complete(Throwable failure) {
+            if (context != null) {
+                context.runOnContext(v -> doComplete(failure));
+            } else {
+                doComplete(failure);
+            }
+        }
+
+        private void doComplete(Throwable failure) {
+            if (failure == null) {
+                promise.complete();
+            } else {
+                promise.fail(failure);
+            }
+        }
+    }
+
+    public DurableWriter() {
+        thread = new Thread(this::loop, "homeblocks-durable-writer");
+        thread.start();
+        Metrics.gauge("homeblocks.writer.queue", queue::size);
+    }
+
+    /**
+     * Atomically replaces the content of a file, creating its parent directories if needed.
+     */
+    public Future<Void> write(Path path, Buffer content) {
+        return submit(Kind.WRITE, path, content);
+    }
+
+    /**
+     * Appends to a file, creating it if needed.
+     */
+    public Future<Void> append(Path path, Buffer content) {
+        return submit(Kind.APPEND, path, content);
+    }
+
+    /**
+     * Runs a file operation (move, delete...) once all previously queued operations are durable. Files opened for
+     * appending are closed beforehand, so that they can be moved safely.
+     */
+    public Future<Void> run(FileOperation operation) {
+        return submit(Kind.RUN, null, operation);
+    }
+
+    /**
+     * Atomically replaces the content of a file by a function of its current content (null if it doesn't exist),
+     * once all previously queued operations are durable.
+     */
+    public Future<Void> rewrite(Path path, Rewrite rewrite) {
+        return run(() -> {
+            var current = Files.exists(path) ? Buffer.buffer(Files.readAllBytes(path)) : null;
+            replace(path, rewrite.apply(current));
+        });
+    }
+
+    private synchronized Future<Void> submit(Kind kind, Path path, Object payload) {
+        if (closed) {
+            return Future.failedFuture("Durable writer is closed");
+        }
+        var promise = Promise.<Void>promise();
+        queue.add(new Op(kind, path, payload, new Completion(promise, Vertx.currentContext())));
+        return promise.future();
+    }
+
+    private void loop() {
+        var pending = new ArrayList<Op>();
+        while (true) {
+            try {
+                pending.add(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            queue.drainTo(pending);
+            var stop = false;
+            var batch = new ArrayList<Op>();
+            for (var op : pending) {
+                if (op == STOP) {
+                    stop = true;
+                } else if (op.kind == Kind.RUN) {
+                    commit(batch);
+                    batch.clear();
+                    runOperation(op);
+                } else {
+                    batch.add(op);
+                }
+            }
+            commit(batch);
+            pending.clear();
+            if (stop) {
+                closeAppendChannels();
+                return;
+            }
+        }
+    }
+
+    private void commit(List<Op> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        batches.increment();
+        var start = Metrics.start();
+        // Last content wins for replaced files
+        Map<Path, Buffer> replaced = new LinkedHashMap<>();
+        Map<Path, Throwable> failures = new HashMap<>();
+        Set<FileChannel> toSync = new LinkedHashSet<>();
+        Set<Path> dirsToSync = new LinkedHashSet<>();
+        for (var op : batch) {
+            if (op.kind == Kind.WRITE) {
+                if (replaced.put(op.path, (Buffer) op.payload) != null) {
+                    coalesced.increment();
+                }
+            } else if (!failures.containsKey(op.path)) {
+                try {
+                    var channel = appendChannel(op.path, dirsToSync);
+                    writeFully(channel, (Buffer) op.payload);
+                    toSync.add(channel);
+                    appends.increment();
+                } catch (IOException e) {
+                    failures.put(op.path, e);
+                }
+            }
+        }
+        Map<Path, Path> renames = new LinkedHashMap<>();
+        replaced.forEach((path, content) -> {
+            var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try {
+                createParents(path, dirsToSync);
+                try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    writeFully(channel, content);
+                    channel.force(true);
+                }
+                syncs.increment();
+                renames.put(tmp, path);
+                writes.increment();
+            } catch (IOException e) {
+                failures.put(path, e);
+            }
+        });
+        for (var channel : toSync) {
+            try {
+                channel.force(true);
+                syncs.increment();
+            } catch (IOException e) {
+                appendChannels.forEach((path, c) -> {
+                    if (c == channel) {
+                        failures.put(path, e);
+                    }
+                });
+            }
+        }
+        renames.forEach((tmp, path) -> {
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                dirsToSync.add(path.toAbsolutePath().getParent());
+            } catch (IOException e) {
+                failures.put(path, e);
+            }
+        });
+        dirsToSync.forEach(this::syncDirectory);
+        // Once synced: channels of the batch may be closed
+        trimAppendChannels();
+        Metrics.recordTime("homeblocks.writer.batch", start);
+        Metrics.recordCount("homeblocks.writer.batch.operations", batch.size());
+        batch.forEach(op -> op.completion.complete(failures.get(op.path)));
+    }
+
+    private void replace(Path path, Buffer content) throws IOException {
+        Set<Path> dirsToSync = new LinkedHashSet<>();
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        createParents(path, dirsToSync);
+        try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, content);
+            channel.force(true);
+        }
+        syncs.increment();
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writes.increment();
+        dirsToSync.add(path.toAbsolutePath().getParent());
+        dirsToSync.forEach(this::syncDirectory);
+    }
+
+    private void runOperation(Op op) {
+        closeAppendChannels();
+        Throwable failure = null;
+        try {
+            ((FileOperation) op.payload).run();
+        } catch (Exception e) {
+            failure = e;
+        }
+        op.completion.complete(failure);
+    }
+
+    private FileChannel appendChannel(Path path, Set<Path> dirsToSync) throws IOException {
+        var channel = appendChannels.get(path);
+        if (channel == null) {
+            createParents(path, dirsToSync);
+            if (!Files.exists(path)) {
+                dirsToSync.add(path.toAbsolutePath().getParent());
+            }
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            appendChannels.put(path, channel);
+        }
+        return channel;
+    }
+
+    private static void createParents(Path path, Set<Path> dirsToSync) throws IOException {
+        var dir = path.toAbsolutePath().getParent();
+        if (!Files.isDirectory(dir)) {
+            Files.createDirectories(dir);
+            // Make the new directory entry durable as well
+            dirsToSync.add(dir.getParent());
+        }
+    }
+
+    private static void writeFully(FileChannel channel, Buffer content) throws IOException {
+        var buf = ByteBuffer.wrap(content.getBytes());
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private void syncDirectory(Path dir) {
+        try (var channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+            syncs.increment();
+        } catch (IOException e) {
+            // Not supported on every platform (Windows): renames are then as durable as the OS makes them
+        }
+    }
+
+    private void trimAppendChannels() {
+        var it = appendChannels.values().iterator();
+        while (appendChannels.size() > MAX_APPEND_CHANNELS && it.hasNext()) {
+            close(it.next());
+            it.remove();
+        }
+        openAppendFiles.set(appendChannels.size());
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Could not close appended file: " + e.getMessage());
+        }
+    }
+
+    private void closeAppendChannels() {
+        appendChannels.values().forEach(DurableWriter::close);
+        appendChannels.clear();
+        openAppendFiles.set(0);
+    }
+
+    public JsonObject stats() {
+        return new JsonObject()
+                .put("batches", batches.sum())
+                .put("writes", writes.sum())
+                .put("coalesced", coalesced.sum())
+                .put("appends", appends.sum())
+                .put("openAppendFiles", openAppendFiles.get())
+                .put("syncs", syncs.sum());
+    }
+
+    /**
+     * Stops accepting operations, and waits until the queued ones are durable.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(STOP);
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package net.homeblocks.services;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import net.homeblocks.model.Page;
+import net.homeblocks.model.UserInfo;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Stores each profile in its own file, {@code users/<userID>/<profile>.<ext>}, and users in a {@link UserJournal}.
+ * Profiles are written in the configured {@link PageFormat}; files in the other one are still read, and replaced
+ * on their next write. The history of a profile is kept next to it, in {@code <profile>.history}, one JSON record
+ * per line.
+ */
+public class FileProfileStore implements ProfileStore {
+    private static final String HISTORY_EXTENSION = ".history";
+
+    private final FileSystem fs;
+    private final DurableWriter writer;
+    private final File userDir;
+    private final PageFormat format;
+    private final UserJournal users;
+
+    public FileProfileStore(Vertx vertx, DurableWriter writer, String strRoot, PageFormat format) {
+        this.fs = vertx.fileSystem();
+        this.writer = writer;
+        this.format = format;
+        this.userDir = Paths.get(strRoot, "users").toFile();
+        userDir.mkdirs();
+        this.users = new UserJournal(vertx, writer, userDir);
+    }
+
+    private File userPath(int userID) {
+        return Paths.get(userDir.getPath(), String.valueOf(userID)).toFile();
+    }
+
+    private File profilePath(int userID, String profile, PageFormat format) {
+        return Paths.get(userDir.getPath(), String.valueOf(userID), profile + format.extension).toFile();
+    }
+
+    /**
+     * Returns the file holding a profile, preferably in the configured format, or null if there's none.
+     */
+    private File existingProfilePath(int userID, String profile) {
+        var path = profilePath(userID, profile, format);
+        if (path.isFile()) {
+            return path;
+        }
+        path = profilePath(userID, profile, format.other());
+        return path.isFile() ? path : null;
+    }
+
+    @Override
+    public Collection<UserInfo> loadUsers() {
+        return users.users();
+    }
+
+    @Override
+    public Future<Void> saveUser(UserInfo userInfo) {
+        return users.append(userInfo);
+    }
+
+    @Override
+    public List<Integer> userIDs() {
+        var dirs = userDir.listFiles(File::isDirectory);
+        List<Integer> ids = new ArrayList<>();
+        if (dirs != null) {
+            for (var dir : dirs) {
+                try {
+                    ids.add(Integer.parseInt(dir.getName()));
+                } catch (NumberFormatException e) {
+                    // Not a user directory
+                }
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public List<String> list(int userID) {
+        var files = userPath(userID).listFiles();
+        if (files != null) {
+            // Skip temporary files of pending writes
+            return Arrays.stream(files).filter(File::isFile).map(File::getName)
+                    .filter(fileName -> fileName.endsWith(format.extension) || fileName.endsWith(format.other().extension))
+                    .map(fileName -> fileName.substring(0, fileName.lastIndexOf('.')))
+                    .distinct().collect(Collectors.toUnmodifiableList());
+        }
+        return List.of();
+    }
+
+    @Override
+    public boolean exists(int userID, String profile) {
+        return existingProfilePath(userID, profile) != null;
+    }
+
+    @Override
+    public Page read(int userID, String profile) {
+        var path = existingProfilePath(userID, profile);
+        if (path == null) {
+            return null;
+        }
+        var fileFormat = PageFormat.ofFile(path.getName());
+        var start = Metrics.start();
+        var content = fs.readFileBlocking(path.getAbsolutePath());
+        var page = fileFormat.decode(content);
+        Metrics.recordTime("homeblocks.profile.read", start, "format", fileFormat.name().toLowerCase());
+        Metrics.recordBytes("homeblocks.profile.read.size", content.length(), "format", fileFormat.name().toLowerCase());
+        return page;
+    }
+
+    @Override
+    public long modifiedAt(int userID, String profile) {
+        var path = existingProfilePath(userID, profile);
+        return path == null ? 0 : path.lastModified();
+    }
+
+    @Override
+    public Future<Void> write(int userID, String profile, Page page) {
+        var path = profilePath(userID, profile, format);
+        var start = Metrics.start();
+        var content = format.encode(page);
+        Metrics.recordBytes("homeblocks.profile.write.size", content.length(), "format", format.name().toLowerCase());
+        return writer.write(path.toPath(), content).compose(v -> {
+            // Until durable, including the wait for the batch
+            Metrics.recordTime("homeblocks.profile.write", start, "format", format.name().toLowerCase());
+            // Lazy migration: drop the file in the previous format, if any
+            var old = profilePath(userID, profile, format.other());
+            if (!old.exists()) {
+                return Future.succeededFuture();
+            }
+            return writer.run(() -> Files.deleteIfExists(old.toPath()));
+        });
+    }
+
+    private File historyPath(int userID, String profile) {
+        return Paths.get(userDir.getPath(), String.valueOf(userID), profile + HISTORY_EXTENSION).toFile();
+    }
+
+    @Override
+    public Future<Void> appendHistory(int userID, String profile, JsonObject record) {
+        // Led by a line feed, so that a record truncated by a crash doesn't swallow the next one
+        return writer.append(historyPath(userID, profile).toPath(), Buffer.buffer("\n" + record.encode()));
+    }
+
+    @Override
+    public List<JsonObject> readHistory(int userID, String profile) {
+        var path = historyPath(userID, profile);
+        if (!path.isFile()) {
+            return List.of();
+        }
+        return parseHistory(fs.readFileBlocking(path.getAbsolutePath()));
+    }
+
+    private static List<JsonObject> parseHistory(Buffer content) {
+        List<JsonObject> records = new ArrayList<>();
+        for (var line : content.toString(StandardCharsets.UTF_8).split("\n")) {
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                records.add(new JsonObject(line));
+            } catch (DecodeException e) {
+                System.out.println("Skipping corrupted history record: " + line);
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public Future<Void> rewriteHistory(int userID, String profile, UnaryOperator<List<JsonObject>> rewrite) {
+        return writer.rewrite(historyPath(userID, profile).toPath(), content -> {
+            var records = rewrite.apply(content == null ? List.of() : parseHistory(content));
+            var rewritten = Buffer.buffer();
+            records.forEach(record -> rewritten.appendString("\n").appendString(record.encode()));
+            return rewritten;
+        });
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,45 @@
+package net.homeblocks.services;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+
+/**
+ * Checks the hosts the server connects to on behalf of users (media, links), so that user content can't make it
+ * reach internal services.
+ */
+public class Hosts {
+    private Hosts() {
+    }
+
+    /**
+     * Resolves a host name off the event loop, failing unless all its addresses are public. The returned address
+     * keeps the host name, for TLS server name and certificate checks: connecting to it, rather than to the name,
+     * prevents the name from resolving differently in the meantime.
+     */
+    public static Future<InetAddress> resolvePublic(Vertx vertx, String host, boolean allowPrivate) {
+        return vertx.executeBlocking(() -> {
+            var addresses = InetAddress.getAllByName(host);
+            if (!allowPrivate) {
+                for (var address : addresses) {
+                    if (!isPublic(address)) {
+                        throw new IOException("Not a public address: " + host);
+                    }
+                }
+            }
+            return InetAddress.getByAddress(host, addresses[0].getAddress());
+        }, false);
+    }
+
+    static boolean isPublic(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isSiteLocalAddress() || address.isLinkLocalAddress()
+                || address.isAnyLocalAddress() || address.isMulticastAddress()) {
+            return false;
+        }
+        // IPv6 unique local addresses, fc00::/7
+        return !(address instanceof Inet6Address) || (address.getAddress()[0] & 0xfe) != 0xfc;
+    }
+}
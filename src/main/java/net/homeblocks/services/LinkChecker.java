@@ -0,0 +1,429 @@
+package net.homeblocks.services;
+
+import io.netty.channel.ConnectTimeoutException;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.ext.web.codec.BodyCodec;
+import net.homeblocks.model.Page;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Checks the links of all profiles in the background, and remembers which ones are broken.
+ * <p>
+ * All stored pages are walked periodically, off the event loop; links never checked or whose result expired are
+ * queued, as well as new links of modified pages. Checks are HEAD requests (GET when refused), with a bounded
+ * number in flight, at most one at a time per host and a minimum interval between two requests to the same host.
+ * Hosts answering 429 or 503, or timing out, are backed off exponentially. Results are saved to
+ * {@code link-status.json}, so that a restart doesn't check everything again.
+ */
+public class LinkChecker implements ProfileListener {
+    private static final long OK_TTL_MS = 7 * 24 * 3600_000L;
+    private static final long BROKEN_TTL_MS = 24 * 3600_000L;
+    private static final long UNKNOWN_TTL_MS = 6 * 3600_000L;
+    private static final long MAX_BACKOFF_MS = 3600_000L;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int TIMEOUT_MS = 15_000;
+
+    public enum Status {OK, BROKEN, UNKNOWN}
+
+    /**
+     * @param code the last HTTP status, or 0 if there was no response
+     */
+    public record Result(Status status, int code, long checkedAt, long expiresAt) {
+        public JsonObject toJson() {
+            return new JsonObject()
+                    .put("status", status.name().toLowerCase())
+                    .put("code", code)
+                    .put("checkedAt", checkedAt)
+                    .put("expiresAt", expiresAt);
+        }
+
+        static Result fromJson(JsonObject json) {
+            return new Result(Status.valueOf(json.getString("status").toUpperCase()), json.getInteger("code"),
+                    json.getLong("checkedAt"), json.getLong("expiresAt"));
+        }
+    }
+
+    /**
+     * @param retryAfterMs how long to leave the host alone, or 0 if it's fine
+     */
+    private record Outcome(Status status, int code, long retryAfterMs) {}
+
+    /**
+     * URLs waiting to be checked on a host.
+     */
+    private static class HostQueue {
+        private final ArrayDeque<String> urls = new ArrayDeque<>();
+        // In the ready queue, waiting for its next slot, or being checked
+        private boolean scheduled = false;
+        private long notBefore = 0;
+        private long backoffMs = 0;
+    }
+
+    private final Vertx vertx;
+    private final Context context;
+    private final ProfileStore store;
+    private final ProfileService profileService;
+    private final DurableWriter writer;
+    private final WebClient client;
+    private final Path snapshotPath;
+    private final int concurrency;
+    private final long hostIntervalMs;
+    private final boolean allowPrivateHosts;
+    private final Map<String, Result> results = new ConcurrentHashMap<>();
+    // Scheduling state, only accessed from the checker's context
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+    private final ArrayDeque<HostQueue> ready = new ArrayDeque<>();
+    private final Set<String> queued = new HashSet<>();
+    private int active = 0;
+    private boolean modified = false;
+    private long walkTimer = -1;
+
+    /**
+     * @param intervalMs how often to walk all pages, or 0 to not check links (known results are still served)
+     */
+    public LinkChecker(Vertx vertx, ProfileStore store, ProfileService profileService, DurableWriter writer,
+                       String strRoot, long intervalMs, int concurrency, long hostIntervalMs,
+                       boolean allowPrivateHosts) {
+        this.vertx = vertx;
+        this.context = vertx.getOrCreateContext();
+        this.store = store;
+        this.profileService = profileService;
+        this.writer = writer;
+        this.snapshotPath = Paths.get(strRoot, "link-status.json");
+        this.concurrency = concurrency;
+        this.hostIntervalMs = hostIntervalMs;
+        this.allowPrivateHosts = allowPrivateHosts;
+        this.client = WebClient.create(vertx, new WebClientOptions()
+                .setFollowRedirects(false)
+                .setConnectTimeout(TIMEOUT_MS)
+                .setMaxPoolSize(concurrency)
+                .setForceSni(true)
+                .setUserAgent("homeblocks-link-checker"));
+        loadSnapshot();
+        if (intervalMs > 0) {
+            profileService.addListener(this);
+            context.runOnContext(v -> walk());
+            walkTimer = vertx.setPeriodic(intervalMs, id -> walk());
+        }
+        Metrics.gauge("homeblocks.links.known", results::size);
+        Metrics.gauge("homeblocks.links.queued", queued::size);
+    }
+
+    private void loadSnapshot() {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        try {
+            var json = new JsonObject(Files.readString(snapshotPath));
+            json.forEach(e -> results.put(e.getKey(), Result.fromJson((JsonObject) e.getValue())));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not load link statuses, checking again: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the known statuses of some links.
+     */
+    public Map<String, Result> statuses(Collection<String> urls) {
+        Map<String, Result> statuses = new LinkedHashMap<>();
+        for (var url : urls) {
+            var result = results.get(url);
+            if (result != null) {
+                statuses.put(url, result);
+            }
+        }
+        return statuses;
+    }
+
+    public static Set<String> urls(Page page) {
+        Set<String> urls = new HashSet<>();
+        for (var block : page.getBlocks()) {
+            if (block.getLinks() != null) {
+                block.getLinks().forEach(link -> {
+                    if (link.getUrl() != null) {
+                        urls.add(link.getUrl());
+                    }
+                });
+            }
+        }
+        return urls;
+    }
+
+    @Override
+    public void profileCreated(int userID, String profile, Page page) {
+        profileUpdated(userID, profile, page);
+    }
+
+    @Override
+    public void profileUpdated(int userID, String profile, Page page) {
+        var urls = urls(page);
+        // New links only: the others are checked again when their result expires
+        context.runOnContext(v -> urls.forEach(url -> {
+            if (!results.containsKey(url)) {
+                enqueue(url);
+            }
+        }));
+    }
+
+    /**
+     * Reads all pages on a worker, then queues their links that are due for a check. Results of links that
+     * disappeared from all pages are dropped.
+     */
+    private void walk() {
+        var start = System.currentTimeMillis();
+        vertx.executeBlocking(this::collectUrls, false).onComplete(ar -> {
+            if (ar.failed()) {
+                System.err.println("Could not walk profiles for link checks: " + ar.cause());
+                return;
+            }
+            var urls = ar.result();
+            var now = System.currentTimeMillis();
+            urls.forEach(url -> {
+                var result = results.get(url);
+                if (result == null || result.expiresAt() <= now) {
+                    enqueue(url);
+                }
+            });
+            if (results.entrySet().removeIf(e -> !urls.contains(e.getKey()) && e.getValue().checkedAt() < start)) {
+                modified = true;
+            }
+            // Forget idle hosts
+            hosts.values().removeIf(h -> !h.scheduled && h.notBefore < now);
+            System.out.println("Walked " + urls.size() + " links in " + (now - start) + " ms, " + queued.size()
+                    + " queued for checks");
+            saveSnapshot();
+        });
+    }
+
+    private Set<String> collectUrls() {
+        Set<String> urls = new HashSet<>();
+        // From the store, so that the walk doesn't fill the lists kept for users being served
+        for (var userID : store.userIDs()) {
+            for (var profile : store.list(userID)) {
+                try {
+                    var page = profileService.peek(userID, profile);
+                    if (page != null) {
+                        urls.addAll(urls(page));
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Could not read profile " + profile + " of user " + userID + ": " + e.getMessage());
+                }
+            }
+        }
+        return urls;
+    }
+
+    private void enqueue(String url) {
+        var uri = parse(url);
+        if (uri == null || !queued.add(url)) {
+            return;
+        }
+        var host = hosts.computeIfAbsent(uri.getHost().toLowerCase(), h -> new HostQueue());
+        host.urls.add(url);
+        if (!host.scheduled) {
+            host.scheduled = true;
+            ready.add(host);
+        }
+        pump();
+    }
+
+    /**
+     * Returns the URL if it can be checked: absolute HTTP(S) only.
+     */
+    private static URI parse(String url) {
+        try {
+            var uri = new URI(url.trim());
+            var scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase();
+            if (!"http".equals(scheme) && !"https".equals(scheme) || uri.getHost() == null) {
+                return null;
+            }
+            return uri;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts checks until the concurrency limit is reached, or no host is ready.
+     */
+    private void pump() {
+        var now = System.currentTimeMillis();
+        while (active < concurrency && !ready.isEmpty()) {
+            var host = ready.poll();
+            var url = host.urls.poll();
+            if (url == null) {
+                host.scheduled = false;
+                continue;
+            }
+            if (host.notBefore > now) {
+                host.urls.addFirst(url);
+                vertx.setTimer(host.notBefore - now, id -> {
+                    ready.add(host);
+                    pump();
+                });
+                continue;
+            }
+            active++;
+            var start = Metrics.start();
+            check(url, HttpMethod.HEAD, 0)
+                    .otherwise(LinkChecker::failureOutcome)
+                    .onSuccess(outcome -> {
+                        active--;
+                        queued.remove(url);
+                        var checkedAt = System.currentTimeMillis();
+                        results.put(url, new Result(outcome.status(), outcome.code(), checkedAt,
+                                checkedAt + ttl(outcome.status())));
+                        modified = true;
+                        Metrics.recordTime("homeblocks.links.check", start, "status",
+                                outcome.status().name().toLowerCase());
+                        if (outcome.retryAfterMs() > 0) {
+                            host.backoffMs = Math.min(MAX_BACKOFF_MS,
+                                    Math.max(outcome.retryAfterMs(), Math.max(hostIntervalMs, host.backoffMs * 2)));
+                        } else {
+                            host.backoffMs = 0;
+                        }
+                        host.notBefore = checkedAt + hostIntervalMs + host.backoffMs;
+                        if (host.urls.isEmpty()) {
+                            host.scheduled = false;
+                        } else {
+                            ready.add(host);
+                        }
+                        pump();
+                    });
+        }
+    }
+
+    private static long ttl(Status status) {
+        var ttl = switch (status) {
+            case OK -> OK_TTL_MS;
+            case BROKEN -> BROKEN_TTL_MS;
+            case UNKNOWN -> UNKNOWN_TTL_MS;
+        };
+        // Spread checks over time, rather than having all links of a walk expire together
+        return ttl + ThreadLocalRandom.current().nextLong(ttl / 10);
+    }
+
+    private Future<Outcome> check(String url, HttpMethod method, int redirects) {
+        var uri = parse(url);
+        if (uri == null) {
+            return Future.succeededFuture(new Outcome(Status.UNKNOWN, 0, 0));
+        }
+        var port = uri.getPort() > 0 ? uri.getPort() : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        return Hosts.resolvePublic(vertx, uri.getHost(), allowPrivateHosts)
+                .compose(address -> client
+                        .requestAbs(method, SocketAddress.inetSocketAddress(new InetSocketAddress(address, port)),
+                                uri.toString())
+                        .timeout(TIMEOUT_MS)
+                        .as(BodyCodec.none())
+                        .send())
+                .compose(res -> {
+                    var code = res.statusCode();
+                    var location = res.getHeader(HttpHeaders.LOCATION.toString());
+                    if (code >= 300 && code < 400 && location != null) {
+                        if (redirects >= MAX_REDIRECTS) {
+                            return Future.succeededFuture(new Outcome(Status.UNKNOWN, code, 0));
+                        }
+                        try {
+                            return check(uri.resolve(location.trim()).toString(), method, redirects + 1);
+                        } catch (IllegalArgumentException e) {
+                            return Future.succeededFuture(new Outcome(Status.BROKEN, code, 0));
+                        }
+                    }
+                    if (method == HttpMethod.HEAD && (code == 400 || code == 403 || code == 405 || code == 501)) {
+                        // Some servers don't support HEAD
+                        return check(url, HttpMethod.GET, redirects);
+                    }
+                    if (code >= 200 && code < 300) {
+                        return Future.succeededFuture(new Outcome(Status.OK, code, 0));
+                    }
+                    if (code == 404 || code == 410) {
+                        return Future.succeededFuture(new Outcome(Status.BROKEN, code, 0));
+                    }
+                    if (code == 429 || code == 503) {
+                        return Future.succeededFuture(new Outcome(Status.UNKNOWN, code, retryAfter(res.getHeader("Retry-After"))));
+                    }
+                    // Access denied, server errors...: can't tell
+                    return Future.succeededFuture(new Outcome(Status.UNKNOWN, code, 0));
+                });
+    }
+
+    private static Outcome failureOutcome(Throwable failure) {
+        if (failure instanceof TimeoutException || failure instanceof ConnectTimeoutException) {
+            return new Outcome(Status.UNKNOWN, 0, MAX_BACKOFF_MS / 60);
+        }
+        if (failure instanceof UnknownHostException || failure instanceof ConnectException) {
+            return new Outcome(Status.BROKEN, 0, 0);
+        }
+        // Not a public address, TLS errors...
+        return new Outcome(Status.UNKNOWN, 0, 0);
+    }
+
+    private long retryAfter(String header) {
+        if (header != null) {
+            try {
+                return Long.parseLong(header.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                // An HTTP date: use the default backoff
+            }
+        }
+        return hostIntervalMs;
+    }
+
+    private void saveSnapshot() {
+        if (!modified) {
+            return;
+        }
+        modified = false;
+        vertx.executeBlocking(this::encodeSnapshot, false)
+                .compose(content -> writer.write(snapshotPath, content))
+                .onFailure(e -> {
+                    modified = true;
+                    System.err.println("Could not save link statuses: " + e.getMessage());
+                });
+    }
+
+    private Buffer encodeSnapshot() {
+        var json = new JsonObject();
+        results.forEach((url, result) -> json.put(url, result.toJson()));
+        return json.toBuffer();
+    }
+
+    /**
+     * Stops checking, and queues a last snapshot to the writer.
+     */
+    public void close() {
+        if (walkTimer >= 0) {
+            vertx.cancelTimer(walkTimer);
+        }
+        writer.write(snapshotPath, encodeSnapshot());
+        client.close();
+    }
+}
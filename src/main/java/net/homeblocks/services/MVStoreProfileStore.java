@@ -0,0 +1,220 @@
+package net.homeblocks.services;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import net.homeblocks.model.Page;
+import net.homeblocks.model.UserInfo;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Stores users and profiles in a single file, with the embedded MVStore key-value store. Writes are visible right
+ * away, and made durable by commits run on the {@link DurableWriter} thread: a commit covers every write done
+ * before it, so writes queued while one is running are committed together, atomically.
+ * <p>
+ * Profile keys are {@code <userID>/<profile>}, so that a user's profiles are contiguous. Pages are stored in the
+ * configured {@link PageFormat}, prefixed with its ordinal so that changing formats keeps older pages readable.
+ * History records are keyed by {@code <userID>/<profile>#<revision>}, the revision padded so that keys sort in
+ * order.
+ */
+public class MVStoreProfileStore implements ProfileStore {
+    private final DurableWriter writer;
+    private final PageFormat format;
+    private final MVStore store;
+    // User ID -> JSON record
+    private final MVMap<Integer, String> users;
+    private final MVMap<String, byte[]> pages;
+    // Kept apart from pages, so that listings and reconciliations don't read them
+    private final MVMap<String, Long> modified;
+    private final MVMap<String, String> history;
+
+    /**
+     * @param cacheSizeMb size of the cache of B-tree pages, in MB. Pages missing from it are read and decoded
+     *                    along with their neighbours, so reads slow down once profiles outgrow it
+     */
+    public MVStoreProfileStore(DurableWriter writer, Path file, PageFormat format, int cacheSizeMb) {
+        this.writer = writer;
+        this.format = format;
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // Committed explicitly, so that writes complete once durable
+        this.store = new MVStore.Builder()
+                .fileName(file.toString())
+                .cacheSize(cacheSizeMb)
+                .autoCommitDisabled()
+                .open();
+        this.users = store.openMap("users");
+        this.pages = store.openMap("pages");
+        this.modified = store.openMap("modified");
+        this.history = store.openMap("history");
+        Metrics.gauge("homeblocks.store.profiles", modified::sizeAsLong);
+    }
+
+    private static String key(int userID, String profile) {
+        return userID + "/" + profile;
+    }
+
+    /**
+     * Commits all the changes done so far, unless a previous commit already did.
+     */
+    private Future<Void> commit() {
+        return writer.run(this::commitNow);
+    }
+
+    // Only on the writer thread
+    private void commitNow() {
+        if (store.hasUnsavedChanges()) {
+            var start = Metrics.start();
+            store.commit();
+            store.sync();
+            Metrics.recordTime("homeblocks.store.commit", start);
+        }
+    }
+
+    @Override
+    public Collection<UserInfo> loadUsers() {
+        List<UserInfo> list = new ArrayList<>(users.size());
+        for (var json : users.values()) {
+            list.add(UserInfo.fromJson(new JsonObject(json)));
+        }
+        return list;
+    }
+
+    @Override
+    public Future<Void> saveUser(UserInfo userInfo) {
+        users.put(userInfo.intIdx(), userInfo.toJson().encode());
+        return commit();
+    }
+
+    @Override
+    public List<Integer> userIDs() {
+        List<Integer> ids = new ArrayList<>();
+        var key = modified.ceilingKey("");
+        while (key != null) {
+            var userID = key.substring(0, key.indexOf('/'));
+            ids.add(Integer.parseInt(userID));
+            // '0' sorts right after '/': skips the rest of this user's profiles
+            key = modified.ceilingKey(userID + "0");
+        }
+        return ids;
+    }
+
+    @Override
+    public List<String> list(int userID) {
+        var prefix = userID + "/";
+        List<String> names = new ArrayList<>();
+        var keys = modified.keyIterator(prefix);
+        while (keys.hasNext()) {
+            var key = keys.next();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            names.add(key.substring(prefix.length()));
+        }
+        return List.copyOf(names);
+    }
+
+    @Override
+    public boolean exists(int userID, String profile) {
+        return modified.containsKey(key(userID, profile));
+    }
+
+    @Override
+    public Page read(int userID, String profile) {
+        var start = Metrics.start();
+        var bytes = pages.get(key(userID, profile));
+        if (bytes == null) {
+            return null;
+        }
+        var pageFormat = PageFormat.values()[bytes[0]];
+        var page = pageFormat.decode(Buffer.buffer(bytes).slice(1, bytes.length));
+        Metrics.recordTime("homeblocks.profile.read", start, "format", pageFormat.name().toLowerCase());
+        Metrics.recordBytes("homeblocks.profile.read.size", bytes.length - 1, "format", pageFormat.name().toLowerCase());
+        return page;
+    }
+
+    @Override
+    public long modifiedAt(int userID, String profile) {
+        var time = modified.get(key(userID, profile));
+        return time == null ? 0 : time;
+    }
+
+    @Override
+    public Future<Void> write(int userID, String profile, Page page) {
+        var start = Metrics.start();
+        var content = format.encode(page);
+        Metrics.recordBytes("homeblocks.profile.write.size", content.length(), "format", format.name().toLowerCase());
+        var bytes = new byte[content.length() + 1];
+        bytes[0] = (byte) format.ordinal();
+        content.getBytes(bytes, 1);
+        var key = key(userID, profile);
+        pages.put(key, bytes);
+        modified.put(key, System.currentTimeMillis());
+        return commit().onSuccess(v ->
+                Metrics.recordTime("homeblocks.profile.write", start, "format", format.name().toLowerCase()));
+    }
+
+    private static String historyPrefix(int userID, String profile) {
+        return key(userID, profile) + "#";
+    }
+
+    private static String historyKey(int userID, String profile, int revision) {
+        return historyPrefix(userID, profile) + String.format("%010d", revision);
+    }
+
+    @Override
+    public Future<Void> appendHistory(int userID, String profile, JsonObject record) {
+        history.put(historyKey(userID, profile, record.getInteger("rev")), record.encode());
+        return commit();
+    }
+
+    @Override
+    public List<JsonObject> readHistory(int userID, String profile) {
+        var prefix = historyPrefix(userID, profile);
+        List<JsonObject> records = new ArrayList<>();
+        var cursor = history.cursor(prefix);
+        while (cursor.hasNext()) {
+            var key = cursor.next();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            // Skips the records of other profiles whose name starts with this one and '#'
+            if (key.length() == prefix.length() + 10) {
+                records.add(new JsonObject(cursor.getValue()));
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public Future<Void> rewriteHistory(int userID, String profile, UnaryOperator<List<JsonObject>> rewrite) {
+        return writer.run(() -> {
+            var records = readHistory(userID, profile);
+            // Before removing anything, as the removals would be committed even if the rewrite failed
+            var rewritten = rewrite.apply(new ArrayList<>(records));
+            records.forEach(record -> history.remove(historyKey(userID, profile, record.getInteger("rev"))));
+            rewritten.forEach(record ->
+                    history.put(historyKey(userID, profile, record.getInteger("rev")), record.encode()));
+            commitNow();
+        });
+    }
+
+    @Override
+    public void close() {
+        // Commits what's left, and compacts the file for a short while
+        store.close();
+    }
+}
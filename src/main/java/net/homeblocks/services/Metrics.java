@@ -0,0 +1,115 @@
+package net.homeblocks.services;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Application metrics, on top of the Vert.x ones. Everything is a no-op until {@link #init} is called with a
+ * registry, i.e. when metrics are disabled.
+ */
+public class Metrics {
+    private static volatile MeterRegistry registry;
+    // Built once per name and tags: recording happens on every request, registering would look the meter up again
+    private static final Map<MeterKey, Timer> timers = new ConcurrentHashMap<>();
+    private static final Map<MeterKey, DistributionSummary> summaries = new ConcurrentHashMap<>();
+    // Keeps the handler's logger from being garbage collected along with its configuration
+    private static Logger blockedThreadLogger;
+
+    private Metrics() {
+    }
+
+    private record MeterKey(String name, List<String> tags) {
+        MeterKey(String name, String... tags) {
+            this(name, Arrays.asList(tags));
+        }
+    }
+
+    public static void init(MeterRegistry meterRegistry) {
+        timers.clear();
+        summaries.clear();
+        registry = meterRegistry;
+        if (meterRegistry != null) {
+            countBlockedThreadWarnings(meterRegistry);
+        }
+    }
+
+    public static boolean enabled() {
+        return registry != null;
+    }
+
+    /**
+     * Returns a start time to pass to {@link #recordTime}.
+     */
+    public static long start() {
+        return registry != null ? System.nanoTime() : 0;
+    }
+
+    public static void recordTime(String name, long startNs, String... tags) {
+        var r = registry;
+        if (r != null) {
+            timers.computeIfAbsent(new MeterKey(name, tags),
+                            k -> Timer.builder(name).tags(tags).publishPercentileHistogram().register(r))
+                    .record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public static void recordBytes(String name, long bytes, String... tags) {
+        var r = registry;
+        if (r != null) {
+            summaries.computeIfAbsent(new MeterKey(name, tags),
+                    k -> DistributionSummary.builder(name).baseUnit("bytes").tags(tags).register(r)).record(bytes);
+        }
+    }
+
+    public static void recordCount(String name, long count, String... tags) {
+        var r = registry;
+        if (r != null) {
+            summaries.computeIfAbsent(new MeterKey(name, tags),
+                    k -> DistributionSummary.builder(name).tags(tags).register(r)).record(count);
+        }
+    }
+
+    public static void gauge(String name, Supplier<Number> value, String... tags) {
+        var r = registry;
+        if (r != null) {
+            Gauge.builder(name, value).tags(tags).register(r);
+        }
+    }
+
+    /**
+     * Vert.x reports blocked event loops and workers as log warnings only: count them.
+     */
+    private static void countBlockedThreadWarnings(MeterRegistry r) {
+        var counter = r.counter("homeblocks.blocked.thread.warnings");
+        blockedThreadLogger = Logger.getLogger("io.vertx.core.impl.BlockedThreadChecker");
+        blockedThreadLogger.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+                    counter.increment();
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+}
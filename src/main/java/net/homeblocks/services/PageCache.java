@@ -0,0 +1,227 @@
+package net.homeblocks.services;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import net.homeblocks.model.Page;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * LRU cache of parsed pages, written through: {@link #write} caches a page and writes it to the store right away.
+ * Writes are asynchronous, and pages being written are tracked until their write completes, so that a page evicted
+ * meanwhile is still served from memory rather than read stale from the store.
+ * <p>
+ * A page whose write fails is marked dirty, or put back in the cache as dirty if it was evicted and not replaced
+ * since. Dirty pages are written again by {@link #flush}, or right away when they get evicted: they are the only
+ * ones the store doesn't have. Access is synchronized, as the cache is shared by all HTTP verticles.
+ * <p>
+ * Entries are kept in insertion order, and moved to the end when used, so that {@link #peek} can read them without
+ * making them recently used.
+ */
+public class PageCache {
+    private final int maxSize;
+    private final BiFunction<ProfileKey, Page, Future<Void>> writer;
+    private final LinkedHashMap<ProfileKey, Entry> entries;
+    // Latest page being written, per key. Writes of a key complete in order, as the store applies them in order.
+    private final Map<ProfileKey, Page> writing = new HashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    private static class Entry {
+        private Page page;
+        private boolean dirty;
+
+        private Entry(Page page, boolean dirty) {
+            this.page = page;
+            this.dirty = dirty;
+        }
+    }
+
+    public PageCache(int maxSize, BiFunction<ProfileKey, Page, Future<Void>> writer) {
+        this.maxSize = maxSize;
+        this.writer = writer;
+        this.entries = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ProfileKey, Entry> eldest) {
+                if (size() <= PageCache.this.maxSize) {
+                    return false;
+                }
+                evictions.increment();
+                if (eldest.getValue().dirty) {
+                    writeBack(eldest.getKey(), eldest.getValue().page);
+                }
+                return true;
+            }
+        };
+    }
+
+    public synchronized Page get(ProfileKey key) {
+        var entry = touch(key);
+        if (entry != null) {
+            hits.increment();
+            return entry.page;
+        }
+        var written = writing.get(key);
+        if (written != null) {
+            hits.increment();
+            return written;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Returns the cached page, or the one being written, without counting a hit nor making it recently used: for
+     * background walks over all pages.
+     */
+    public synchronized Page peek(ProfileKey key) {
+        var entry = entries.get(key);
+        return entry != null ? entry.page : writing.get(key);
+    }
+
+    /**
+     * Moves an entry to the end, as the most recently used.
+     */
+    private Entry touch(ProfileKey key) {
+        var entry = entries.remove(key);
+        if (entry != null) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized boolean contains(ProfileKey key) {
+        return entries.containsKey(key) || writing.containsKey(key);
+    }
+
+    /**
+     * Caches a page freshly read from disk, unless a concurrent update already put a newer one, or a newer one is
+     * being written: the store may not have it yet.
+     */
+    public synchronized Page putIfAbsent(ProfileKey key, Page page) {
+        var entry = touch(key);
+        if (entry != null) {
+            return entry.page;
+        }
+        var written = writing.get(key);
+        if (written != null) {
+            page = written;
+        }
+        entries.put(key, new Entry(page, false));
+        return page;
+    }
+
+    /**
+     * Caches a page that the store already has, or is about to.
+     */
+    public synchronized void put(ProfileKey key, Page page) {
+        var entry = touch(key);
+        if (entry != null) {
+            entry.page = page;
+        } else {
+            entries.put(key, new Entry(page, false));
+        }
+    }
+
+    /**
+     * Caches a page and writes it through. The page is served from the cache meanwhile.
+     *
+     * @return completes once the page is durably written; if it fails, the page is kept dirty to be written again
+     */
+    public synchronized Future<Void> write(ProfileKey key, Page page) {
+        var entry = touch(key);
+        if (entry != null) {
+            // Supersedes any pending write-back
+            entry.page = page;
+            entry.dirty = false;
+        } else {
+            entries.put(key, new Entry(page, false));
+        }
+        return writeBack(key, page);
+    }
+
+    /**
+     * Drops a page, unless it has been replaced since.
+     */
+    public synchronized void remove(ProfileKey key, Page page) {
+        var entry = entries.get(key);
+        if (entry != null && entry.page == page) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Writes again the pages whose write failed.
+     */
+    public synchronized int flush() {
+        List<Map.Entry<ProfileKey, Entry>> toWrite = new ArrayList<>();
+        entries.entrySet().forEach(e -> {
+            if (e.getValue().dirty) {
+                toWrite.add(e);
+            }
+        });
+        toWrite.forEach(e -> {
+            e.getValue().dirty = false;
+            writeBack(e.getKey(), e.getValue().page);
+        });
+        return toWrite.size();
+    }
+
+    // Called with the lock held, so that writes of a key reach the store in order
+    private Future<Void> writeBack(ProfileKey key, Page page) {
+        writes.increment();
+        writing.put(key, page);
+        Future<Void> written;
+        try {
+            written = writer.apply(key, page);
+        } catch (RuntimeException e) {
+            written = Future.failedFuture(e);
+        }
+        return written.andThen(ar -> {
+            if (ar.failed()) {
+                System.err.println("Could not write back profile " + key + ": " + ar.cause().getMessage());
+            }
+            written(key, page, ar.succeeded());
+        });
+    }
+
+    private synchronized void written(ProfileKey key, Page page, boolean succeeded) {
+        // Unless a newer write of the same key is in flight
+        writing.remove(key, page);
+        if (succeeded) {
+            return;
+        }
+        var entry = entries.get(key);
+        if (entry == null) {
+            // Evicted meanwhile, and not read nor replaced since: put back, to be written again
+            entries.put(key, new Entry(page, true));
+        } else if (entry.page == page) {
+            entry.dirty = true;
+        }
+    }
+
+    public synchronized JsonObject stats() {
+        var dirty = entries.values().stream().filter(e -> e.dirty).count();
+        return new JsonObject()
+                .put("size", entries.size())
+                .put("maxSize", maxSize)
+                .put("dirty", dirty)
+                .put("writing", writing.size())
+                .put("hits", hits.sum())
+                .put("misses", misses.sum())
+                .put("evictions", evictions.sum())
+                .put("writes", writes.sum());
+    }
+}
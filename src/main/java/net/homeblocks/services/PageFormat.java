@@ -0,0 +1,60 @@
+package net.homeblocks.services;
+
+import io.vertx.core.buffer.Buffer;
+import net.homeblocks.model.BinaryPageCodec;
+import net.homeblocks.model.Page;
+import net.homeblocks.model.PageCodec;
+
+/**
+ * On-disk formats of profile pages. Files in the other format are migrated on their next write.
+ */
+public enum PageFormat {
+    JSON(".json") {
+        @Override
+        public Buffer encode(Page page) {
+            return PageCodec.encode(page);
+        }
+
+        @Override
+        public Page decode(Buffer buffer) {
+            return PageCodec.decode(buffer);
+        }
+    },
+    BINARY(".hbp") {
+        @Override
+        public Buffer encode(Page page) {
+            return BinaryPageCodec.encode(page);
+        }
+
+        @Override
+        public Page decode(Buffer buffer) {
+            return BinaryPageCodec.decode(buffer);
+        }
+    };
+
+    public final String extension;
+
+    PageFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public abstract Buffer encode(Page page);
+
+    public abstract Page decode(Buffer buffer);
+
+    /**
+     * Returns the format of a file from its name, or null if it's not a profile file.
+     */
+    public static PageFormat ofFile(String fileName) {
+        for (var format : values()) {
+            if (fileName.endsWith(format.extension)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    public PageFormat other() {
+        return this == JSON ? BINARY : JSON;
+    }
+}
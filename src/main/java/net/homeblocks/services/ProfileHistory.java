@@ -0,0 +1,238 @@
+package net.homeblocks.services;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import net.homeblocks.model.Page;
+import net.homeblocks.model.PagePatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Revisions of profiles, kept by the {@link ProfileStore} as an append-only log per profile. Each record holds a
+ * revision number ({@code rev}), a time ({@code at}), and either the whole page ({@code page}) or the
+ * {@link PagePatch} operations turning the previous revision into this one ({@code ops}). A snapshot is written
+ * every {@link #SNAPSHOT_INTERVAL} revisions, so that reading a revision replays a few deltas at most. The latest
+ * revision is the stored page itself: it is never rebuilt from the log.
+ * <p>
+ * A log keeps the last {@code maxRevisions} revisions. Once it holds {@link #SNAPSHOT_INTERVAL} more, the oldest
+ * are dropped, and the first one kept is rewritten as a snapshot.
+ * <p>
+ * Records and pages are separate writes: after a crash, the log may hold a revision whose page was never stored, or
+ * miss the last stored one. Before the first record of a log since startup, its latest revision is rebuilt and
+ * compared with the stored page, and if they differ, the stored page is appended as a snapshot, so that the deltas
+ * that follow apply to the page they were computed from.
+ */
+public class ProfileHistory {
+    static final int SNAPSHOT_INTERVAL = 20;
+
+    private final ProfileStore store;
+    private final int maxRevisions;
+    // Revisions of the logs appended to since startup, read from the store the first time
+    private final Map<ProfileKey, Log> logs = new ConcurrentHashMap<>();
+
+    private static class Log {
+        private int first;
+        private int last;
+        private int lastSnapshot;
+        // Whether the latest revision is known to be the stored page
+        private boolean checked;
+        // The latest revision as read when loading the log, until checked
+        private JsonObject head;
+    }
+
+    public record Revision(int rev, long at, boolean snapshot, int changes) {
+        JsonObject toJson() {
+            return new JsonObject().put("rev", rev).put("at", at).put("snapshot", snapshot).put("changes", changes);
+        }
+    }
+
+    /**
+     * @param maxRevisions revisions kept per profile, or 0 to keep no history
+     */
+    public ProfileHistory(ProfileStore store, int maxRevisions) {
+        this.store = store;
+        this.maxRevisions = maxRevisions;
+    }
+
+    public boolean enabled() {
+        return maxRevisions > 0;
+    }
+
+    private Log log(ProfileKey key) {
+        return logs.computeIfAbsent(key, k -> {
+            var log = new Log();
+            var records = store.readHistory(k.userID(), k.profile());
+            for (var record : records) {
+                var rev = record.getInteger("rev");
+                if (log.first == 0) {
+                    log.first = rev;
+                }
+                log.last = rev;
+                if (record.containsKey("page")) {
+                    log.lastSnapshot = rev;
+                }
+            }
+            log.head = head(records, log.last);
+            return log;
+        });
+    }
+
+    /**
+     * Records a new revision of a page. Callers serialize changes of a profile.
+     *
+     * @param previous the page before the change, or null if it was just created
+     * @param ops      operations turning the previous page into the new one, or null to compute them
+     */
+    void record(int userID, String profile, Page previous, Page page, JsonArray ops) {
+        if (!enabled()) {
+            return;
+        }
+        var key = new ProfileKey(userID, profile);
+        var log = log(key);
+        if (!log.checked) {
+            log.checked = true;
+            var head = log.head;
+            log.head = null;
+            if (log.last > 0 && previous != null && !previous.toJson().equals(head)) {
+                System.err.println("History of " + key + " doesn't end with the stored page, appending it");
+                append(key, log, snapshot(log.last + 1, store.modifiedAt(userID, profile), previous));
+            }
+        }
+        if (log.last == 0 && previous != null) {
+            // History starts with the page as it was before its first recorded change
+            append(key, log, snapshot(1, store.modifiedAt(userID, profile), previous));
+        }
+        var rev = log.last + 1;
+        var now = System.currentTimeMillis();
+        if (previous == null || rev - log.lastSnapshot >= SNAPSHOT_INTERVAL) {
+            append(key, log, snapshot(rev, now, page));
+        } else {
+            var delta = ops != null ? ops.copy() : PagePatch.diff(previous, page);
+            if (delta.isEmpty()) {
+                return;
+            }
+            append(key, log, new JsonObject().put("rev", rev).put("at", now).put("ops", delta));
+        }
+        if (log.last - log.first + 1 >= maxRevisions + SNAPSHOT_INTERVAL) {
+            compact(key, log);
+        }
+    }
+
+    /**
+     * Rebuilds the latest revision of a log, or returns null if it can't be.
+     */
+    private static JsonObject head(List<JsonObject> records, int last) {
+        try {
+            var page = page(records, last);
+            return page == null ? null : page.toJson();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static JsonObject snapshot(int rev, long at, Page page) {
+        return new JsonObject().put("rev", rev).put("at", at).put("page", page.toJson());
+    }
+
+    private void append(ProfileKey key, Log log, JsonObject record) {
+        var rev = record.getInteger("rev");
+        if (log.first == 0) {
+            log.first = rev;
+        }
+        log.last = rev;
+        if (record.containsKey("page")) {
+            log.lastSnapshot = rev;
+        }
+        store.appendHistory(key.userID(), key.profile(), record)
+                .onFailure(e -> System.err.println("Could not append to history of " + key + ": " + e.getMessage()));
+    }
+
+    private void compact(ProfileKey key, Log log) {
+        var first = log.last - maxRevisions + 1;
+        log.first = first;
+        store.rewriteHistory(key.userID(), key.profile(), records -> {
+            List<JsonObject> kept = new ArrayList<>();
+            Page page = null;
+            for (var record : records) {
+                var rev = record.getInteger("rev");
+                if (rev < first) {
+                    page = apply(page, record);
+                } else if (rev == first && !record.containsKey("page")) {
+                    kept.add(snapshot(rev, record.getLong("at"), apply(page, record)));
+                } else {
+                    kept.add(record);
+                }
+            }
+            return kept;
+        }).onFailure(e -> System.err.println("Could not compact history of " + key + ": " + e.getMessage()));
+    }
+
+    private static Page apply(Page page, JsonObject record) {
+        var snapshot = record.getJsonObject("page");
+        if (snapshot != null) {
+            return Page.fromJson(snapshot);
+        }
+        if (page == null) {
+            throw new RuntimeException("History starts with a delta, at revision " + record.getInteger("rev"));
+        }
+        return PagePatch.apply(page, record.getJsonArray("ops"));
+    }
+
+    /**
+     * Lists the revisions of a profile, latest first.
+     */
+    public List<Revision> revisions(int userID, String profile) {
+        List<Revision> revisions = new ArrayList<>();
+        for (var record : store.readHistory(userID, profile)) {
+            var snapshot = record.containsKey("page");
+            var changes = snapshot ? 0 : record.getJsonArray("ops").size();
+            revisions.add(new Revision(record.getInteger("rev"), record.getLong("at"), snapshot, changes));
+        }
+        Collections.reverse(revisions);
+        return revisions;
+    }
+
+    public static JsonArray toJson(List<Revision> revisions) {
+        var arr = new JsonArray();
+        revisions.forEach(r -> arr.add(r.toJson()));
+        return arr;
+    }
+
+    /**
+     * Rebuilds a page as it was at a revision, from the closest snapshot before it.
+     *
+     * @return null if the revision is not in the history
+     */
+    public Page page(int userID, String profile, int revision) {
+        return page(store.readHistory(userID, profile), revision);
+    }
+
+    private static Page page(List<JsonObject> records, int revision) {
+        // The last snapshot up to the revision: only the deltas after it are applied
+        var from = records.size() - 1;
+        while (from >= 0 && (records.get(from).getInteger("rev") > revision
+                || !records.get(from).containsKey("page"))) {
+            from--;
+        }
+        if (from < 0) {
+            return null;
+        }
+        Page page = null;
+        for (var i = from; i < records.size(); i++) {
+            var record = records.get(i);
+            var rev = record.getInteger("rev");
+            if (rev > revision) {
+                break;
+            }
+            page = apply(page, record);
+            if (rev == revision) {
+                return page;
+            }
+        }
+        return null;
+    }
+}
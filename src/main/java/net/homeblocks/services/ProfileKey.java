@@ -0,0 +1,3 @@
+package net.homeblocks.services;
+
+public record ProfileKey(int userID, String profile) {}
@@ -0,0 +1,21 @@
+package net.homeblocks.services;
+
+import net.homeblocks.model.Page;
+
+/**
+ * Notified after a profile is created or modified. Calls happen on the thread that performed the change.
+ */
+public interface ProfileListener {
+    default void profileCreated(int userID, String profile, Page page) {
+    }
+
+    default void profileUpdated(int userID, String profile, Page page) {
+    }
+
+    /**
+     * Called when a user's profile list changed other than through this service (e.g. files added or removed
+     * by hand).
+     */
+    default void profileListChanged(int userID) {
+    }
+}
@@ -1,71 +1,340 @@
 package net.homeblocks.services;
 
+import io.vertx.core.Future;
 import io.vertx.core.Vertx;
-import io.vertx.core.file.FileSystem;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import net.homeblocks.model.Page;
+import net.homeblocks.model.PageLimits;
+import net.homeblocks.model.PagePatch;
 
-import java.io.File;
-import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ProfileService {
-    private final FileSystem fs;
-    private final UserService userService;
+    private static final int MAX_PROFILE_LISTS = 10_000;
 
-    public ProfileService(Vertx vertx, UserService userService) {
-        this.fs = vertx.fileSystem();
-        this.userService = userService;
+    private final Vertx vertx;
+    private final ProfileStore store;
+    private final PageCache cache;
+    private final ProfileHistory history;
+    private final long retryTimer;
+    private final long reconcileTimer;
+    private final List<ProfileListener> listeners = new CopyOnWriteArrayList<>();
+    // Version stamps, bumped after each change. They are never older than the content they were read with.
+    private final AtomicLong lastVersion = new AtomicLong(0);
+    private final Map<ProfileKey, Long> versions = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> listVersions = new ConcurrentHashMap<>();
+    // Profile names per user, loaded lazily from the store, for the most recently listed users
+    private final LinkedHashMap<Integer, List<String>> profileNames;
+    // Bumped on each change of a list, so that a list scanned meanwhile isn't cached
+    private long listGeneration = 0;
+    private final AtomicBoolean reconciling = new AtomicBoolean(false);
+
+    /**
+     * Thrown when a change was made against an older version of the page than the current one.
+     */
+    public static class StaleVersionException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public StaleVersionException(String message) {
+            super(message);
+        }
     }
 
-    private File userPath(int userID) {
-        return Paths.get(this.userService.userDir.getPath(), String.valueOf(userID)).toFile();
+    /**
+     * @param historyRevisions revisions kept per profile, or 0 to keep no history
+     */
+    public ProfileService(Vertx vertx, ProfileStore store, int cacheSize, long retryIntervalMs,
+                          long listReconcileIntervalMs, int historyRevisions) {
+        this.vertx = vertx;
+        this.store = store;
+        this.history = new ProfileHistory(store, historyRevisions);
+        this.cache = new PageCache(cacheSize, (key, page) -> store.write(key.userID(), key.profile(), page));
+        // In insertion order, and moved to the end when listed, so that reconciliations don't reorder it
+        this.profileNames = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<String>> eldest) {
+                if (size() <= MAX_PROFILE_LISTS) {
+                    return false;
+                }
+                // Its next listing is a new scan, which gets a new stamp
+                listVersions.remove(eldest.getKey());
+                return true;
+            }
+        };
+        this.retryTimer = vertx.setPeriodic(retryIntervalMs, id -> flush());
+        this.reconcileTimer = vertx.setPeriodic(listReconcileIntervalMs, id -> {
+            // One at a time: a slow store could otherwise pile them up
+            if (reconciling.compareAndSet(false, true)) {
+                vertx.executeBlocking(() -> {
+                    reconcileLists();
+                    return null;
+                }, false).onComplete(ar -> reconciling.set(false));
+            }
+        });
+        Metrics.gauge("homeblocks.page.cache.size", cache::size);
+        Metrics.gauge("homeblocks.profile.lists", () -> {
+            synchronized (profileNames) {
+                return profileNames.size();
+            }
+        });
     }
 
-    private File profilePath(int userID, String profile) {
-        return Paths.get(this.userService.userDir.getPath(), String.valueOf(userID), profile + ".json").toFile();
+    public void addListener(ProfileListener listener) {
+        listeners.add(listener);
     }
 
+    /**
+     * Returns the names of a user's profiles. They are read from the store once, then kept while the user's
+     * profiles are listed often enough.
+     */
     public List<String> list(int userID) {
-        var path = userPath(userID);
-        var files = path.listFiles();
-        if (files != null) {
-            return Arrays.stream(files).filter(File::isFile).map(f -> {
-                String fileName = f.getName();
-                int dotIndex = fileName.lastIndexOf('.');
-                return (dotIndex == -1) ? fileName : fileName.substring(0, dotIndex);
-            }).collect(Collectors.toList());
+        while (true) {
+            long generation;
+            synchronized (profileNames) {
+                var names = profileNames.remove(userID);
+                if (names != null) {
+                    profileNames.put(userID, names);
+                    return names;
+                }
+                generation = listGeneration;
+            }
+            // Not holding the lock while reading the store
+            var scanned = store.list(userID);
+            synchronized (profileNames) {
+                var names = profileNames.get(userID);
+                if (names != null) {
+                    return names;
+                }
+                if (generation == listGeneration) {
+                    profileNames.put(userID, scanned);
+                    return scanned;
+                }
+            }
+            // A profile was created meanwhile, possibly after the scan: scan again
+        }
+    }
+
+    /**
+     * Catches up with profiles added or removed out of band, for the users whose list is loaded.
+     */
+    private void reconcileLists() {
+        List<Integer> userIDs;
+        synchronized (profileNames) {
+            userIDs = List.copyOf(profileNames.keySet());
+        }
+        for (var userID : userIDs) {
+            List<String> known;
+            synchronized (profileNames) {
+                known = profileNames.get(userID);
+            }
+            if (known == null) {
+                continue;
+            }
+            var scanned = store.list(userID);
+            if (Set.copyOf(known).equals(Set.copyOf(scanned))) {
+                continue;
+            }
+            synchronized (profileNames) {
+                // Skipped if the list changed or was evicted meanwhile: it will be checked again next time
+                if (profileNames.get(userID) != known) {
+                    continue;
+                }
+                profileNames.put(userID, scanned);
+                listGeneration++;
+            }
+            listVersions.put(userID, lastVersion.incrementAndGet());
+            listeners.forEach(l -> l.profileListChanged(userID));
         }
-        return List.of();
     }
 
     public Page load(int userID, String profile) {
-        var path = profilePath(userID, profile);
-        if (path.isFile()) {
-            var pageJson = fs.readFileBlocking(path.getAbsolutePath()).toJsonObject();
-            return Page.fromJson(pageJson);
+        var key = new ProfileKey(userID, profile);
+        var cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        var page = store.read(userID, profile);
+        if (page != null) {
+            return cache.putIfAbsent(key, page);
+        }
+        throw new RuntimeException("Can't load profile: not found");
+    }
+
+    /**
+     * Reads a page for background walks over all profiles: the cached page if any, as the store may not have it yet,
+     * otherwise the stored one. Neither caches the page nor makes it recently used, so that the walk doesn't evict
+     * the pages being served, and doesn't count in the cache statistics.
+     *
+     * @return null if the profile doesn't exist
+     */
+    public Page peek(int userID, String profile) {
+        var cached = cache.peek(new ProfileKey(userID, profile));
+        if (cached != null) {
+            return cached;
+        }
+        return store.read(userID, profile);
+    }
+
+    /**
+     * Loads a page along with its version stamp.
+     */
+    public VersionedPage loadVersioned(int userID, String profile) {
+        var key = new ProfileKey(userID, profile);
+        var version = versions.get(key);
+        if (version == null) {
+            // Make sure the profile exists before tracking it
+            load(userID, profile);
+            version = versions.computeIfAbsent(key, k -> lastVersion.incrementAndGet());
         }
-        throw new RuntimeException("Can't load profile: file not found");
+        return new VersionedPage(load(userID, profile), version);
+    }
+
+    /**
+     * Returns the current version stamp of a page, or null if it is not known yet (not loaded since startup).
+     */
+    public Long version(int userID, String profile) {
+        return versions.get(new ProfileKey(userID, profile));
+    }
+
+    /**
+     * Returns the version stamp of the user's profile list. Must be read before listing.
+     */
+    public long listVersion(int userID) {
+        return listVersions.computeIfAbsent(userID, k -> lastVersion.incrementAndGet());
     }
 
-    public Page createEmpty(int userID, String profile) {
-        userPath(userID).mkdirs();
-        var path = profilePath(userID, profile);
-        if (path.exists()) {
-            throw new RuntimeException("Trying to create '" + path + "', but it already exists");
+    /**
+     * Creates an empty profile. The returned future completes once it is durably written, and listed.
+     */
+    public synchronized Future<Page> createEmpty(int userID, String profile) {
+        var key = new ProfileKey(userID, profile);
+        if (cache.contains(key) || store.exists(userID, profile)) {
+            throw new RuntimeException("Trying to create profile '" + profile + "', but it already exists");
         }
         var page = Page.empty();
-        fs.writeFileBlocking(path.getAbsolutePath(), page.toJson().toBuffer());
-        return page;
+        // Cached right away so that it can't be created twice meanwhile
+        cache.put(key, page);
+        versions.put(key, lastVersion.incrementAndGet());
+        history.record(userID, profile, null, page, null);
+        return store.write(userID, profile, page).onFailure(e -> {
+            versions.remove(key);
+            cache.remove(key, page);
+        }).map(v -> {
+            synchronized (profileNames) {
+                var names = profileNames.get(userID);
+                if (names != null) {
+                    var updated = new ArrayList<>(names);
+                    updated.add(profile);
+                    profileNames.put(userID, List.copyOf(updated));
+                }
+                listGeneration++;
+            }
+            listVersions.put(userID, lastVersion.incrementAndGet());
+            listeners.forEach(l -> l.profileCreated(userID, profile, page));
+            return page;
+        });
     }
 
-    public void update(int userID, String profile, Page page) {
-        userPath(userID).mkdirs();
-        var path = profilePath(userID, profile);
-        if (!path.exists()) {
+    /**
+     * Replaces a page. The new page is served right away, but only acknowledged once durable.
+     *
+     * @return the new version stamp of the profile, once the page is durably written
+     */
+    public synchronized Future<Long> update(int userID, String profile, Page page) {
+        var key = new ProfileKey(userID, profile);
+        if (!cache.contains(key) && !store.exists(userID, profile)) {
             throw new RuntimeException("Could not retrieve the profile to update");
         }
-        fs.writeFileBlocking(path.getAbsolutePath(), page.toJson().toBuffer());
+        var previous = history.enabled() ? load(userID, profile) : null;
+        var stored = store(key, page);
+        history.record(userID, profile, previous, page, null);
+        return stored;
+    }
+
+    /**
+     * Applies block-level operations to the stored page.
+     *
+     * @param baseVersion the version stamp the operations were made against, or null to apply them to any version
+     * @return the patched page and its version stamp, once durably written
+     * @throws PageLimits.ExceededException if the resulting page is too large; nothing is changed then
+     * @throws StaleVersionException if the page changed since {@code baseVersion}; nothing is changed then
+     * @see PagePatch
+     */
+    public synchronized Future<VersionedPage> patch(int userID, String profile, JsonArray ops, PageLimits limits,
+                                                    Long baseVersion) {
+        var previous = load(userID, profile);
+        // Operations address blocks by index: applied to another version, they would change the wrong blocks
+        if (baseVersion != null && !baseVersion.equals(version(userID, profile))) {
+            throw new StaleVersionException("Profile changed meanwhile, reload it");
+        }
+        var page = PagePatch.apply(previous, ops);
+        limits.check(page);
+        var stored = store(new ProfileKey(userID, profile), page);
+        history.record(userID, profile, previous, page, ops);
+        return stored.map(version -> new VersionedPage(page, version));
+    }
+
+    /**
+     * Lists the revisions of a profile, latest first.
+     */
+    public List<ProfileHistory.Revision> revisions(int userID, String profile) {
+        return history.revisions(userID, profile);
+    }
+
+    /**
+     * Returns a page as it was at a revision, or null if the revision is not in its history.
+     */
+    public Page revision(int userID, String profile, int revision) {
+        return history.page(userID, profile, revision);
+    }
+
+    /**
+     * Restores a page as it was at a revision. It makes a new revision, so that a revert can be reverted too.
+     *
+     * @return the restored page and its version stamp, once durably written
+     * @throws IllegalArgumentException if the revision is not in the history of the profile
+     */
+    public synchronized Future<VersionedPage> revert(int userID, String profile, int revision) {
+        var page = history.page(userID, profile, revision);
+        if (page == null) {
+            throw new IllegalArgumentException("Unknown revision: " + revision);
+        }
+        return update(userID, profile, page).map(version -> new VersionedPage(page, version));
+    }
+
+    private Future<Long> store(ProfileKey key, Page page) {
+        // Written through: concurrent updates are committed together by the store, so this costs no extra sync
+        var written = cache.write(key, page);
+        var version = lastVersion.incrementAndGet();
+        versions.put(key, version);
+        listeners.forEach(l -> l.profileUpdated(key.userID(), key.profile(), page));
+        return written.map(version);
+    }
+
+    /**
+     * Writes again the pages whose write failed.
+     */
+    public void flush() {
+        cache.flush();
+    }
+
+    public JsonObject cacheStats() {
+        return cache.stats();
+    }
+
+    public void close() {
+        vertx.cancelTimer(retryTimer);
+        vertx.cancelTimer(reconcileTimer);
+        flush();
+        System.out.println("Profile cache stats: " + cacheStats());
     }
 }
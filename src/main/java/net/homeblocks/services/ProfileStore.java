@@ -0,0 +1,99 @@
+package net.homeblocks.services;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import net.homeblocks.model.Page;
+import net.homeblocks.model.UserInfo;
+
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Persistent storage of user records and profile pages. Caching, version stamps and listeners are handled by
+ * {@link UserService} and {@link ProfileService} on top of it. Implementations are thread-safe; reads block, and
+ * writes complete once durable.
+ */
+public interface ProfileStore {
+    /**
+     * Reads all user records, on startup.
+     */
+    Collection<UserInfo> loadUsers();
+
+    /**
+     * Persists a new or modified user record.
+     */
+    Future<Void> saveUser(UserInfo userInfo);
+
+    /**
+     * Returns the IDs of the users having stored profiles.
+     */
+    List<Integer> userIDs();
+
+    /**
+     * Returns the names of a user's stored profiles.
+     */
+    List<String> list(int userID);
+
+    boolean exists(int userID, String profile);
+
+    /**
+     * Reads a page.
+     *
+     * @return null if the profile doesn't exist
+     */
+    Page read(int userID, String profile);
+
+    /**
+     * Returns when a profile was last written, in milliseconds since the epoch, or 0 if it doesn't exist.
+     */
+    long modifiedAt(int userID, String profile);
+
+    /**
+     * Creates or replaces a page.
+     */
+    Future<Void> write(int userID, String profile, Page page);
+
+    /**
+     * Appends a record to the revision history of a profile.
+     *
+     * @param record holds its revision number as {@code rev}, greater than the previous ones
+     * @see ProfileHistory
+     */
+    Future<Void> appendHistory(int userID, String profile, JsonObject record);
+
+    /**
+     * Reads the revision history of a profile, oldest first. Records appended but not yet durable may be missing.
+     */
+    List<JsonObject> readHistory(int userID, String profile);
+
+    /**
+     * Replaces the revision history of a profile by a function of its records, once all previously appended ones
+     * are durable. Records appended meanwhile are kept, after the rewritten ones.
+     */
+    Future<Void> rewriteHistory(int userID, String profile, UnaryOperator<List<JsonObject>> rewrite);
+
+    /**
+     * Releases the storage. Called once the {@link DurableWriter} is closed, so that writes queued to it are done.
+     */
+    void close();
+
+    /**
+     * Opens the store of the given kind under a data directory.
+     *
+     * @param kind {@code files}: a directory per user, holding a file per profile, plus users index files under
+     *             {@code users/}; {@code mvstore}: everything in a single {@code homeblocks.mv.db} file
+     * @param cacheSizeMb cache size of the {@code mvstore} kind
+     */
+    static ProfileStore open(String kind, Vertx vertx, DurableWriter writer, String strRoot, PageFormat format,
+                             int cacheSizeMb) {
+        return switch (kind) {
+            case "files" -> new FileProfileStore(vertx, writer, strRoot, format);
+            case "mvstore" -> new MVStoreProfileStore(writer, Paths.get(strRoot, "homeblocks.mv.db"), format,
+                    cacheSizeMb);
+            default -> throw new RuntimeException("Unknown profile store: " + kind + ", expected files or mvstore");
+        };
+    }
+}
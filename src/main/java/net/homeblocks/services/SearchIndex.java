@@ -0,0 +1,530 @@
+package net.homeblocks.services;
+
+import net.homeblocks.model.Link;
+import net.homeblocks.model.Page;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory inverted index over the blocks of all profiles. Each block is a document, made of its title, its
+ * description (HTML stripped) and its links' titles, URLs and descriptions; titles weigh more than the rest.
+ * Queries match blocks containing all their terms, ranked with BM25.
+ * <p>
+ * Re-indexing a profile replaces its blocks: the previous ones are only marked as removed, and postings are rebuilt
+ * once removed blocks make up half of the index. Reads and writes are guarded by a read-write lock.
+ */
+public class SearchIndex {
+    private static final int SNAPSHOT_MAGIC = 0x48425331; // HBS1
+    private static final Pattern TAGS = Pattern.compile("<[^>]*>");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+    private static final float TITLE_WEIGHT = 3f;
+    private static final float LINK_TITLE_WEIGHT = 2f;
+    private static final float TEXT_WEIGHT = 1f;
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    private static final int MIN_TOKEN_LENGTH = 2;
+    private static final int MAX_TOKEN_LENGTH = 64;
+
+    public record Hit(int userID, String profile, int block, String title, String description, List<Link> links,
+                      float score) {}
+
+    public record Results(int total, List<Hit> hits) {}
+
+    private record Doc(ProfileKey key, int block, String title, String description, List<Link> links, float length) {}
+
+    private record Entry(long indexedAt, int[] docIDs) {}
+
+    private record Scored(int docID, float score) {}
+
+    /**
+     * Document IDs in increasing order, with the weighted frequency of the term in each.
+     */
+    private static class Postings {
+        private int[] docIDs = new int[2];
+        private float[] freqs = new float[2];
+        private int size = 0;
+
+        private void add(int docID, float freq) {
+            if (size == docIDs.length) {
+                docIDs = Arrays.copyOf(docIDs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docIDs[size] = docID;
+            freqs[size] = freq;
+            size++;
+        }
+
+        private int indexOf(int docID) {
+            return Arrays.binarySearch(docIDs, 0, size, docID);
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Removed documents are null
+    private final List<Doc> docs = new ArrayList<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final Map<ProfileKey, Entry> profiles = new HashMap<>();
+    // Profile names by user, for searches within a user's profiles
+    private final Map<Integer, Set<String>> userProfiles = new HashMap<>();
+    private int liveDocs = 0;
+    private double totalLength = 0;
+
+    /**
+     * Indexes a profile, replacing its previous content.
+     *
+     * @param indexedAt when the page was read, to compare with file modification times
+     */
+    public void put(ProfileKey key, Page page, long indexedAt) {
+        lock.writeLock().lock();
+        try {
+            removeDocs(key);
+            var blocks = page.getBlocks();
+            var docIDs = new ArrayList<Integer>(blocks.size());
+            for (int i = 0; i < blocks.size(); i++) {
+                var block = blocks.get(i);
+                var docID = addDoc(key, i, block.getTitle(), plainText(block.getDescription()), block.getLinks());
+                if (docID >= 0) {
+                    docIDs.add(docID);
+                }
+            }
+            putEntry(key, new Entry(indexedAt, docIDs.stream().mapToInt(Integer::intValue).toArray()));
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes a profile only if it wasn't re-indexed since {@code expectedIndexedAt} (null: not indexed).
+     *
+     * @return false if it was
+     */
+    public boolean putIfUnchanged(ProfileKey key, Page page, long indexedAt, Long expectedIndexedAt) {
+        lock.writeLock().lock();
+        try {
+            var entry = profiles.get(key);
+            var current = entry == null ? null : entry.indexedAt();
+            if (!Objects.equals(current, expectedIndexedAt)) {
+                return false;
+            }
+            put(key, page, indexedAt);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(ProfileKey key) {
+        lock.writeLock().lock();
+        try {
+            removeDocs(key);
+            if (profiles.remove(key) != null) {
+                var names = userProfiles.get(key.userID());
+                names.remove(key.profile());
+                if (names.isEmpty()) {
+                    userProfiles.remove(key.userID());
+                }
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns when a profile was indexed, or null if it isn't.
+     */
+    public Long indexedAt(ProfileKey key) {
+        lock.readLock().lock();
+        try {
+            var entry = profiles.get(key);
+            return entry == null ? null : entry.indexedAt();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the indexed profiles of a user.
+     */
+    public Set<ProfileKey> keys(int userID) {
+        lock.readLock().lock();
+        try {
+            var names = userProfiles.getOrDefault(userID, Set.of());
+            Set<ProfileKey> keys = new HashSet<>(names.size());
+            names.forEach(name -> keys.add(new ProfileKey(userID, name)));
+            return keys;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Set<ProfileKey> keys() {
+        lock.readLock().lock();
+        try {
+            return Set.copyOf(profiles.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int profileCount() {
+        lock.readLock().lock();
+        try {
+            return profiles.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int blockCount() {
+        lock.readLock().lock();
+        try {
+            return liveDocs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the blocks containing all terms of the query, best first.
+     *
+     * @param userID restricts results to a user's profiles, if not null
+     */
+    public Results search(String query, Integer userID, int offset, int limit) {
+        var terms = new LinkedHashSet<>(tokens(query));
+        if (terms.isEmpty()) {
+            return new Results(0, List.of());
+        }
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>(terms.size());
+            for (var term : terms) {
+                var p = postings.get(term);
+                if (p == null) {
+                    return new Results(0, List.of());
+                }
+                lists.add(p);
+            }
+            // Walk the rarest term, look the others up
+            lists.sort(Comparator.comparingInt(p -> p.size));
+            var idfs = new float[lists.size()];
+            for (int t = 0; t < lists.size(); t++) {
+                var df = lists.get(t).size;
+                idfs[t] = (float) Math.log(1 + (liveDocs - df + 0.5) / (df + 0.5));
+            }
+            var avgLength = liveDocs == 0 ? 1 : (float) (totalLength / liveDocs);
+            var wanted = offset + limit;
+            // Not pre-sized: most searches match fewer documents than wanted
+            var top = new PriorityQueue<Scored>(Comparator.comparingDouble(Scored::score));
+            var total = 0;
+            // Within a user's profiles, their few blocks are usually fewer than the documents of the rarest term
+            var userDocs = userID != null ? userDocIDs(userID) : null;
+            var candidates = userDocs != null && userDocs.length < lists.get(0).size ? userDocs : null;
+            var walked = candidates == null ? lists.get(0) : null;
+            var count = candidates == null ? walked.size : candidates.length;
+            for (int i = 0; i < count; i++) {
+                var docID = candidates == null ? walked.docIDs[i] : candidates[i];
+                var doc = docs.get(docID);
+                if (doc == null || (userID != null && doc.key().userID() != userID)) {
+                    continue;
+                }
+                var score = 0f;
+                var matches = true;
+                for (int t = 0; t < lists.size() && matches; t++) {
+                    if (t == 0 && walked != null) {
+                        score += bm25(walked.freqs[i], idfs[0], doc.length(), avgLength);
+                        continue;
+                    }
+                    var p = lists.get(t);
+                    var idx = p.indexOf(docID);
+                    if (idx < 0) {
+                        matches = false;
+                    } else {
+                        score += bm25(p.freqs[idx], idfs[t], doc.length(), avgLength);
+                    }
+                }
+                if (!matches) {
+                    continue;
+                }
+                total++;
+                if (top.size() < wanted) {
+                    top.add(new Scored(docID, score));
+                } else if (wanted > 0 && top.peek().score() < score) {
+                    top.poll();
+                    top.add(new Scored(docID, score));
+                }
+            }
+            var sorted = new ArrayList<>(top);
+            sorted.sort(Comparator.comparingDouble(Scored::score).reversed());
+            var hits = new ArrayList<Hit>();
+            for (int i = offset; i < sorted.size(); i++) {
+                var scored = sorted.get(i);
+                var doc = docs.get(scored.docID());
+                hits.add(new Hit(doc.key().userID(), doc.key().profile(), doc.block(), doc.title(), doc.description(),
+                        matchingLinks(doc.links(), terms), scored.score()));
+            }
+            return new Results(total, hits);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int[] userDocIDs(int userID) {
+        var names = userProfiles.get(userID);
+        if (names == null) {
+            return new int[0];
+        }
+        return names.stream()
+                .flatMapToInt(name -> Arrays.stream(profiles.get(new ProfileKey(userID, name)).docIDs()))
+                .toArray();
+    }
+
+    private static float bm25(float freq, float idf, float length, float avgLength) {
+        return idf * freq * (K1 + 1) / (freq + K1 * (1 - B + B * length / avgLength));
+    }
+
+    private static List<Link> matchingLinks(List<Link> links, Set<String> terms) {
+        var matching = new ArrayList<Link>();
+        for (var link : links) {
+            var linkTokens = new ArrayList<String>();
+            linkTokens.addAll(tokens(link.getTitle()));
+            linkTokens.addAll(tokens(link.getUrl()));
+            linkTokens.addAll(tokens(plainText(link.getDescription())));
+            if (linkTokens.stream().anyMatch(terms::contains)) {
+                matching.add(link);
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Adds a document, unless it has no text at all.
+     *
+     * @return its ID, or -1
+     */
+    private int addDoc(ProfileKey key, int block, String title, String description, List<Link> links) {
+        Map<String, Float> freqs = new LinkedHashMap<>();
+        addTokens(freqs, title, TITLE_WEIGHT);
+        addTokens(freqs, description, TEXT_WEIGHT);
+        for (var link : links) {
+            addTokens(freqs, link.getTitle(), LINK_TITLE_WEIGHT);
+            addTokens(freqs, link.getUrl(), TEXT_WEIGHT);
+            addTokens(freqs, plainText(link.getDescription()), TEXT_WEIGHT);
+        }
+        if (freqs.isEmpty()) {
+            return -1;
+        }
+        var length = (float) freqs.values().stream().mapToDouble(Float::doubleValue).sum();
+        var docID = docs.size();
+        docs.add(new Doc(key, block, title, description, links, length));
+        freqs.forEach((term, freq) -> postings.computeIfAbsent(term, k -> new Postings()).add(docID, freq));
+        liveDocs++;
+        totalLength += length;
+        return docID;
+    }
+
+    private void putEntry(ProfileKey key, Entry entry) {
+        profiles.put(key, entry);
+        userProfiles.computeIfAbsent(key.userID(), k -> new HashSet<>()).add(key.profile());
+    }
+
+    private static void addTokens(Map<String, Float> freqs, String text, float weight) {
+        for (var token : tokens(text)) {
+            freqs.merge(token, weight, Float::sum);
+        }
+    }
+
+    private void removeDocs(ProfileKey key) {
+        var entry = profiles.get(key);
+        if (entry == null) {
+            return;
+        }
+        for (var docID : entry.docIDs()) {
+            var doc = docs.set(docID, null);
+            if (doc != null) {
+                liveDocs--;
+                totalLength -= doc.length();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds postings without removed documents, once they're half of the index.
+     */
+    private void compactIfNeeded() {
+        if (docs.size() < 1024 || liveDocs * 2 > docs.size()) {
+            return;
+        }
+        var live = new ArrayList<Doc>(liveDocs);
+        for (var doc : docs) {
+            if (doc != null) {
+                live.add(doc);
+            }
+        }
+        var entries = new HashMap<>(profiles);
+        docs.clear();
+        postings.clear();
+        profiles.clear();
+        liveDocs = 0;
+        totalLength = 0;
+        Map<ProfileKey, List<Integer>> newIDs = new HashMap<>();
+        for (var doc : live) {
+            var docID = addDoc(doc.key(), doc.block(), doc.title(), doc.description(), doc.links());
+            newIDs.computeIfAbsent(doc.key(), k -> new ArrayList<>()).add(docID);
+        }
+        entries.forEach((key, entry) -> profiles.put(key, new Entry(entry.indexedAt(),
+                newIDs.getOrDefault(key, List.of()).stream().mapToInt(Integer::intValue).toArray())));
+    }
+
+    /**
+     * Splits text into lower-cased words, made of letters and digits.
+     */
+    static List<String> tokens(String text) {
+        if (text == null || text.isEmpty()) {
+            return List.of();
+        }
+        var tokens = new ArrayList<String>();
+        var sb = new StringBuilder();
+        text.toLowerCase(Locale.ROOT).codePoints().forEach(cp -> {
+            if (Character.isLetterOrDigit(cp)) {
+                sb.appendCodePoint(cp);
+            } else {
+                addToken(tokens, sb);
+            }
+        });
+        addToken(tokens, sb);
+        return tokens;
+    }
+
+    private static void addToken(List<String> tokens, StringBuilder sb) {
+        if (sb.length() >= MIN_TOKEN_LENGTH && sb.length() <= MAX_TOKEN_LENGTH) {
+            tokens.add(sb.toString());
+        }
+        sb.setLength(0);
+    }
+
+    /**
+     * Strips tags and common entities from notes, which hold HTML.
+     */
+    static String plainText(String html) {
+        if (html == null || html.isEmpty()) {
+            return html;
+        }
+        var text = TAGS.matcher(html).replaceAll(" ")
+                .replace("&nbsp;", " ")
+                .replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&quot;", "\"")
+                .replace("&#39;", "'")
+                .replace("&amp;", "&");
+        return SPACES.matcher(text).replaceAll(" ").strip();
+    }
+
+    /**
+     * Writes the indexed content. Postings are not written: they're rebuilt on {@link #read}, which is still much
+     * faster than reading all profiles.
+     */
+    public void write(DataOutput out) throws IOException {
+        lock.readLock().lock();
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(profiles.size());
+            for (var e : profiles.entrySet()) {
+                out.writeInt(e.getKey().userID());
+                writeString(out, e.getKey().profile());
+                out.writeLong(e.getValue().indexedAt());
+                out.writeInt(e.getValue().docIDs().length);
+                for (var docID : e.getValue().docIDs()) {
+                    var doc = docs.get(docID);
+                    out.writeInt(doc.block());
+                    writeString(out, doc.title());
+                    writeString(out, doc.description());
+                    out.writeInt(doc.links().size());
+                    for (var link : doc.links()) {
+                        writeString(out, link.getTitle());
+                        writeString(out, link.getUrl());
+                        writeString(out, link.getDescription());
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Loads content written by {@link #write}, on top of the current one.
+     */
+    public void read(DataInput in) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a search index snapshot");
+        }
+        lock.writeLock().lock();
+        try {
+            var profileCount = in.readInt();
+            for (int p = 0; p < profileCount; p++) {
+                var key = new ProfileKey(in.readInt(), readString(in));
+                var indexedAt = in.readLong();
+                var docCount = in.readInt();
+                removeDocs(key);
+                var docIDs = new ArrayList<Integer>(docCount);
+                for (int d = 0; d < docCount; d++) {
+                    var block = in.readInt();
+                    var title = readString(in);
+                    var description = readString(in);
+                    var linkCount = in.readInt();
+                    var links = new ArrayList<Link>(linkCount);
+                    for (int l = 0; l < linkCount; l++) {
+                        links.add(new Link(readString(in), readString(in), readString(in)));
+                    }
+                    var docID = addDoc(key, block, title, description, links);
+                    if (docID >= 0) {
+                        docIDs.add(docID);
+                    }
+                }
+                putEntry(key, new Entry(indexedAt, docIDs.stream().mapToInt(Integer::intValue).toArray()));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void writeString(DataOutput out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        var bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        var length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        var bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,208 @@
+package net.homeblocks.services;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import net.homeblocks.model.Page;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the {@link SearchIndex} up to date with profiles. Changes are indexed one profile at a time, off the event
+ * loop. The index is saved to {@code search.idx} periodically and on close, and loaded on startup; profiles
+ * modified since, or added or removed by hand, are then caught up in the background from the {@link ProfileStore}.
+ */
+public class SearchService implements ProfileListener {
+    private final Vertx vertx;
+    private final ProfileStore store;
+    private final DurableWriter writer;
+    private final Path snapshotPath;
+    private final SearchIndex index = new SearchIndex();
+    // Pages waiting to be indexed; several changes of the same profile are indexed once
+    private final Map<ProfileKey, Page> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final AtomicBoolean modified = new AtomicBoolean(false);
+    private final long snapshotTimer;
+
+    public SearchService(Vertx vertx, ProfileStore store, ProfileService profileService, DurableWriter writer,
+                         String strRoot, long snapshotIntervalMs) {
+        this.vertx = vertx;
+        this.store = store;
+        this.writer = writer;
+        this.snapshotPath = Paths.get(strRoot, "search.idx");
+        loadSnapshot();
+        profileService.addListener(this);
+        vertx.executeBlocking(() -> {
+            reconcile();
+            return null;
+        }, false).onFailure(e -> System.err.println("Search index reconciliation failed: " + e));
+        this.snapshotTimer = vertx.setPeriodic(snapshotIntervalMs, id -> saveSnapshot());
+        Metrics.gauge("homeblocks.search.profiles", index::profileCount);
+        Metrics.gauge("homeblocks.search.blocks", index::blockCount);
+    }
+
+    private void loadSnapshot() {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        var start = System.currentTimeMillis();
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+            index.read(in);
+            System.out.println("Loaded search index of " + index.profileCount() + " profiles in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            // Rebuilt by reconciliation
+            System.err.println("Could not load search index, rebuilding it: " + e.getMessage());
+        }
+    }
+
+    public SearchIndex.Results search(String query, Integer userID, int offset, int limit) {
+        var start = Metrics.start();
+        var results = index.search(query, userID, offset, limit);
+        Metrics.recordTime("homeblocks.search.query", start);
+        return results;
+    }
+
+    @Override
+    public void profileCreated(int userID, String profile, Page page) {
+        enqueue(new ProfileKey(userID, profile), page);
+    }
+
+    @Override
+    public void profileUpdated(int userID, String profile, Page page) {
+        enqueue(new ProfileKey(userID, profile), page);
+    }
+
+    @Override
+    public void profileListChanged(int userID) {
+        vertx.executeBlocking(() -> {
+            reconcileUser(userID, System.currentTimeMillis());
+            return null;
+        }, false);
+    }
+
+    private void enqueue(ProfileKey key, Page page) {
+        pending.put(key, page);
+        if (draining.compareAndSet(false, true)) {
+            vertx.executeBlocking(() -> {
+                drain();
+                return null;
+            }, false);
+        }
+    }
+
+    private void drain() {
+        do {
+            for (var key : pending.keySet()) {
+                var page = pending.remove(key);
+                if (page != null) {
+                    index.put(key, page, System.currentTimeMillis());
+                    modified.set(true);
+                }
+            }
+            draining.set(false);
+            // Pages added after the loop, but before the flag was reset, would be left behind otherwise
+        } while (!pending.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Indexes profiles modified after they were last indexed, and drops the profiles which are gone.
+     */
+    private void reconcile() {
+        var start = System.currentTimeMillis();
+        Set<ProfileKey> seen = new HashSet<>();
+        for (var userID : store.userIDs()) {
+            seen.addAll(reconcileUser(userID, start));
+        }
+        for (var key : index.keys()) {
+            var indexedAt = index.indexedAt(key);
+            // Profiles indexed since the start are fresh anyway
+            if (!seen.contains(key) && indexedAt != null && indexedAt < start) {
+                index.remove(key);
+                modified.set(true);
+            }
+        }
+        System.out.println("Search index up to date with " + index.profileCount() + " profiles in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private Set<ProfileKey> reconcileUser(int userID, long start) {
+        Set<ProfileKey> seen = new HashSet<>();
+        for (var profile : store.list(userID)) {
+            var key = new ProfileKey(userID, profile);
+            seen.add(key);
+            var indexedAt = index.indexedAt(key);
+            if (indexedAt != null && store.modifiedAt(userID, profile) <= indexedAt) {
+                continue;
+            }
+            try {
+                var page = store.read(userID, profile);
+                // Unless changed meanwhile, in which case the index is more recent than the store
+                if (page != null && !pending.containsKey(key)
+                        && index.putIfUnchanged(key, page, System.currentTimeMillis(), indexedAt)) {
+                    modified.set(true);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Could not index profile " + profile + " of user " + userID + ": " + e.getMessage());
+            }
+        }
+        for (var key : index.keys(userID)) {
+            var indexedAt = index.indexedAt(key);
+            if (!seen.contains(key) && indexedAt != null && indexedAt < start) {
+                index.remove(key);
+                modified.set(true);
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Saves the index if it changed since last time.
+     */
+    public Future<Void> saveSnapshot() {
+        if (!modified.getAndSet(false)) {
+            return Future.succeededFuture();
+        }
+        return vertx.executeBlocking(this::encodeSnapshot, false)
+                .compose(content -> writer.write(snapshotPath, content))
+                .onFailure(e -> {
+                    modified.set(true);
+                    System.err.println("Could not save search index: " + e.getMessage());
+                });
+    }
+
+    private Buffer encodeSnapshot() throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            index.write(out);
+        }
+        return Buffer.buffer(bytes.toByteArray());
+    }
+
+    /**
+     * Indexes pending changes and queues a last snapshot to the writer.
+     */
+    public void close() {
+        vertx.cancelTimer(snapshotTimer);
+        drain();
+        if (modified.getAndSet(false)) {
+            try {
+                writer.write(snapshotPath, encodeSnapshot());
+            } catch (IOException e) {
+                System.err.println("Could not save search index: " + e.getMessage());
+            }
+        }
+    }
+}
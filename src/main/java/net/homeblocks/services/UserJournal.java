@@ -0,0 +1,200 @@
+package net.homeblocks.services;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import net.homeblocks.model.UserInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * User records of the {@link FileProfileStore}, persisted as a snapshot ({@code _index.json}) plus an append-only
+ * journal ({@code _index.log}) holding one user record per line. On startup, the journal is replayed on top of the
+ * snapshot; it is compacted back into the snapshot every {@link #COMPACTION_THRESHOLD} records. Once started, all
+ * writes go through the {@link DurableWriter}.
+ */
+class UserJournal {
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    private final Vertx vertx;
+    private final FileSystem fs;
+    private final DurableWriter writer;
+    private final File indexFile;
+    private final File journalFile;
+    private final File compactingJournalFile;
+    // Latest record of each user, for snapshots
+    private final Map<Integer, UserInfo> users = new ConcurrentHashMap<>();
+    private int journalEntries = 0;
+    private boolean compacting = false;
+
+    UserJournal(Vertx vertx, DurableWriter writer, File userDir) {
+        this.vertx = vertx;
+        this.writer = writer;
+        this.fs = vertx.fileSystem();
+        this.indexFile = Paths.get(userDir.getPath(), "_index.json").toFile();
+        this.journalFile = Paths.get(userDir.getPath(), "_index.log").toFile();
+        this.compactingJournalFile = Paths.get(userDir.getPath(), "_index.log.1").toFile();
+        init();
+        Metrics.gauge("homeblocks.users.journal.records", () -> journalEntries);
+    }
+
+    private void init() {
+        // Read users index snapshot
+        if (!indexFile.exists()) {
+            fs.writeFileBlocking(indexFile.getAbsolutePath(), Buffer.buffer("[]"));
+        } else {
+            var snapshot = fs.readFileBlocking(indexFile.getAbsolutePath()).toJsonArray();
+            snapshot.forEach(it -> {
+                if (it instanceof JsonObject) {
+                    var userInfo = UserInfo.fromJson((JsonObject) it);
+                    if (users.putIfAbsent(userInfo.intIdx(), userInfo) != null) {
+                        System.out.println("Cannot load index for user " + userInfo.intIdx() + " (" + userInfo.name()
+                                + "), index already used");
+                    }
+                } else {
+                    System.out.println("Users index corrupted, object expected but got: " + it.toString());
+                }
+            });
+        }
+
+        // Replay journals: an interrupted compaction may have left the previous one behind
+        replayJournal(compactingJournalFile);
+        journalEntries = replayJournal(journalFile);
+        if (compactingJournalFile.exists()) {
+            try {
+                writeSnapshot(List.copyOf(users.values()));
+                Files.delete(compactingJournalFile.toPath());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        terminateJournal();
+        if (journalEntries >= COMPACTION_THRESHOLD) {
+            compact();
+        }
+    }
+
+    private int replayJournal(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        var lines = fs.readFileBlocking(file.getAbsolutePath()).toString(StandardCharsets.UTF_8).split("\n");
+        var count = 0;
+        for (var line : lines) {
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                var userInfo = UserInfo.fromJson(new JsonObject(line));
+                users.put(userInfo.intIdx(), userInfo);
+                count++;
+            } catch (DecodeException | ClassCastException | NullPointerException e) {
+                // Most likely a record truncated by a crash
+                System.out.println("Skipping corrupted users journal record: " + line);
+            }
+        }
+        return count;
+    }
+
+    private void terminateJournal() {
+        if (!journalFile.exists()) {
+            return;
+        }
+        try (var channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() > 0) {
+                // Terminate a record truncated by a crash, so that the next one starts on its own line
+                var last = ByteBuffer.allocate(1);
+                channel.read(last, channel.size() - 1);
+                if (last.get(0) != '\n') {
+                    channel.write(ByteBuffer.wrap(new byte[]{'\n'}), channel.size());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    Collection<UserInfo> users() {
+        return List.copyOf(users.values());
+    }
+
+    synchronized Future<Void> append(UserInfo userInfo) {
+        users.put(userInfo.intIdx(), userInfo);
+        var line = userInfo.toJson().encode() + "\n";
+        var written = writer.append(journalFile.toPath(), Buffer.buffer(line));
+        if (++journalEntries >= COMPACTION_THRESHOLD) {
+            compact();
+        }
+        return written;
+    }
+
+    /**
+     * Rotates the journal, then writes a new snapshot. Records appended meanwhile go to the new journal, so they are
+     * never lost whichever file ends up on disk.
+     */
+    private synchronized void compact() {
+        if (compacting) {
+            return;
+        }
+        compacting = true;
+        journalEntries = 0;
+        Collection<UserInfo> snapshot = List.copyOf(users.values());
+        var start = Metrics.start();
+        // Queued after the records of the snapshot, and before any later one
+        writer.run(this::rotateJournal)
+                .compose(v -> vertx.executeBlocking(() -> encodeSnapshot(snapshot)))
+                .compose(content -> writer.write(indexFile.toPath(), content))
+                .compose(v -> writer.run(() -> Files.deleteIfExists(compactingJournalFile.toPath())))
+                .onComplete(ar -> {
+                    synchronized (this) {
+                        compacting = false;
+                    }
+                    if (ar.failed()) {
+                        System.err.println("Users index compaction failed: " + ar.cause());
+                    } else {
+                        Metrics.recordTime("homeblocks.users.compaction", start);
+                    }
+                });
+    }
+
+    private void rotateJournal() throws IOException {
+        if (compactingJournalFile.exists()) {
+            // A previous compaction failed: keep its records along with the new ones
+            if (journalFile.exists()) {
+                Files.write(compactingJournalFile.toPath(), Files.readAllBytes(journalFile.toPath()), StandardOpenOption.APPEND);
+                Files.delete(journalFile.toPath());
+            }
+        } else if (journalFile.exists()) {
+            Files.move(journalFile.toPath(), compactingJournalFile.toPath());
+        }
+    }
+
+    private static Buffer encodeSnapshot(Collection<UserInfo> users) {
+        return new JsonArray(users.stream().map(UserInfo::toJson).collect(Collectors.toList())).toBuffer();
+    }
+
+    // Only used on startup, before anything is queued to the writer
+    private void writeSnapshot(Collection<UserInfo> users) throws IOException {
+        var tmp = Paths.get(indexFile.getPath() + ".tmp");
+        Files.write(tmp, encodeSnapshot(users).getBytes());
+        Files.move(tmp, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -1,65 +1,47 @@
 package net.homeblocks.services;
 
-import io.vertx.core.Vertx;
-import io.vertx.core.buffer.Buffer;
-import io.vertx.core.file.FileSystem;
-import io.vertx.core.json.JsonArray;
-import io.vertx.core.json.JsonObject;
 import net.homeblocks.model.UserInfo;
 
-import java.io.File;
-import java.nio.file.Paths;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
+/**
+ * Users, indexed in memory by ID, alias and provider account. They are loaded from the {@link ProfileStore} on
+ * startup, and each change is saved to it.
+ */
 public class UserService {
-    private final FileSystem fs;
-    final File userDir;
-    private final File indexFile;
-    private final Map<Integer, UserInfo> usersIndex = new HashMap<>();
-    private final Map<String, UserInfo> aliasUsersIndex = new HashMap<>();
-    private final Map<String, UserInfo> providerUsersIndex = new HashMap<>();
+    private final ProfileStore store;
+    // Reads are lock-free; writes are serialized by synchronized methods
+    private final Map<Integer, UserInfo> usersIndex = new ConcurrentHashMap<>();
+    private final Map<String, UserInfo> aliasUsersIndex = new ConcurrentHashMap<>();
+    private final Map<String, UserInfo> providerUsersIndex = new ConcurrentHashMap<>();
     private final AtomicInteger maxIdx = new AtomicInteger(0);
+    private final List<Consumer<UserInfo>> listeners = new CopyOnWriteArrayList<>();
 
-    public UserService(Vertx vertx, String strRoot) {
-        this.fs = vertx.fileSystem();
-        this.userDir = Paths.get(strRoot, "users").toFile();
-        this.indexFile = Paths.get(strRoot, "users", "_index.json").toFile();
-        init();
+    public UserService(ProfileStore store) {
+        this.store = store;
+        for (var userInfo : store.loadUsers()) {
+            if (!aliasUsersIndex.containsKey(userInfo.name())
+                    && !providerUsersIndex.containsKey(providerKey(userInfo))) {
+                indexUser(userInfo);
+            } else {
+                System.out.println("Cannot load index for user " + userInfo.intIdx() + " (" + userInfo.name()
+                        + "), alias already used");
+            }
+        }
+        Metrics.gauge("homeblocks.users", usersIndex::size);
+        Metrics.gauge("homeblocks.users.aliases", aliasUsersIndex::size);
     }
 
-    private void init() {
-        userDir.mkdirs();
-
-        // Read users index
-        if (!indexFile.exists()) {
-            fs.writeFileBlocking(indexFile.getAbsolutePath(), Buffer.buffer("[]"));
-        } else {
-            var users = fs.readFileBlocking(indexFile.getAbsolutePath()).toJsonArray();
-            users.forEach(it -> {
-                if (it instanceof JsonObject) {
-                    var userInfo = UserInfo.fromJson((JsonObject) it);
-                    var provKey = providerKey(userInfo);
-                    if (!usersIndex.containsKey(userInfo.intIdx())
-                            && !aliasUsersIndex.containsKey(userInfo.name())
-                            && !providerUsersIndex.containsKey(provKey)) {
-                        usersIndex.put(userInfo.intIdx(), userInfo);
-                        aliasUsersIndex.put(userInfo.name(), userInfo);
-                        providerUsersIndex.put(provKey, userInfo);
-                        if (userInfo.intIdx() > maxIdx.get()) {
-                            maxIdx.set(userInfo.intIdx());
-                        }
-                    } else {
-                        System.out.println("Cannot load index for user " + userInfo.intIdx() + " (" + userInfo.name()
-                                + "), index or alias already used");
-                    }
-                } else {
-                    System.out.println("Users index corrupted, object expected but got: " + it.toString());
-                }
-            });
-        }
+    /**
+     * Registers a listener called after a user is created or modified.
+     */
+    public void addListener(Consumer<UserInfo> listener) {
+        listeners.add(listener);
     }
 
     private static String providerKey(UserInfo userInfo) {
@@ -74,12 +56,7 @@ public class UserService {
         return !aliasUsersIndex.containsKey(userAlias);
     }
 
-    private void writeUsersIndex() {
-        var arr = new JsonArray(usersIndex.values().stream().map(UserInfo::toJson).collect(Collectors.toList()));
-        fs.writeFileBlocking(indexFile.getAbsolutePath(), arr.toBuffer());
-    }
-
-    private UserInfo updateUsersIndex(UserInfo userInfo) {
+    private void indexUser(UserInfo userInfo) {
         var old = usersIndex.get(userInfo.intIdx());
         if (old != null) {
             aliasUsersIndex.remove(old.name());
@@ -88,11 +65,20 @@ public class UserService {
         usersIndex.put(userInfo.intIdx(), userInfo);
         aliasUsersIndex.put(userInfo.name(), userInfo);
         providerUsersIndex.put(providerKey(userInfo), userInfo);
-        writeUsersIndex();
+        if (userInfo.intIdx() > maxIdx.get()) {
+            maxIdx.set(userInfo.intIdx());
+        }
+    }
+
+    private UserInfo updateUsersIndex(UserInfo userInfo) {
+        indexUser(userInfo);
+        store.saveUser(userInfo)
+                .onFailure(e -> System.err.println("Could not save user " + userInfo.intIdx() + ": " + e.getMessage()));
+        listeners.forEach(l -> l.accept(userInfo));
         return userInfo;
     }
 
-    public UserInfo findOrCreate(String provider, String provUID) {
+    public synchronized UserInfo findOrCreate(String provider, String provUID) {
         var userInfo = providerUsersIndex.get(provider + "-" + provUID);
         if (userInfo != null) {
             return userInfo;
@@ -102,7 +88,7 @@ public class UserService {
         return updateUsersIndex(newUserInfo);
     }
 
-    public UserInfo saveAlias(int id, String userAlias) {
+    public synchronized UserInfo saveAlias(int id, String userAlias) {
         var oldUser = usersIndex.get(id);
         if (oldUser != null) {
             if (isAliasAvailable(userAlias)) {
@@ -117,4 +103,8 @@ public class UserService {
     public UserInfo findByAlias(String name) {
         return aliasUsersIndex.get(name);
     }
+
+    public UserInfo findById(int id) {
+        return usersIndex.get(id);
+    }
 }
@@ -0,0 +1,5 @@
+package net.homeblocks.services;
+
+import net.homeblocks.model.Page;
+
+public record VersionedPage(Page page, long version) {}
@@ -0,0 +1,70 @@
+package net.homeblocks.model;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PageCodecTest {
+
+    private static Page page(int blocks, int links) {
+        List<Block> list = new ArrayList<>();
+        list.add(new Block("main", 0, 0, null, null, List.of()));
+        for (var i = 1; i < blocks; i++) {
+            List<Link> l = new ArrayList<>();
+            for (var j = 0; j < links; j++) {
+                l.add(new Link("Link " + j + " \"quoted\" \\ é 日本 😀", "https://example.com/" + i + "/" + j + "?a=1&b=<2>",
+                        j % 2 == 0 ? null : "Line\nbreak\ttab\u0001"));
+            }
+            list.add(new Block(i % 2 == 0 ? "links" : "image", i % 7 - 3, -i % 5, "Block " + i, "", l));
+        }
+        return new Page(list);
+    }
+
+    private static void assertSameAsJsonObject(Page page) {
+        var expected = page.toJson().toBuffer().getBytes();
+        var encoded = PageCodec.encode(page);
+        assertArrayEquals(expected, encoded.getBytes());
+        // Decoding then encoding again gives the same bytes
+        assertArrayEquals(expected, PageCodec.encode(PageCodec.decode(encoded)).getBytes());
+        assertArrayEquals(expected, PageCodec.encode(Page.fromJson(encoded.toJsonObject())).getBytes());
+    }
+
+    @Test
+    void emptyPage() {
+        assertSameAsJsonObject(new Page(List.of()));
+    }
+
+    @Test
+    void smallPage() {
+        assertSameAsJsonObject(page(3, 2));
+    }
+
+    @Test
+    void pageLargerThanJacksonBuffers() {
+        var page = page(50, 40);
+        // Spans many chunks of Jackson's 8 kB buffers, both ways
+        assertTrue(PageCodec.encode(page).length() > 100_000);
+        assertSameAsJsonObject(page);
+    }
+
+    @Test
+    void decodesSlices() {
+        var encoded = PageCodec.encode(page(5, 5));
+        var padded = Buffer.buffer("xx").appendBuffer(encoded).appendString("yy");
+        var slice = padded.slice(2, 2 + encoded.length());
+        assertArrayEquals(encoded.getBytes(), PageCodec.encode(PageCodec.decode(slice)).getBytes());
+    }
+
+    @Test
+    void rejectsTrailingContent() {
+        var buffer = PageCodec.encode(page(2, 1)).appendString("{}");
+        assertThrows(DecodeException.class, () -> PageCodec.decode(buffer));
+    }
+}
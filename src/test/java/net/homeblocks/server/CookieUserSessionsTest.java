@@ -0,0 +1,136 @@
+package net.homeblocks.server;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.ext.web.client.WebClientSession;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import net.homeblocks.model.UserInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+class CookieUserSessionsTest {
+
+    /**
+     * Serves the session operations used by the routes, as plain endpoints.
+     */
+    private static Future<HttpServer> serve(Vertx vertx, UserSessions sessions) {
+        var router = Router.router(vertx);
+        sessions.install(router);
+        router.get("/login").handler(ctx -> ctx.response().end(sessions.newLoginState(ctx,
+                new JsonObject().put("refUser", "bob"))));
+        router.get("/callback").handler(ctx -> {
+            var state = ctx.request().getParam("state");
+            if (!sessions.isValidLoginState(ctx, state)) {
+                ctx.response().setStatusCode(403).end();
+                return;
+            }
+            sessions.put(ctx, new HttpUser(new UserInfo("github", "42", 1, "bob"), Long.MAX_VALUE, state));
+            ctx.response().end();
+        });
+        router.get("/logged").handler(ctx -> {
+            var user = sessions.get(ctx);
+            if (user == null) {
+                ctx.response().end();
+                return;
+            }
+            var json = sessions.popLoginState(ctx, user.stateToken());
+            ctx.response().end((json == null ? new JsonObject() : json)
+                    .put("logged", user.userInfo().name()).encode());
+        });
+        router.get("/logout").handler(ctx -> {
+            sessions.remove(ctx);
+            ctx.response().end();
+        });
+        return vertx.createHttpServer().requestHandler(router).listen(0);
+    }
+
+    private static WebClientSession client(Vertx vertx) {
+        return WebClientSession.create(WebClient.create(vertx, new WebClientOptions().setDefaultHost("localhost")));
+    }
+
+    @Test
+    void loginEndsOnAnotherProcess(Vertx vertx, VertxTestContext testContext) {
+        // Two servers sharing the secret, as two processes would
+        var first = serve(vertx, new CookieUserSessions("secret", 3600, 60_000, false));
+        var second = serve(vertx, new CookieUserSessions("secret", 3600, 60_000, false));
+        var client = client(vertx);
+        Future.all(first, second).compose(v -> {
+            var a = first.result().actualPort();
+            var b = second.result().actualPort();
+            return client.get(a, "localhost", "/login").send()
+                    .compose(res -> client.get(b, "localhost", "/callback?state=" + res.bodyAsString()).send())
+                    .compose(res -> {
+                        assertEquals(200, res.statusCode());
+                        return client.get(a, "localhost", "/logged").send();
+                    })
+                    .compose(res -> {
+                        var json = res.bodyAsJsonObject();
+                        assertEquals("bob", json.getString("logged"));
+                        assertEquals("bob", json.getString("refUser"));
+                        // Popped: not returned twice
+                        return client.get(b, "localhost", "/logged").send();
+                    })
+                    .map(res -> {
+                        assertNull(res.bodyAsJsonObject().getString("refUser"));
+                        return null;
+                    });
+        }).onComplete(testContext.succeedingThenComplete());
+    }
+
+    @Test
+    void rejectsStatesOfOtherClientsOrSecrets(Vertx vertx, VertxTestContext testContext) {
+        var first = serve(vertx, new CookieUserSessions("secret", 3600, 60_000, false));
+        var other = serve(vertx, new CookieUserSessions("other secret", 3600, 60_000, false));
+        var client = client(vertx);
+        var stranger = client(vertx);
+        Future.all(first, other).compose(v -> {
+            var a = first.result().actualPort();
+            var b = other.result().actualPort();
+            return client.get(a, "localhost", "/login").send()
+                    .compose(res -> {
+                        var state = res.bodyAsString();
+                        return stranger.get(a, "localhost", "/callback?state=" + state).send()
+                                .compose(r -> {
+                                    assertEquals(403, r.statusCode());
+                                    return client.get(b, "localhost", "/callback?state=" + state).send();
+                                });
+                    })
+                    .map(res -> {
+                        assertEquals(403, res.statusCode());
+                        return null;
+                    });
+        }).onComplete(testContext.succeedingThenComplete());
+    }
+
+    @Test
+    void logoutExpiresTheCookie(Vertx vertx, VertxTestContext testContext) {
+        var client = client(vertx);
+        serve(vertx, new CookieUserSessions("secret", 3600, 60_000, true)).compose(server -> {
+            var port = server.actualPort();
+            return client.get(port, "localhost", "/logout").send()
+                    .map(res -> {
+                        var header = res.cookies().stream().filter(c -> c.startsWith("hb-session=")).findFirst();
+                        assertTrue(header.isPresent(), "No session cookie in " + res.cookies());
+                        var cookie = header.get();
+                        assertTrue(cookie.startsWith("hb-session=;"), cookie);
+                        assertTrue(cookie.contains("Max-Age=0"), cookie);
+                        assertTrue(cookie.contains("Path=/"), cookie);
+                        assertTrue(cookie.contains("HTTPOnly"), cookie);
+                        assertTrue(cookie.contains("Secure"), cookie);
+                        assertTrue(cookie.contains("SameSite=Lax"), cookie);
+                        return null;
+                    });
+        }).onComplete(testContext.succeedingThenComplete());
+    }
+}
@@ -0,0 +1,94 @@
+package net.homeblocks.server;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+class LoginStateStoreTest {
+    private static final int CAPACITY = 10_000;
+
+    private LoginStateStore store;
+
+    @BeforeEach
+    void setUp(Vertx vertx) {
+        store = new LoginStateStore(vertx, 600_000, CAPACITY);
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+    }
+
+    @Test
+    void evictsOldestWhenFull() {
+        for (var i = 0; i < CAPACITY; i++) {
+            store.put("s" + i, new JsonObject().put("i", i));
+        }
+        store.put("new", new JsonObject());
+
+        assertNull(store.pop("s0"));
+        assertTrue(store.isValid("s1"));
+        assertNotNull(store.pop("new"));
+        assertEquals(1, store.stats().getLong("evicted"));
+    }
+
+    @Test
+    void poppedStatesFreeTheirSlot() {
+        for (var i = 0; i < CAPACITY; i++) {
+            store.put("s" + i, new JsonObject());
+            assertNotNull(store.pop("s" + i));
+        }
+        store.put("new", new JsonObject());
+
+        assertTrue(store.isValid("new"));
+        assertEquals(0, store.stats().getLong("evicted"));
+        assertEquals(CAPACITY, store.stats().getInteger("queued"));
+    }
+
+    @Test
+    void memoryStaysFlatUnderLoginPageFlood() {
+        // Like GET /api/login: an empty state, never popped
+        var json = new JsonObject();
+        var i = 0;
+        for (; i < CAPACITY; i++) {
+            store.put("state-" + i, json);
+        }
+        var before = usedHeap();
+        var hits = 3_000_000;
+        for (; i < CAPACITY + hits; i++) {
+            store.put("state-" + i, json);
+        }
+        var after = usedHeap();
+
+        var stats = store.stats();
+        assertEquals(CAPACITY, stats.getInteger("live"));
+        assertEquals(CAPACITY, stats.getInteger("queued"));
+        assertEquals(hits, stats.getLong("evicted"));
+        // The last ones are still there
+        assertTrue(store.isValid("state-" + (i - 1)));
+        assertTrue(store.isValid("state-" + (i - CAPACITY)));
+        // A full store of 10k states is about 2 MB
+        assertTrue(after - before < 8 * 1024 * 1024, "Heap grew by " + (after - before) + " bytes");
+    }
+
+    private static long usedHeap() {
+        var runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Keeps the lowest reading, as a single GC may not collect everything
+        for (var i = 0; i < 3; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
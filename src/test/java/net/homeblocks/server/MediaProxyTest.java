@@ -0,0 +1,239 @@
+package net.homeblocks.server;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import net.homeblocks.model.Block;
+import net.homeblocks.model.Link;
+import net.homeblocks.model.Page;
+import net.homeblocks.services.DurableWriter;
+import net.homeblocks.services.FileProfileStore;
+import net.homeblocks.services.PageFormat;
+import net.homeblocks.services.ProfileService;
+import net.homeblocks.services.ProfileStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+class MediaProxyTest {
+    private static final byte[] IMAGE = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path root;
+
+    private DurableWriter writer;
+    private ProfileStore store;
+    private ProfileService profileService;
+    private MediaProxy proxy;
+    private final AtomicInteger upstreamRequests = new AtomicInteger();
+    private final AtomicInteger revalidations = new AtomicInteger();
+
+    @BeforeEach
+    void setUp(Vertx vertx) {
+        writer = new DurableWriter();
+        store = new FileProfileStore(vertx, writer, root.toString(), PageFormat.JSON);
+        profileService = new ProfileService(vertx, store, 10, 60_000, 60_000, 100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (proxy != null) {
+            proxy.close();
+        }
+        profileService.close();
+        writer.close();
+    }
+
+    /**
+     * Serves an image with an ETag, answering conditional requests, and the same image after a delay.
+     */
+    private Future<Integer> serveUpstream(Vertx vertx) {
+        var router = Router.router(vertx);
+        router.get("/image.png").handler(ctx -> {
+            upstreamRequests.incrementAndGet();
+            if ("\"v1\"".equals(ctx.request().getHeader("If-None-Match"))) {
+                revalidations.incrementAndGet();
+                ctx.response().setStatusCode(304).end();
+                return;
+            }
+            ctx.response().putHeader("Content-Type", "image/png").putHeader("ETag", "\"v1\"")
+                    .end(Buffer.buffer(IMAGE));
+        });
+        router.get("/slow.png").handler(ctx -> {
+            upstreamRequests.incrementAndGet();
+            vertx.setTimer(200, id -> ctx.response().putHeader("Content-Type", "image/png").end(Buffer.buffer(IMAGE)));
+        });
+        return vertx.createHttpServer().requestHandler(router).listen(0).map(HttpServer::actualPort);
+    }
+
+    private Future<Integer> serveProxy(Vertx vertx) {
+        // Private hosts allowed: the upstream server is on localhost
+        proxy = new MediaProxy(vertx, store, profileService, root.resolve("media-cache"), 1024 * 1024, 1024, true);
+        var router = Router.router(vertx);
+        router.get("/api/media").handler(ctx -> proxy.handle(ctx, MediaProxy.Kind.MEDIA));
+        return vertx.createHttpServer().requestHandler(router).listen(0).map(HttpServer::actualPort);
+    }
+
+    private Future<Long> link(String... urls) {
+        var links = Arrays.stream(urls).map(url -> new Link("", url, "")).toList();
+        var page = new Page(List.of(new Block("main", 0, 0, null, null, List.of()),
+                new Block("image", 1, 0, null, null, links)));
+        return (store.exists(1, "home") ? Future.succeededFuture() : profileService.createEmpty(1, "home"))
+                .compose(v -> profileService.update(1, "home", page));
+    }
+
+    private static Future<HttpResponse<Buffer>> get(WebClient client, int port, String url, String range) {
+        var request = client.get(port, "localhost", "/api/media?url=" + URLEncoder.encode(url, StandardCharsets.UTF_8));
+        if (range != null) {
+            request.putHeader("Range", range);
+        }
+        return request.send();
+    }
+
+    @Test
+    void onlyLinkedUrlsAreFetched(Vertx vertx, VertxTestContext testContext) {
+        var client = WebClient.create(vertx);
+        serveUpstream(vertx).compose(upstream -> serveProxy(vertx).compose(port -> {
+            var url = "http://localhost:" + upstream + "/image.png";
+            return get(client, port, url, null)
+                    .compose(res -> {
+                        assertEquals(403, res.statusCode());
+                        assertEquals(0, upstreamRequests.get());
+                        return link(url);
+                    })
+                    .compose(v -> get(client, port, url, null));
+        })).onComplete(testContext.succeeding(res -> testContext.verify(() -> {
+            assertEquals(200, res.statusCode());
+            assertArrayEquals(IMAGE, res.body().getBytes());
+            assertEquals(1, upstreamRequests.get());
+            testContext.completeNow();
+        })));
+    }
+
+    @Test
+    void servesByteRanges(Vertx vertx, VertxTestContext testContext) {
+        var client = WebClient.create(vertx);
+        serveUpstream(vertx).compose(upstream -> serveProxy(vertx).compose(port -> {
+            var url = "http://localhost:" + upstream + "/image.png";
+            return link(url)
+                    .compose(v -> get(client, port, url, "bytes=2-5"))
+                    .compose(res -> {
+                        assertEquals(206, res.statusCode());
+                        assertEquals("bytes 2-5/" + IMAGE.length, res.getHeader("Content-Range"));
+                        assertEquals("2345", res.bodyAsString());
+                        return get(client, port, url, "bytes=-3");
+                    })
+                    .compose(res -> {
+                        assertEquals(206, res.statusCode());
+                        assertEquals("def", res.bodyAsString());
+                        return get(client, port, url, "bytes=" + IMAGE.length + "-");
+                    });
+        })).onComplete(testContext.succeeding(res -> testContext.verify(() -> {
+            assertEquals(416, res.statusCode());
+            assertEquals("bytes */" + IMAGE.length, res.getHeader("Content-Range"));
+            // Fetched once, the ranges are served from the cache
+            assertEquals(1, upstreamRequests.get());
+            testContext.completeNow();
+        })));
+    }
+
+    @Test
+    void staleEntriesAreServedThenRevalidated(Vertx vertx, VertxTestContext testContext) {
+        var client = WebClient.create(vertx);
+        var cached = "cached".getBytes(StandardCharsets.US_ASCII);
+        serveUpstream(vertx).compose(upstream -> {
+            var url = "http://localhost:" + upstream + "/image.png";
+            // A cached copy that expired long ago, from an earlier run
+            var key = MediaProxy.key(MediaProxy.Kind.MEDIA, MediaProxy.target(url, MediaProxy.Kind.MEDIA));
+            var file = root.resolve("media-cache").resolve(key + "-old");
+            try {
+                Files.createDirectories(file.getParent());
+                Files.write(file, cached);
+                Files.writeString(Path.of(file + ".json"), new JsonObject()
+                        .put("url", url)
+                        .put("contentType", "image/png")
+                        .put("length", cached.length)
+                        .put("etag", "\"v1\"")
+                        .put("fetchedAt", 1000)
+                        .put("expiresAt", 2000)
+                        .encode());
+            } catch (IOException e) {
+                return Future.failedFuture(e);
+            }
+            // Linked before the proxy starts: found by its walk of the pages
+            return link(url).compose(v -> serveProxy(vertx)).compose(port -> get(client, port, url, null)
+                    .compose(res -> {
+                        assertEquals(200, res.statusCode());
+                        assertArrayEquals(cached, res.body().getBytes());
+                        return waitFor(vertx, () -> revalidations.get() == 1);
+                    })
+                    .compose(v -> get(client, port, url, null)))
+                    .map(res -> {
+                        assertArrayEquals(cached, res.body().getBytes());
+                        assertTrue(Files.exists(file));
+                        var maxAge = res.getHeader("Cache-Control").replaceAll(".*max-age=", "");
+                        assertTrue(Long.parseLong(maxAge) > 0);
+                        return res;
+                    });
+        }).onComplete(testContext.succeeding(res -> testContext.verify(() -> {
+            // Only the conditional request reached the upstream server
+            assertEquals(1, upstreamRequests.get());
+            testContext.completeNow();
+        })));
+    }
+
+    @Test
+    void concurrentRequestsShareOneFetch(Vertx vertx, VertxTestContext testContext) {
+        var client = WebClient.create(vertx);
+        serveUpstream(vertx).compose(upstream -> serveProxy(vertx).compose(port -> {
+            var url = "http://localhost:" + upstream + "/slow.png";
+            return link(url).compose(v -> {
+                List<Future<HttpResponse<Buffer>>> responses = new ArrayList<>();
+                for (var i = 0; i < 5; i++) {
+                    responses.add(get(client, port, url, null));
+                }
+                return Future.all(responses).map(all -> responses);
+            });
+        })).onComplete(testContext.succeeding(responses -> testContext.verify(() -> {
+            for (var res : responses) {
+                assertEquals(200, res.result().statusCode());
+                assertArrayEquals(IMAGE, res.result().body().getBytes());
+            }
+            assertEquals(1, upstreamRequests.get());
+            testContext.completeNow();
+        })));
+    }
+
+    private static Future<Void> waitFor(Vertx vertx, BooleanSupplier condition) {
+        if (condition.getAsBoolean()) {
+            return Future.succeededFuture();
+        }
+        return Future.<Void>future(p -> vertx.setTimer(10, id -> p.complete()))
+                .compose(v -> waitFor(vertx, condition));
+    }
+}
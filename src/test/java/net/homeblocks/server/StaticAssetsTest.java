@@ -0,0 +1,123 @@
+package net.homeblocks.server;
+
+import io.vertx.core.Vertx;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+class StaticAssetsTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void acceptsEncodingHonoursQuality() {
+        assertTrue(StaticAssets.acceptsEncoding("gzip, deflate, br", "gzip"));
+        assertTrue(StaticAssets.acceptsEncoding("deflate, GZIP;q=0.5", "gzip"));
+        assertTrue(StaticAssets.acceptsEncoding("*", "gzip"));
+        assertFalse(StaticAssets.acceptsEncoding(null, "gzip"));
+        assertFalse(StaticAssets.acceptsEncoding("identity", "gzip"));
+        assertFalse(StaticAssets.acceptsEncoding("gzip;q=0", "gzip"));
+        assertFalse(StaticAssets.acceptsEncoding("gzip; q=0.0, br", "gzip"));
+        assertFalse(StaticAssets.acceptsEncoding("*, gzip;q=0", "gzip"));
+        assertFalse(StaticAssets.acceptsEncoding("*;q=0", "gzip"));
+        // Whole codings only, not substrings
+        assertFalse(StaticAssets.acceptsEncoding("x-gzip-not", "gzip"));
+    }
+
+    @Test
+    void variantsHaveTheirOwnETag(Vertx vertx, VertxTestContext testContext) throws IOException {
+        var root = Files.createDirectories(dir.resolve("public"));
+        Files.writeString(root.resolve("app.js"), "var x = 1;\n".repeat(200));
+        var assets = new StaticAssets(root, dir.resolve("cache"));
+        var router = Router.router(vertx);
+        router.get("/*").handler(assets::handle);
+        var client = WebClient.create(vertx, new WebClientOptions().setDefaultHost("localhost"));
+        vertx.createHttpServer().requestHandler(router).listen(0).compose(server -> {
+            var port = server.actualPort();
+            return client.get(port, "localhost", "/app.js").putHeader("Accept-Encoding", "identity").send()
+                    .compose(plain -> client.get(port, "localhost", "/app.js").putHeader("Accept-Encoding", "gzip").send()
+                            .compose(gzipped -> {
+                                var etag = plain.getHeader("ETag");
+                                var gzEtag = gzipped.getHeader("ETag");
+                                assertEquals("application/javascript;charset=UTF-8", plain.getHeader("Content-Type"));
+                                assertNull(plain.getHeader("Content-Encoding"));
+                                assertEquals("gzip", gzipped.getHeader("Content-Encoding"));
+                                assertNotEquals(etag, gzEtag);
+                                assertTrue(gzEtag.endsWith("-gz\""), gzEtag);
+                                // The identity's tag doesn't validate the gzipped variant
+                                return client.get(port, "localhost", "/app.js").putHeader("Accept-Encoding", "gzip")
+                                        .putHeader("If-None-Match", etag).send()
+                                        .compose(res -> {
+                                            assertEquals(200, res.statusCode());
+                                            return client.get(port, "localhost", "/app.js")
+                                                    .putHeader("Accept-Encoding", "gzip;q=0")
+                                                    .putHeader("If-None-Match", etag).send();
+                                        });
+                            }))
+                    .map(res -> {
+                        assertEquals(304, res.statusCode());
+                        return null;
+                    });
+        }).onComplete(testContext.succeedingThenComplete());
+    }
+
+    @Test
+    void providedBrotliOnlyForUnchangedContent(Vertx vertx, VertxTestContext testContext) throws IOException {
+        var root = Files.createDirectories(dir.resolve("public"));
+        Files.writeString(root.resolve("app.js"), "var x = 1;\n");
+        Files.writeString(root.resolve("app.js.br"), "brotli app");
+        Files.writeString(root.resolve("old.js"), "var y = 2;\n");
+        Files.writeString(root.resolve("old.js.br"), "brotli old");
+        Files.setLastModifiedTime(root.resolve("old.js.br"), FileTime.fromMillis(0));
+        Files.writeString(root.resolve("index.html"), "<script src=\"app.js\"></script>");
+        Files.writeString(root.resolve("index.html.br"), "brotli of the original page");
+        Files.writeString(root.resolve("view.html"), "<img src=\"app.js\">");
+        var assets = new StaticAssets(root, dir.resolve("cache"));
+        var router = Router.router(vertx);
+        router.get("/*").handler(assets::handle);
+        var client = WebClient.create(vertx, new WebClientOptions().setDefaultHost("localhost"));
+        vertx.createHttpServer().requestHandler(router).listen(0).compose(server -> {
+            var port = server.actualPort();
+            return client.get(port, "localhost", "/app.js").putHeader("Accept-Encoding", "br").send()
+                    .compose(res -> {
+                        assertEquals("br", res.getHeader("Content-Encoding"));
+                        assertEquals("brotli app", res.bodyAsString());
+                        // Older than its source
+                        return client.get(port, "localhost", "/old.js").putHeader("Accept-Encoding", "br").send();
+                    })
+                    .compose(res -> {
+                        assertNull(res.getHeader("Content-Encoding"));
+                        assertEquals("var y = 2;\n", res.bodyAsString());
+                        // Rewritten: the provided file has the original references
+                        return client.get(port, "localhost", "/index.html").putHeader("Accept-Encoding", "br").send();
+                    })
+                    .compose(res -> {
+                        assertNull(res.getHeader("Content-Encoding"));
+                        assertTrue(res.bodyAsString().contains("app.js?v="), res.bodyAsString());
+                        return client.get(port, "localhost", "/view.html").send();
+                    })
+                    .map(res -> {
+                        // Other pages are fingerprinted too
+                        assertTrue(res.bodyAsString().contains("app.js?v="), res.bodyAsString());
+                        return null;
+                    });
+        }).onComplete(testContext.succeedingThenComplete());
+    }
+}
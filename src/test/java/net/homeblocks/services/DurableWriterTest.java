@@ -0,0 +1,48 @@
+package net.homeblocks.services;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DurableWriterTest {
+    @TempDir
+    Path root;
+
+    private final DurableWriter writer = new DurableWriter();
+
+    @AfterEach
+    void tearDown() {
+        writer.close();
+    }
+
+    private static void join(Future<?> future) throws Exception {
+        future.toCompletionStage().toCompletableFuture().get();
+    }
+
+    @Test
+    void appendedFilesAreClosedBeyondTheLimit() throws Exception {
+        var count = DurableWriter.MAX_APPEND_CHANNELS * 2;
+        List<Future<Void>> appends = new ArrayList<>();
+        for (var i = 0; i < count; i++) {
+            appends.add(writer.append(root.resolve(i + ".log"), Buffer.buffer("a")));
+        }
+        join(Future.all(appends));
+        assertEquals(DurableWriter.MAX_APPEND_CHANNELS, writer.stats().getInteger("openAppendFiles"));
+
+        // Closed files are opened again, at their end
+        join(writer.append(root.resolve("0.log"), Buffer.buffer("b")));
+        assertEquals("ab", Files.readString(root.resolve("0.log")));
+        for (var i = 1; i < count; i++) {
+            assertEquals("a", Files.readString(root.resolve(i + ".log")));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package net.homeblocks.services;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.ext.web.Router;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import net.homeblocks.model.Block;
+import net.homeblocks.model.Link;
+import net.homeblocks.model.Page;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+class LinkCheckerTest {
+    @TempDir
+    Path root;
+
+    private DurableWriter writer;
+    private ProfileStore store;
+    private ProfileService profileService;
+    private LinkChecker checker;
+
+    // What the stub server saw, only accessed from its event loop
+    private final List<String> requests = new ArrayList<>();
+    private final Map<String, List<Long>> startsByHost = new HashMap<>();
+    private final Map<String, Integer> activeByHost = new HashMap<>();
+    private int active = 0;
+    private int maxActive = 0;
+    private int maxActivePerHost = 0;
+
+    @BeforeEach
+    void setUp(Vertx vertx) {
+        writer = new DurableWriter();
+        store = new FileProfileStore(vertx, writer, root.toString(), PageFormat.JSON);
+        profileService = new ProfileService(vertx, store, 10, 60_000, 60_000, 100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (checker != null) {
+            checker.close();
+        }
+        profileService.close();
+        writer.close();
+    }
+
+    /**
+     * Answers after 100 ms: {@code /ok} with 200, {@code /no-head} with 405 to HEAD requests, {@code /busy} with
+     * 429 the first time it's called, 200 afterwards.
+     */
+    private Future<Integer> serveLinks(Vertx vertx) {
+        var router = Router.router(vertx);
+        var busy = new boolean[]{false};
+        router.route().handler(ctx -> {
+            var host = ctx.request().authority().host();
+            var path = ctx.request().path();
+            requests.add(ctx.request().method() + " " + host + path);
+            startsByHost.computeIfAbsent(host, h -> new ArrayList<>()).add(System.currentTimeMillis());
+            maxActive = Math.max(maxActive, ++active);
+            maxActivePerHost = Math.max(maxActivePerHost, activeByHost.merge(host, 1, Integer::sum));
+            vertx.setTimer(100, id -> {
+                active--;
+                activeByHost.merge(host, -1, Integer::sum);
+                var res = ctx.response();
+                if (path.equals("/no-head") && ctx.request().method() == HttpMethod.HEAD) {
+                    res.setStatusCode(405);
+                } else if (path.equals("/busy") && !busy[0]) {
+                    busy[0] = true;
+                    res.setStatusCode(429).putHeader("Retry-After", "1");
+                }
+                res.end();
+            });
+        });
+        return vertx.createHttpServer().requestHandler(router).listen(0).map(HttpServer::actualPort);
+    }
+
+    /**
+     * Stores a page with the links, then starts checking.
+     */
+    private Future<Void> check(Vertx vertx, List<String> urls, int concurrency, long hostIntervalMs) {
+        var links = urls.stream().map(url -> new Link("", url, "")).toList();
+        var page = new Page(List.of(new Block("main", 0, 0, null, null, List.of()),
+                new Block("links", 1, 0, null, null, links)));
+        return profileService.createEmpty(1, "home")
+                .compose(p -> profileService.update(1, "home", page))
+                .compose(v -> {
+                    // Private hosts allowed: the links are on localhost
+                    checker = new LinkChecker(vertx, store, profileService, writer, root.toString(), 60_000,
+                            concurrency, hostIntervalMs, true);
+                    return waitFor(vertx, () -> checker.statuses(urls).size() == urls.size());
+                });
+    }
+
+    @Test
+    void checksAreLimitedOverallAndPerHost(Vertx vertx, VertxTestContext testContext) {
+        serveLinks(vertx).compose(port -> {
+            List<String> urls = new ArrayList<>();
+            // Loopback addresses: different hosts for the checker, one server
+            for (var host : List.of("127.0.0.1", "127.0.0.2", "127.0.0.3")) {
+                for (var i = 0; i < 3; i++) {
+                    urls.add("http://" + host + ":" + port + "/ok?" + i);
+                }
+            }
+            return check(vertx, urls, 2, 150).map(v -> urls);
+        }).onComplete(testContext.succeeding(urls -> testContext.verify(() -> {
+            checker.statuses(urls).values().forEach(result -> assertEquals(LinkChecker.Status.OK, result.status()));
+            assertEquals(9, requests.size());
+            assertEquals(2, maxActive);
+            assertEquals(1, maxActivePerHost);
+            startsByHost.values().forEach(starts -> {
+                for (var i = 1; i < starts.size(); i++) {
+                    // The previous check took 100 ms, then the host is left alone for 150 ms
+                    assertTrue(starts.get(i) - starts.get(i - 1) >= 240, "Too soon: " + starts);
+                }
+            });
+            testContext.completeNow();
+        })));
+    }
+
+    @Test
+    void busyHostsAreBackedOff(Vertx vertx, VertxTestContext testContext) {
+        serveLinks(vertx).compose(port -> {
+            // Checked in any order: the first one gets 429
+            var urls = List.of("http://127.0.0.1:" + port + "/busy?1", "http://127.0.0.1:" + port + "/busy?2");
+            return check(vertx, urls, 2, 10).map(v -> urls);
+        }).onComplete(testContext.succeeding(urls -> testContext.verify(() -> {
+            var codes = checker.statuses(urls).values().stream().map(LinkChecker.Result::code).sorted().toList();
+            assertEquals(List.of(200, 429), codes);
+            var starts = startsByHost.get("127.0.0.1");
+            assertEquals(2, starts.size());
+            // Retry-After: 1, rather than the 10 ms interval
+            assertTrue(starts.get(1) - starts.get(0) >= 1000, "Too soon: " + starts);
+            testContext.completeNow();
+        })));
+    }
+
+    @Test
+    void getIsTriedWhenHeadIsRefused(Vertx vertx, VertxTestContext testContext) {
+        serveLinks(vertx).compose(port -> {
+            var urls = List.of("http://127.0.0.1:" + port + "/no-head");
+            return check(vertx, urls, 1, 10).map(v -> urls);
+        }).onComplete(testContext.succeeding(urls -> testContext.verify(() -> {
+            var result = checker.statuses(urls).get(urls.get(0));
+            assertEquals(LinkChecker.Status.OK, result.status());
+            assertEquals(200, result.code());
+            assertEquals(List.of("HEAD 127.0.0.1/no-head", "GET 127.0.0.1/no-head"), requests);
+            testContext.completeNow();
+        })));
+    }
+
+    private static Future<Void> waitFor(Vertx vertx, BooleanSupplier condition) {
+        if (condition.getAsBoolean()) {
+            return Future.succeededFuture();
+        }
+        return Future.<Void>future(p -> vertx.setTimer(10, id -> p.complete()))
+                .compose(v -> waitFor(vertx, condition));
+    }
+}
@@ -0,0 +1,30 @@
+package net.homeblocks.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MetricsTest {
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @AfterEach
+    void tearDown() {
+        Metrics.init(null);
+    }
+
+    @Test
+    void metersAreReusedPerNameAndTags() {
+        Metrics.init(registry);
+        for (var i = 0; i < 3; i++) {
+            Metrics.recordTime("test.time", Metrics.start(), "route", "a");
+            Metrics.recordBytes("test.bytes", 10, "route", "a");
+        }
+        Metrics.recordTime("test.time", Metrics.start(), "route", "b");
+        assertEquals(3, registry.get("test.time").tag("route", "a").timer().count());
+        assertEquals(1, registry.get("test.time").tag("route", "b").timer().count());
+        assertEquals(30, registry.get("test.bytes").summary().totalAmount());
+        assertEquals(2, registry.get("test.time").timers().size());
+    }
+}
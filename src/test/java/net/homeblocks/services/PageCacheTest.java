@@ -0,0 +1,130 @@
+package net.homeblocks.services;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import net.homeblocks.model.Page;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PageCacheTest {
+    private static final ProfileKey A = new ProfileKey(1, "a");
+    private static final ProfileKey B = new ProfileKey(1, "b");
+
+    private record Write(ProfileKey key, Page page, Promise<Void> promise) {}
+
+    // Writes complete when the test says so
+    private final List<Write> writes = new ArrayList<>();
+    private final PageCache cache = new PageCache(1, (key, page) -> {
+        var promise = Promise.<Void>promise();
+        writes.add(new Write(key, page, promise));
+        return promise.future();
+    });
+
+    @Test
+    void evictedPageIsServedWhileBeingWritten() {
+        var page = Page.empty();
+        cache.write(A, page);
+        // Evicts A, while its write is in flight
+        cache.put(B, Page.empty());
+        assertEquals(1, writes.size());
+        assertSame(page, cache.get(A));
+        assertTrue(cache.contains(A));
+        // A read from the store meanwhile is stale
+        assertSame(page, cache.putIfAbsent(A, Page.empty()));
+
+        writes.get(0).promise().complete();
+        assertEquals(0, cache.stats().getInteger("writing"));
+    }
+
+    @Test
+    void peekLeavesOrderAndStatsAlone() {
+        var cache = new PageCache(2, (key, page) -> Future.succeededFuture());
+        var a = Page.empty();
+        cache.put(A, a);
+        cache.put(B, Page.empty());
+        assertSame(a, cache.peek(A));
+        assertNull(cache.peek(new ProfileKey(1, "c")));
+        assertEquals(0, cache.stats().getLong("hits"));
+        assertEquals(0, cache.stats().getLong("misses"));
+        // A is still the least recently used
+        cache.put(new ProfileKey(1, "c"), Page.empty());
+        assertNull(cache.peek(A));
+        assertTrue(cache.contains(B));
+
+        // Whereas getting it makes it recently used
+        cache.get(B);
+        cache.put(A, a);
+        assertTrue(cache.contains(B));
+        assertFalse(cache.contains(new ProfileKey(1, "c")));
+    }
+
+    @Test
+    void evictedPageIsGoneOnceWritten() {
+        cache.write(A, Page.empty());
+        cache.put(B, Page.empty());
+        writes.get(0).promise().complete();
+        assertNull(cache.get(A));
+        assertFalse(cache.contains(A));
+    }
+
+    @Test
+    void evictedPageIsPutBackIfItsWriteFails() {
+        var page = Page.empty();
+        cache.write(A, page);
+        cache.put(B, Page.empty());
+        writes.get(0).promise().fail("disk full");
+
+        assertSame(page, cache.get(A));
+        assertEquals(1, cache.stats().getInteger("dirty"));
+        // Written again on next flush
+        assertEquals(1, cache.flush());
+        assertSame(page, writes.get(writes.size() - 1).page());
+    }
+
+    @Test
+    void failedWriteDoesNotOverrideNewerPage() {
+        var first = Page.empty();
+        var second = Page.empty();
+        var firstWrite = cache.write(A, first);
+        var secondWrite = cache.write(A, second);
+        writes.get(0).promise().fail("disk full");
+        assertTrue(firstWrite.failed());
+        assertEquals(0, cache.stats().getInteger("dirty"));
+
+        writes.get(1).promise().complete();
+        assertTrue(secondWrite.succeeded());
+        assertSame(second, cache.get(A));
+    }
+
+    @Test
+    void olderWriteCompletingKeepsNewerInFlight() {
+        var first = Page.empty();
+        var second = Page.empty();
+        cache.write(A, first);
+        cache.write(A, second);
+        // Evicts A, with both writes in flight
+        cache.put(B, Page.empty());
+        writes.get(0).promise().complete();
+        assertSame(second, cache.get(A));
+        writes.get(1).promise().complete();
+        assertEquals(0, cache.stats().getInteger("writing"));
+    }
+
+    @Test
+    void writeThroughFailureKeepsPageDirty() {
+        var page = Page.empty();
+        Future<Void> written = cache.write(A, page);
+        writes.get(0).promise().fail("disk full");
+        assertTrue(written.failed());
+        assertSame(page, cache.get(A));
+        assertEquals(1, cache.stats().getInteger("dirty"));
+    }
+}
@@ -0,0 +1,167 @@
+package net.homeblocks.services;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import net.homeblocks.model.Block;
+import net.homeblocks.model.Page;
+import net.homeblocks.model.PageLimits;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+class ProfileServiceTest {
+    @TempDir
+    Path root;
+
+    private DurableWriter writer;
+    private ProfileStore store;
+    private ProfileService profileService;
+
+    @BeforeEach
+    void setUp(Vertx vertx) {
+        writer = new DurableWriter();
+        store = new FileProfileStore(vertx, writer, root.toString(), PageFormat.JSON);
+        profileService = new ProfileService(vertx, store, 10, 60_000, 60_000, 100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        profileService.close();
+        writer.close();
+    }
+
+    private static Page page(String title) {
+        return new Page(List.of(new Block("main", 0, 0, null, null, List.of()),
+                new Block("links", 1, 0, title, null, List.of())));
+    }
+
+    @Test
+    void updateCompletesOnceStored(VertxTestContext testContext) {
+        var page = page("Saved");
+        profileService.createEmpty(1, "home")
+                .compose(p -> profileService.update(1, "home", page))
+                .onComplete(testContext.succeeding(version -> testContext.verify(() -> {
+                    // Read from the store, not from the cache
+                    assertEquals(page.toJson(), store.read(1, "home").toJson());
+                    assertEquals(version, profileService.version(1, "home"));
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    void patchesAgainstAnOlderVersionAreRefused(VertxTestContext testContext) {
+        var limits = new PageLimits(10, 10);
+        var setTitle = new JsonArray().add(new JsonObject().put("op", "setField").put("block", 1)
+                .put("field", "title").put("value", "Patched"));
+        profileService.createEmpty(1, "home")
+                .compose(p -> profileService.update(1, "home", page("Saved")))
+                .compose(base -> profileService.patch(1, "home", setTitle, limits, base)
+                        .map(patched -> {
+                            assertThrows(ProfileService.StaleVersionException.class,
+                                    () -> profileService.patch(1, "home", setTitle, limits, base));
+                            return patched;
+                        }))
+                .onComplete(testContext.succeeding(patched -> testContext.verify(() -> {
+                    assertEquals("Patched", patched.page().getBlocks().get(1).getTitle());
+                    assertEquals(patched.version(), profileService.version(1, "home"));
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    void historyCatchesUpWithStoredPageAfterCrash(Vertx vertx, VertxTestContext testContext) {
+        var stored = page("Stored");
+        var next = page("Next");
+        profileService.createEmpty(1, "home")
+                .compose(p -> profileService.update(1, "home", stored))
+                .compose(v -> {
+                    // A revision recorded, but whose page was lost in a crash
+                    return store.appendHistory(1, "home", new JsonObject().put("rev", 3).put("at", 0L)
+                            .put("page", page("Lost").toJson()));
+                })
+                .compose(v -> {
+                    // Restarted
+                    profileService.close();
+                    profileService = new ProfileService(vertx, store, 10, 60_000, 60_000, 100);
+                    return profileService.update(1, "home", next);
+                })
+                .onComplete(testContext.succeeding(version -> testContext.verify(() -> {
+                    var revisions = profileService.revisions(1, "home");
+                    assertEquals(5, revisions.get(0).rev());
+                    assertEquals(stored.toJson(), profileService.revision(1, "home", 4).toJson());
+                    assertEquals(next.toJson(), profileService.revision(1, "home", 5).toJson());
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    void revisionsAreRebuiltAcrossSnapshots(VertxTestContext testContext) {
+        // Past two snapshot intervals
+        var count = ProfileHistory.SNAPSHOT_INTERVAL * 2 + 5;
+        Future<?> updates = profileService.createEmpty(1, "home");
+        for (var i = 1; i <= count; i++) {
+            var page = page("T" + i);
+            updates = updates.compose(v -> profileService.update(1, "home", page));
+        }
+        updates.onComplete(testContext.succeeding(v -> testContext.verify(() -> {
+            assertEquals(Page.empty().toJson(), profileService.revision(1, "home", 1).toJson());
+            for (var rev = 2; rev <= count + 1; rev++) {
+                assertEquals(page("T" + (rev - 1)).toJson(), profileService.revision(1, "home", rev).toJson());
+            }
+            assertNull(profileService.revision(1, "home", count + 2));
+            testContext.completeNow();
+        })));
+    }
+
+    @Test
+    void evictedListsGetNewStamps() {
+        var first = profileService.listVersion(0);
+        profileService.list(0);
+        assertEquals(first, profileService.listVersion(0));
+        // Listing many other users evicts the first one's list
+        for (var userID = 1; userID <= 10_000; userID++) {
+            profileService.listVersion(userID);
+            profileService.list(userID);
+        }
+        var second = profileService.listVersion(0);
+        assertNotEquals(first, second);
+        assertTrue(second > first);
+    }
+
+    @Test
+    void listsStayWhileListed() {
+        var first = profileService.listVersion(0);
+        for (var userID = 1; userID <= 20_000; userID++) {
+            profileService.list(0);
+            profileService.list(userID);
+        }
+        assertEquals(first, profileService.listVersion(0));
+    }
+
+    @Test
+    void createdProfilesAreListed(VertxTestContext testContext) {
+        assertEquals(List.of(), profileService.list(1));
+        var before = profileService.listVersion(1);
+        profileService.createEmpty(1, "home").onComplete(testContext.succeeding(p -> testContext.verify(() -> {
+            assertEquals(List.of("home"), profileService.list(1));
+            assertTrue(profileService.listVersion(1) > before);
+            testContext.completeNow();
+        })));
+    }
+}